@@ -14,6 +14,13 @@ public class BinarySearchTree<K extends Comparable<? super K>, E> {
 	//size of our BST
 	private int nodecount;
 
+	//rough heap cost of each item in a cached find, the items being shared
+	//with the tree
+	private static final int REFERENCE_BYTES = 8;
+
+	//the results of recent finds, or null if they aren't kept
+	private ResultCache<K, List<E>> findCache;
+
 	/**
 	 * The constructor instantiates a blank tree
 	 */
@@ -28,6 +35,27 @@ public class BinarySearchTree<K extends Comparable<? super K>, E> {
 	public void clear() {
 		root = null;
 		nodecount = 0;
+		if(findCache != null)
+			findCache.clear();
+	}
+
+	/**
+	 * Sets the cache the results of finds are kept in.  Inserting or
+	 * removing a key drops that key's cached result.
+	 * @param cache the find cache, or null to stop caching finds
+	 */
+	public void setFindCache(ResultCache<K, List<E>> cache) {
+		if(cache != null)
+			cache.clear();
+		findCache = cache;
+	}
+
+	/**
+	 * Returns the cache the results of finds are kept in
+	 * @return the find cache, or null if finds aren't cached
+	 */
+	public ResultCache<K, List<E>> getFindCache() {
+		return findCache;
 	}
 
 	/**
@@ -38,6 +66,8 @@ public class BinarySearchTree<K extends Comparable<? super K>, E> {
 	public void insert(K k, E e) {
 		root = inserthelp(root, k, e);
 		nodecount++;
+		if(findCache != null)
+			findCache.invalidate(k);
 	}
 
 	/**
@@ -51,19 +81,51 @@ public class BinarySearchTree<K extends Comparable<? super K>, E> {
 		if(!result.isEmpty()) {
 			root = removehelp(root, k);
 			nodecount--;
+			if(findCache != null)
+				findCache.invalidate(k);
 			return result.get(0);
 		}
 		return null;
 	}
 
 	/**
-	 * Finds a record given a key
+	 * Removes the record with the given key and value, leaving any other
+	 * records with the same key
+	 * @param k the key
+	 * @param e the value of the record to remove
+	 * @return true if the record was found and removed
+	 */
+	public boolean remove(K k, E e) {
+	    List<E> result = new ArrayList<E>();
+		findhelp(root, k, result);
+		if(result.contains(e)) {
+			root = removehelp(root, k, e);
+			nodecount--;
+			if(findCache != null)
+				findCache.invalidate(k);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Finds a record given a key, from the find cache if it has the key
 	 * @param k the key
 	 * @return List<E> a list of the records found
 	 */
 	public List<E> find(K k) {
+		long generation = 0;
+		if(findCache != null) {
+			List<E> cached = findCache.get(k);
+			if(cached != null)
+				return new ArrayList<E>(cached);
+			generation = findCache.getGeneration();
+		}
 		List<E> l = new ArrayList<E>();
 		findhelp(root, k, l);
+		if(findCache != null)
+			findCache.put(k, new ArrayList<E>(l),
+				(long)REFERENCE_BYTES * l.size(), generation);
 		return l;
 	}
 
@@ -163,5 +225,30 @@ public class BinarySearchTree<K extends Comparable<? super K>, E> {
 		return rt;
 	}
 
+	/**
+	 * remove the node with key value k and element e.  Nodes with equal
+	 * keys are inserted to the right, so the search goes on to the right
+	 * until the element matches
+	 * @return the tree with the node removed
+	 */
+	private BinaryNode<K, E> removehelp(BinaryNode<K,E> rt, K k, E e) {
+		if(rt == null) return null;
+		if(rt.key().compareTo(k) > 0)
+			rt.setLeft(removehelp(rt.left(), k, e));
+		else if(rt.key().compareTo(k) < 0 || !rt.element().equals(e))
+			rt.setRight(removehelp(rt.right(), k, e));
+
+		else {
+			if(rt.left() == null) return rt.right();
+			if(rt.right() == null) return rt.left();
+
+			BinaryNode<K, E> temp = getmin(rt.right());
+			rt.setElement(temp.element());
+			rt.setKey(temp.key());
+			rt.setRight(deletemin(rt.right()));
+		}
+		return rt;
+	}
+
 
 }
@@ -5,6 +5,7 @@ import java.io.FileNotFoundException;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Contains a pool of buffers that can store byte data from a binary file.
@@ -12,6 +13,12 @@ import java.util.LinkedList;
  * pull a block of data from the file into an empty buffer, or overrite the data
  * in the least recently used buffer (writing it's contents to the file if
  * they've been changed).
+ *
+ * Reads can be made from many threads at once.  A read of a block that is
+ * already in a buffer doesn't lock; it looks the block up in a copy of the
+ * buffer list that is replaced whenever a buffer is swapped.  Swapping a
+ * buffer, touching the file and writing take the pool's lock, so writes
+ * still see one call at a time.
  *  @author Joshua Rush (jdrush89)
  *  @author Benjamin Roble (broble)
  *  @version Nov 2, 2011
@@ -20,16 +27,27 @@ public class BufferPool
 {
     //A linked list containing the buffers in this pool
     private LinkedList<BufferNode> bufferList;
+    //the buffers in bufferList's order, replaced after every swap, so
+    //reads can look blocks up without the lock
+    private volatile BufferNode[] resident = new BufferNode[0];
     //the number of buffers this pool can hold at maximum
     private int numBuffers;
     //the binary file that the bufferpool interfaces with
     private RandomAccessFile myFile;
 
     //number of cache hits
-    private int cacheHits = 0;
+    private AtomicInteger cacheHits = new AtomicInteger();
 
     //number of cache misses
-    private int cacheMisses = 0;
+    private AtomicInteger cacheMisses = new AtomicInteger();
+
+    //the hits and misses of each thread's reads
+    private ThreadLocal<int[]> threadCounts = new ThreadLocal<int[]>() {
+        protected int[] initialValue()
+        {
+            return new int[2];
+        }
+    };
 
      //number of disk reads
     private int diskReads = 0;
@@ -69,27 +87,61 @@ public class BufferPool
      * @return the short that is thee key for the specified record
      */
     public short requestKey(long recNum) {
-        BufferNode bn = bufferContains(recNum);
-        if(bn == null) bn = bufferRead(recNum);
+        BufferNode bn = bufferContains(recNum * 4);
+        if(bn == null) bn = swapIn(recNum * 4);
 
         return getKey(bn, recNum);
     }
     /**
-     * Returns the node that contains the specified record.
-     * @param recNum the record number to search for
-     * @return the bufferNode the record is in, or null if it isn't found
+     * Returns the node that contains the specified byte.
+     * @param bytePos the byte position in the file to search for
+     * @return the bufferNode the byte is in, or null if it isn't found
      */
-    private BufferNode bufferContains(long recNum) {
-        for(BufferNode bNode : bufferList) {
-            if(bNode.getBlockID() <= recNum*4 && bNode.getBlockID() + BUFFER_SIZE > recNum*4) {
-                cacheHits++;
+    private BufferNode bufferContains(long bytePos) {
+        int[] counts = threadCounts.get();
+        BufferNode bNode = find(resident, bytePos);
+        if (bNode != null) {
+            cacheHits.incrementAndGet();
+            counts[0]++;
+            return bNode;
+        }
+        cacheMisses.incrementAndGet();
+        counts[1]++;
+        return null;
+    }
+
+    /**
+     * Return the buffer in a list of buffers holding the specified byte.
+     * @param buffers the buffers to look in
+     * @param bytePos the byte position in the file to search for
+     * @return the buffer the byte is in, or null if it isn't in one
+     */
+    private static BufferNode find(BufferNode[] buffers, long bytePos)
+    {
+        for (BufferNode bNode : buffers)
+        {
+            if (bNode.getBlockID() <= bytePos
+                && bNode.getBlockID() + BUFFER_SIZE > bytePos)
                 return bNode;
-            }
         }
-        cacheMisses++;
         return null;
     }
 
+    /**
+     * Bring the block holding the specified byte into a buffer after a read
+     * missed it.  Another thread may have brought it in since the miss, in
+     * which case its buffer is returned instead of reading it twice.
+     * @param bytePos a byte position in the block to be read
+     * @return the BufferNode holding the block
+     */
+    private synchronized BufferNode swapIn(long bytePos)
+    {
+        BufferNode node = find(resident, bytePos);
+        if (node == null)
+            node = bufferRead(bytePos);
+        return node;
+    }
+
     // ----------------------------------------------------------
     /**
      * Get the key short value from a buffer
@@ -109,10 +161,10 @@ public class BufferPool
      * Read a block of data into a buffer.  If the buffer pool is full,
      * overwrite the least recently used buffer, writing its contents if they've
      * been changed.
-     * @param recNum the record number whose block is to be read
+     * @param bytePos a byte position in the block to be read
      * @return the BufferNode containing the buffer that just read in the data.
      */
-    private BufferNode bufferRead(long recNum) {
+    private BufferNode bufferRead(long bytePos) {
         BufferNode currentNode;
 
 
@@ -129,8 +181,8 @@ public class BufferPool
         currentNode = new BufferNode();
 
 
-        long startReadingPosition = ((recNum * 4 )/ 4096); //truncate
-        startReadingPosition *= 4096;
+        long startReadingPosition = bytePos / BUFFER_SIZE; //truncate
+        startReadingPosition *= BUFFER_SIZE;
 
         currentNode.setBlockID(startReadingPosition);
         //seek to and read the data
@@ -152,6 +204,7 @@ public class BufferPool
 
         bufferList.addFirst(currentNode);
         bufferList.indexOf(currentNode);
+        resident = bufferList.toArray(new BufferNode[bufferList.size()]);
         return currentNode;
     }
     /**
@@ -178,11 +231,11 @@ public class BufferPool
      * @param recordNum the record number to overwrite
      * @param data the new byte data to set the record to
      */
-    public void setRecord(long recordNum, byte[] data)
+    public synchronized void setRecord(long recordNum, byte[] data)
     {
-        BufferNode node = bufferContains(recordNum);
+        BufferNode node = bufferContains(recordNum * 4);
         if (node == null)
-            node = bufferRead(recordNum);
+            node = bufferRead(recordNum * 4);
         node.getBuffer().setRecord((int)(recordNum * 4 - node.getBlockID()), data);
         node.setChanged(true);
     }
@@ -194,15 +247,181 @@ public class BufferPool
      */
     public byte[] getRecord(long recordNum)
     {
-        BufferNode node = bufferContains(recordNum);
+        BufferNode node = bufferContains(recordNum * 4);
         if (node == null)
-            node = bufferRead(recordNum);
+            node = swapIn(recordNum * 4);
         return node.getBuffer().getRecord((int)(recordNum * 4 - node.getBlockID()));
     }
+    /**
+     * Copy size bytes from data into the pool, starting at byte position pos
+     * in the file.  The bytes may cross block boundaries; each block touched
+     * is read into a buffer if it isn't in one already.
+     * @param data the bytes to write
+     * @param pos the byte position in the file to start writing at
+     * @param size the number of bytes from data to write
+     */
+    public synchronized void write(byte[] data, long pos, int size)
+    {
+        int done = 0;
+        while (done < size)
+        {
+            BufferNode node = bufferContains(pos + done);
+            if (node == null)
+                node = bufferRead(pos + done);
+            int offset = (int)(pos + done - node.getBlockID());
+            int length = Math.min(size - done, BUFFER_SIZE - offset);
+            System.arraycopy(data, done, node.getBuffer().getData(), offset,
+                length);
+            node.setChanged(true);
+            done += length;
+        }
+    }
+    /**
+     * Copy size bytes from the pool into space, starting at byte position pos
+     * in the file.  The bytes may cross block boundaries; each block touched
+     * is read into a buffer if it isn't in one already.
+     * @param space the array to copy the bytes into
+     * @param pos the byte position in the file to start reading at
+     * @param size the number of bytes to read
+     * @return the number of bytes read
+     */
+    public int read(byte[] space, long pos, int size)
+    {
+        int done = 0;
+        while (done < size)
+        {
+            BufferNode node = bufferContains(pos + done);
+            if (node == null)
+                node = swapIn(pos + done);
+            int offset = (int)(pos + done - node.getBlockID());
+            int length = Math.min(size - done, BUFFER_SIZE - offset);
+            System.arraycopy(node.getBuffer().getData(), offset, space, done,
+                length);
+            done += length;
+        }
+        return done;
+    }
+    /**
+     * Write a large run of bytes without pulling the blocks it covers into
+     * the pool.  Blocks already in a buffer are updated there, every other
+     * block is written straight to the file, so one large message doesn't
+     * evict every buffer in the pool.
+     * @param data the bytes to write
+     * @param pos the byte position in the file to start writing at
+     * @param size the number of bytes from data to write
+     */
+    public synchronized void writeDirect(byte[] data, long pos,
+        int size)
+    {
+        int done = 0;
+        while (done < size)
+        {
+            long blockStart = ((pos + done) / BUFFER_SIZE) * BUFFER_SIZE;
+            int offset = (int)(pos + done - blockStart);
+            int length = Math.min(size - done, BUFFER_SIZE - offset);
+            BufferNode node = bufferContains(pos + done);
+            if (node != null)
+            {
+                System.arraycopy(data, done, node.getBuffer().getData(),
+                    offset, length);
+                node.setChanged(true);
+            }
+            else
+            {
+                try
+                {
+                    myFile.seek(pos + done);
+                    myFile.write(data, done, length);
+                    diskWrites++;
+                }
+                catch (IOException e)
+                {
+                    System.out.println("Failed to write to file");
+                    e.printStackTrace();
+                }
+            }
+            done += length;
+        }
+    }
+    /**
+     * Read a large run of bytes without pulling the blocks it covers into
+     * the pool.  Blocks already in a buffer are copied from there, every
+     * other block is read straight from the file.
+     * @param space the array to copy the bytes into
+     * @param pos the byte position in the file to start reading at
+     * @param size the number of bytes to read
+     * @return the number of bytes read
+     */
+    public int readDirect(byte[] space, long pos, int size)
+    {
+        int done = 0;
+        while (done < size)
+        {
+            long blockStart = ((pos + done) / BUFFER_SIZE) * BUFFER_SIZE;
+            int offset = (int)(pos + done - blockStart);
+            int length = Math.min(size - done, BUFFER_SIZE - offset);
+            BufferNode node = bufferContains(pos + done);
+            if (node != null)
+            {
+                System.arraycopy(node.getBuffer().getData(), offset, space,
+                    done, length);
+            }
+            else
+            {
+                readFile(space, done, pos + done, length);
+            }
+            done += length;
+        }
+        return done;
+    }
+
+    /**
+     * Read part of a block that readDirect found no buffer for.  The file
+     * is shared, so it is read under the lock, and from the block's buffer
+     * instead if another thread has brought it in since.
+     * @param space the array to copy the bytes into
+     * @param start the index in space to copy the first byte to
+     * @param pos the byte position in the file to start reading at
+     * @param length the number of bytes to read, all in one block
+     */
+    private synchronized void readFile(byte[] space, int start, long pos,
+        int length)
+    {
+        BufferNode node = find(resident, pos);
+        if (node != null)
+        {
+            System.arraycopy(node.getBuffer().getData(),
+                (int)(pos - node.getBlockID()), space, start, length);
+            return;
+        }
+        try
+        {
+            myFile.seek(pos);
+            myFile.read(space, start, length);
+            diskReads++;
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not read file into buffer");
+            e.printStackTrace();
+        }
+    }
+    /**
+     * Clear size bytes of the pool starting at byte position pos.
+     * @param pos the byte position in the file to start clearing at
+     * @param size the number of bytes to clear
+     */
+    public synchronized void remove(long pos, int size)
+    {
+        if (size > BUFFER_SIZE)
+            writeDirect(new byte[size], pos, size);
+        else
+            write(new byte[size], pos, size);
+    }
     /**
      * Write the contents of all buffers to the file.
      */
-    public void flush()
+    public synchronized void flush()
     {
         for(BufferNode bNode : bufferList) {
             if(bNode.isChanged())
@@ -217,7 +436,7 @@ public class BufferPool
      * records 8 to a line, keys and values separated by spaces, and formatted
      * into columns.
      */
-    public void print()
+    public synchronized void print()
     {
         try
         {
@@ -258,27 +477,45 @@ public class BufferPool
      * @return cache misses
      */
     public int getCacheMisses() {
-        return cacheMisses;
+        return cacheMisses.get();
     }
     /**
      * Return the nuber of cache hits.
      * @return the number of cache hits
      */
     public int getCacheHits() {
-        return cacheHits;
+        return cacheHits.get();
+    }
+
+    /**
+     * Return the number of cache hits of the calling thread's reads.
+     * @return the calling thread's cache hits
+     */
+    public int getThreadHits()
+    {
+        return threadCounts.get()[0];
+    }
+
+    /**
+     * Return the number of cache misses of the calling thread's reads.
+     * @return the calling thread's cache misses
+     */
+    public int getThreadMisses()
+    {
+        return threadCounts.get()[1];
     }
     /**
      * Return the number of disk reads.
      * @return disk reads
      */
-    public int getDiskReads() {
+    public synchronized int getDiskReads() {
         return diskReads;
     }
     /**
      * Return the number of disk writes
      * @return disk writes
      */
-    public int getDiskWrites() {
+    public synchronized int getDiskWrites() {
         return diskWrites;
     }
 
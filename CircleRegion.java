@@ -0,0 +1,111 @@
+// -------------------------------------------------------------------------
+/**
+ *  A circular search area, the region searched by search(x, y, radius),
+ *  for searches that go through a QueryRegion such as a cursor.  Points on
+ *  the circumference are inside.
+ *
+ *  @author Joshua Rush
+ *  @author Benjamin Roble
+ *  @version Nov 29, 2011
+ */
+public class CircleRegion implements QueryRegion
+{
+    private int x;
+    private int y;
+    private int radius;
+    //the radius squared, so points are tested without a square root
+    private long radiusSquared;
+
+    /**
+     * Create a new CircleRegion.
+     * @param x the x coordinate of the center
+     * @param y the y coordinate of the center
+     * @param radius the radius
+     */
+    public CircleRegion(int x, int y, int radius)
+    {
+        this.x = x;
+        this.y = y;
+        this.radius = radius;
+        radiusSquared = (long)radius * radius;
+    }
+
+    /**
+     * Return the x coordinate of the center.
+     * @return the x coordinate
+     */
+    public int getX()
+    {
+        return x;
+    }
+
+    /**
+     * Return the y coordinate of the center.
+     * @return the y coordinate
+     */
+    public int getY()
+    {
+        return y;
+    }
+
+    /**
+     * Return the radius.
+     * @return the radius
+     */
+    public int getRadius()
+    {
+        return radius;
+    }
+
+    /**
+     * Return whether a point is in the circle.
+     * @param px the x coordinate of the point
+     * @param py the y coordinate of the point
+     * @return true if the point is in the circle
+     */
+    public boolean contains(int px, int py)
+    {
+        long dx = px - x;
+        long dy = py - y;
+        return dx * dx + dy * dy <= radiusSquared;
+    }
+
+    /**
+     * Return whether the circle overlaps a quadrant, by checking the point
+     * of the quadrant closest to the center.
+     * @param xmin the minimum x value of the quadrant
+     * @param ymin the minimum y value of the quadrant
+     * @param xmax the maximum x value of the quadrant
+     * @param ymax the maximum y value of the quadrant
+     * @return true if the circle and quadrant share a point
+     */
+    public boolean intersects(int xmin, int ymin, int xmax, int ymax)
+    {
+        return contains(Math.max(xmin, Math.min(x, xmax)),
+            Math.max(ymin, Math.min(y, ymax)));
+    }
+
+    /**
+     * Return whether the circle covers a quadrant.  A circle is convex, so
+     * it covers the quadrant if it holds all four corners.
+     * @param xmin the minimum x value of the quadrant
+     * @param ymin the minimum y value of the quadrant
+     * @param xmax the maximum x value of the quadrant
+     * @param ymax the maximum y value of the quadrant
+     * @return true if the quadrant is inside the circle
+     */
+    public boolean covers(int xmin, int ymin, int xmax, int ymax)
+    {
+        return contains(xmin, ymin) && contains(xmax, ymin)
+            && contains(xmin, ymax) && contains(xmax, ymax);
+    }
+
+    /**
+     * Return the circle the way a search command gives it.
+     * @return the center and radius
+     */
+    public String toString()
+    {
+        return "search " + x + " " + y + " " + radius;
+    }
+}
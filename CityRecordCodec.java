@@ -0,0 +1,120 @@
+import java.nio.charset.Charset;
+
+// -------------------------------------------------------------------------
+/**
+ *  Converts CityRecords to and from the messages they are stored as.
+ *
+ *  A CityRecord looks like this in memory:
+ *  byte .... data
+ *  0-1 ..... x coordinate
+ *  2-3 ..... y coordinate
+ *  4- ...... varint length of the name, then the name in UTF-8
+ *
+ *  Coordinates are stored as 2 unsigned bytes, which covers the
+ *  PRQuadTree's 0 to 2^14 - 1 coordinate space.
+ *
+ *  @author Joshua Rush
+ *  @author Benjamin Roble
+ *  @version Nov 24, 2011
+ */
+public class CityRecordCodec implements RecordCodec<CityRecord>
+{
+    //the character set city names are stored in
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    //the position of the name length in a message
+    private static final int NAME_POS = 4;
+
+    /**
+     * Return the message a city is stored as.
+     * @param record the city
+     * @return the city's message
+     */
+    public byte[] encode(CityRecord record)
+    {
+        byte[] name = record.getName().getBytes(UTF8);
+        byte[] message = new byte[NAME_POS + VarInt.size(name.length)
+            + name.length];
+        writeCoord(record.getX(), message, 0);
+        writeCoord(record.getY(), message, 2);
+        int pos = VarInt.write(name.length, message, NAME_POS);
+        System.arraycopy(name, 0, message, pos, name.length);
+        return message;
+    }
+
+    /**
+     * Build a city from its message.
+     * @param message the bytes of the city's message
+     * @param size the size of the message
+     * @return the city
+     */
+    public CityRecord decode(byte[] message, int size)
+    {
+        int nameLength = VarInt.read(message, NAME_POS);
+        int namePos = NAME_POS + VarInt.size(nameLength);
+        String name = new String(message, namePos, nameLength, UTF8);
+        return new CityRecord(readX(message), readY(message), name);
+    }
+
+    /**
+     * Return the x coordinate stored in a city's message.
+     * @param message the bytes of the city's message
+     * @return the x coordinate
+     */
+    public int readX(byte[] message)
+    {
+        return readCoord(message, 0);
+    }
+
+    /**
+     * Return the y coordinate stored in a city's message.
+     * @param message the bytes of the city's message
+     * @return the y coordinate
+     */
+    public int readY(byte[] message)
+    {
+        return readCoord(message, 2);
+    }
+
+    /**
+     * Return the x coordinate of a city.
+     * @param record the city
+     * @return the x coordinate
+     */
+    public int getX(CityRecord record)
+    {
+        return record.getX();
+    }
+
+    /**
+     * Return the y coordinate of a city.
+     * @param record the city
+     * @return the y coordinate
+     */
+    public int getY(CityRecord record)
+    {
+        return record.getY();
+    }
+
+    /**
+     * Write a coordinate as 2 big endian bytes.
+     * @param coord the coordinate
+     * @param message the message to write to
+     * @param pos the position of the first byte
+     */
+    private static void writeCoord(int coord, byte[] message, int pos)
+    {
+        message[pos] = (byte)(coord >> 8);
+        message[pos + 1] = (byte)coord;
+    }
+
+    /**
+     * Read a coordinate stored as 2 big endian bytes.
+     * @param message the message to read from
+     * @param pos the position of the first byte
+     * @return the coordinate
+     */
+    private static int readCoord(byte[] message, int pos)
+    {
+        return ((message[pos] & 0xFF) << 8) | (message[pos + 1] & 0xFF);
+    }
+}
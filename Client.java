@@ -17,10 +17,31 @@ import java.util.Scanner;
  */
 public class Client
 {
+    //the binary file the records and quadtree nodes are stored in
+    private static final String POOL_FILE = "p4bin.dat";
+    //the number of buffers in the buffer pool
+    private static final int NUM_BUFFERS = 10;
+    //the size of the memory pool in bytes
+    private static final long POOL_SIZE = 1L << 32;
+    //the most bytes of heap the decoded node cache can use
+    private static final long NODE_CACHE_SIZE = 1 << 20;
+    //the most bytes of heap the nodes kept resident for searches can use
+    private static final long NODE_PAGER_SIZE = 1 << 22;
+    //the most bytes of heap the cached search and find results can use
+    private static final long SEARCH_CACHE_SIZE = 1 << 20;
+    private static final long FIND_CACHE_SIZE = 1 << 18;
+
+    //The buffer pool the records and nodes are read and written through
+    private static BufferPool bufferPool;
     //The quadtree the Client uses to manage records using point keys
-    private static PRQuadTree<CityRecord> qt = new PRQuadTree<CityRecord>();
-    //The binary Search Tree the Client uses to manage records using name keys
-    private static BinarySearchTree<String, CityRecord> bst = new BinarySearchTree<String, CityRecord>();
+    private static PRQuadTree<CityRecord> qt;
+    //The binary Search Tree the Client uses to find the handles of records
+    //using name keys
+    private static BinarySearchTree<String, Long> bst = new BinarySearchTree<String, Long>();
+    //a run of plain search commands waiting to be made in one batch, and
+    //the x, y and radius of each
+    private static ArrayList<String> pendingSearches = new ArrayList<String>();
+    private static ArrayList<int[]> pendingAreas = new ArrayList<int[]>();
 
     /**
      * Create a new Client to handle records and execute a list of commands
@@ -30,7 +51,15 @@ public class Client
      */
     public Client(String fileName) throws FileNotFoundException
     {
+        bufferPool = new BufferPool(NUM_BUFFERS, new File(POOL_FILE));
+        MemoryManager manager = new MemoryManager(POOL_SIZE, bufferPool);
+        manager.setNodeCache(new NodeCache(NODE_CACHE_SIZE));
+        manager.setNodePager(new NodePager(NODE_PAGER_SIZE));
+        qt = new PRQuadTree<CityRecord>(manager, new CityRecordCodec());
+        qt.setSearchCache(new SearchCache<CityRecord>(SEARCH_CACHE_SIZE));
+        bst.setFindCache(new ResultCache<String, List<Long>>(FIND_CACHE_SIZE));
         executeCommands(fileName);
+        bufferPool.flush();
     }
     /**
      * Executes the commands for storing and managing records
@@ -52,6 +81,7 @@ public class Client
                 parseCommand(lineScanner.nextLine());
                 x++;
             }
+            flushSearches();
         }
         finally
         {
@@ -71,8 +101,22 @@ public class Client
         //using ' ' as a tokenizer, get the first token and determine what the
         //command is
         if(st.hasMoreTokens()) {
-            printTokens(trimString);
             String command = st.nextToken();
+            if(command.equalsIgnoreCase("search") && st.countTokens() == 3) {
+                //hold plain searches so a run of them is made in one pass.
+                //They are parsed now, so a bad one is reported in its place
+                //by parseSearch rather than when the run is made.
+                int[] area = parseArea(st);
+                if(area != null) {
+                    pendingSearches.add(trimString);
+                    pendingAreas.add(area);
+                    return;
+                }
+                st = new StringTokenizer(trimString, " ");
+                st.nextToken();
+            }
+            flushSearches();
+            printTokens(trimString);
 
             if(command.equalsIgnoreCase("insert"))
                 parseInsert(st);
@@ -82,6 +126,26 @@ public class Client
                 parseFind(st);
             else if(command.equalsIgnoreCase("search"))
                 parseSearch(st);
+            else if(command.equalsIgnoreCase("load"))
+                parseLoad(st);
+            else if(command.equalsIgnoreCase("nearest"))
+                parseNearest(st);
+            else if(command.equalsIgnoreCase("count"))
+                parseCount(st);
+            else if(command.equalsIgnoreCase("heatmap"))
+                parseHeatmap(st);
+            else if(command.equalsIgnoreCase("pairs"))
+                parsePairs(st);
+            else if(command.equalsIgnoreCase("explain"))
+                parseExplain(st);
+            else if(command.equalsIgnoreCase("slowlog"))
+                parseSlowLog(st);
+            else if(command.equalsIgnoreCase("cachestats"))
+                cacheStatsRequest();
+            else if(command.equalsIgnoreCase("rect"))
+                parseRect(st);
+            else if(command.equalsIgnoreCase("polygon"))
+                parsePolygon(st);
             else if(command.equalsIgnoreCase("debug"))
                 debugRequest();
             else if(command.equalsIgnoreCase("makenull"))
@@ -90,6 +154,24 @@ public class Client
                 System.out.println("Invalid command '" + command + "'");
         }
     }
+    /**
+     * Parses the x, y and radius of a plain search command.
+     * @param commandToken the three arguments separated in a StringTokenizer
+     * @return the x, y and radius, or null if one isn't a number
+     */
+    private static int[] parseArea(StringTokenizer commandToken) {
+        try
+        {
+            return new int[] {Integer.parseInt(commandToken.nextToken()),
+                Integer.parseInt(commandToken.nextToken()),
+                Integer.parseInt(commandToken.nextToken())};
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
     /**
      * Print the command given by the string in tokens to avoid extra whitespace.
      * @param st the string containing the command to print
@@ -145,9 +227,10 @@ public class Client
         }
         CityRecord rec = new CityRecord(x, y, name);
 
-    	if(qt.insert(rec, x, y))
+    	long handle = qt.insert(rec, x, y);
+    	if(handle != Handle.EMPTY)
     	{
-    	    bst.insert(name, rec);
+    	    bst.insert(name, handle);
     	    System.out.println("Insertion successful");
     	}
     	else
@@ -155,6 +238,90 @@ public class Client
     	    		" already exists");
     }
 
+    /**
+     * Parses the "load file" command. If it is a valid command
+     * syntax, the load will be processed.
+     * @param commandToken the command to process separated in a StringTokenizer
+     */
+    private static void parseLoad(StringTokenizer commandToken) {
+        if(commandToken.countTokens() != 1)
+        {
+            System.out.println("Load commands MUST be in the format " +
+                    "'load file'");
+            while(commandToken.hasMoreTokens()) {
+                System.out.print(commandToken.nextToken());
+            }
+            return;
+        }
+
+        loadRequest(commandToken.nextToken());
+    }
+
+    /**
+     * loadRequest inserts every city in a file into the PRQuadTree and BST
+     * at once.  Each line of the file holds one city as 'x y name'.  Lines
+     * that aren't in that format or are out of bounds are skipped, as are
+     * cities at the same coordinates as one already loaded.
+     * @param fileName the file of cities to load
+     */
+    private static void loadRequest(String fileName) {
+        ArrayList<CityRecord> cities = new ArrayList<CityRecord>();
+        int skipped = 0;
+        Scanner lineScanner;
+        try
+        {
+            lineScanner = new Scanner(new File(fileName));
+        }
+        catch (FileNotFoundException e)
+        {
+            System.out.println("Load failed, could not open '" + fileName + "'");
+            return;
+        }
+        try
+        {
+            while(lineScanner.hasNextLine())
+            {
+                StringTokenizer st = new StringTokenizer(lineScanner.nextLine());
+                if(st.countTokens() != 3)
+                {
+                    skipped++;
+                    continue;
+                }
+                try
+                {
+                    int x = Integer.parseInt(st.nextToken());
+                    int y = Integer.parseInt(st.nextToken());
+                    if (x > qt.MAX_COORD || y > qt.MAX_COORD || x < 0 || y < 0)
+                        skipped++;
+                    else
+                        cities.add(new CityRecord(x, y, st.nextToken()));
+                }
+                catch (NumberFormatException e)
+                {
+                    skipped++;
+                }
+            }
+        }
+        finally
+        {
+            lineScanner.close();
+        }
+
+        long[] handles = qt.load(cities);
+        int loaded = 0;
+        for(int i = 0; i < handles.length; i++)
+        {
+            if(handles[i] != Handle.EMPTY)
+            {
+                bst.insert(cities.get(i).getName(), handles[i]);
+                loaded++;
+            }
+            else
+                skipped++;
+        }
+        System.out.println("Loaded " + loaded + " cities, skipped " + skipped);
+    }
+
     /**
      * Parses the "remove x y name" and "remove name" command. If it is a valid command
      * syntax, the removal will be processed.
@@ -199,9 +366,11 @@ public class Client
             System.out.println("Remove failed, coordinates are out of bounds");
             return;
         }
+      	//two cities can share a name, so take out this record's own handle
+      	long handle = qt.getHandle(x, y);
       	CityRecord rec = qt.remove(x, y);
       	if(rec != null) {
-      	    bst.remove(rec.getName());
+      	    bst.remove(rec.getName(), handle);
       	    System.out.println("Removed the city record of "+rec);
       	}
       	else
@@ -216,9 +385,10 @@ public class Client
      */
 
     private static void removeRequest(String name) {
-        CityRecord rec = bst.remove(name);
-    	if (rec != null)
+        Long handle = bst.remove(name);
+    	if (handle != null)
 	    {
+	        CityRecord rec = qt.getRecord(handle);
 	        qt.remove(rec.getX(), rec.getY());
 	        System.out.println("Removed the record of "+rec);
 	    }
@@ -254,29 +424,310 @@ public class Client
      */
 
     private static void findRequest(String name) {
-    	List<CityRecord> recList = bst.find(name);
-    	if(recList.size() <= 0) {
+    	List<Long> handleList = bst.find(name);
+    	if(handleList.size() <= 0) {
     	    System.out.println("Could not find any cities with the name '"+name+"'.");
     	    return;
     	}
 
-    	for(CityRecord rec : recList) {
+    	for(long handle : handleList) {
+    	    CityRecord rec = qt.getRecord(handle);
     	    System.out.println("Found the city "+rec.getName() + " located at ("+rec.getX()+", "+rec.getY()+").");
     	}
     }
 
     /**
-     * Parses the "search x y radius" command. If it is a valid command
-     * syntax, the search will be processed.
+     * Parses the "search x y radius [limit [token]]" command. If it is a
+     * valid command syntax, the search will be processed.  A plain search
+     * prints the nodes it searched and then its cities in the order of the
+     * tree walk.  A search given a limit pages through its cities in Morton
+     * order, the order a cursor returns them in, and prints the nodes it
+     * searched after them, not counting empty quadrants.
      * @param commandToken the command to process separated in a StringTokenizer
      */
     private static void parseSearch(StringTokenizer commandToken) {
         int numTokens = commandToken.countTokens();
 
-        if(numTokens != 3)
+        if(numTokens < 3 || numTokens > 5)
         {
             System.out.println("Search commands MUST be in the format " +
-                    "'search x y radius'");
+                    "'search x y radius [limit [token]]'");
+            while(commandToken.hasMoreTokens()) {
+                System.out.print(commandToken.nextToken());
+            }
+            return;
+        }
+
+        int x;
+        int y;
+        int radius;
+        long limit = Long.MAX_VALUE;
+        long token = -1;
+        try
+        {
+            x = Integer.parseInt(commandToken.nextToken());
+            y = Integer.parseInt(commandToken.nextToken());
+            radius = Integer.parseInt(commandToken.nextToken());
+            if(commandToken.hasMoreTokens())
+                limit = Long.parseLong(commandToken.nextToken());
+            if(commandToken.hasMoreTokens())
+                token = Long.parseLong(commandToken.nextToken());
+        }
+        catch (NumberFormatException e)
+        {
+            System.out.println("Search commands MUST be in the format " +
+                    "'search x y radius [limit [token]]'");
+            return;
+        }
+
+        searchRequest(x,y,radius,limit,token);
+    }
+
+    /**
+     * searchRequest finds all cities in a given radius from the x,y coordinate
+     * the absolute value of the x and y must be less than 2^14, and the radius
+     * must be a positive integer less than 2^14.  The cities are streamed out
+     * of a cursor in Morton order as they are found, and the number of nodes
+     * the cursor read is printed after them.  At most limit cities are
+     * printed, followed by a token to pass to continue the search.
+     * @param x the x coordinate of the search area center
+     * @param y the y coordinate of the search area center
+     * @param radius the radius of the search area
+     * @param limit the most cities to print
+     * @param token the token printed by an earlier search to continue from,
+     * or -1 to start at the beginning
+     */
+    private static void searchRequest(int x, int y, int radius, long limit,
+        long token) {
+        if (!checkSearchArea(x, y, radius))
+            return;
+        if (limit <= 0)
+        {
+            System.out.println("Limit value is invalid");
+            return;
+        }
+        PRQuadTree<CityRecord>.Cursor cursor =
+            qt.cursor(new CircleRegion(x, y, radius), token).limit(limit);
+        int found = 0;
+        while(cursor.hasNext()) {
+            CityRecord rec = cursor.next();
+            System.out.println("Found the city " + rec.getName() +
+                " located at ("+rec.getX()+", "+rec.getY()+").");
+            found++;
+        }
+        System.out.println("Searched " + cursor.getNodesVisited() + " nodes");
+
+        if(found <= 0) {
+            System.out.println("Could not find any cities within "+radius+" units of ("+x+", "+y+").");
+            return;
+        }
+        if(found == limit && cursor.limit(1).hasNext())
+            System.out.println("More cities found, continue with token " +
+                cursor.getToken());
+    }
+
+    /**
+     * Checks the search area of a search, printing why if it is invalid.
+     * @param x the x coordinate of the search area center
+     * @param y the y coordinate of the search area center
+     * @param radius the radius of the search area
+     * @return true if the search area is valid
+     */
+    private static boolean checkSearchArea(int x, int y, int radius) {
+        if (Math.abs(x) > qt.MAX_COORD || Math.abs(y) > qt.MAX_COORD)
+        {
+            System.out.println("Coordinates are out of bounds");
+            return false;
+        }
+        if (radius < 0 || radius >= qt.MAX_COORD)
+        {
+            System.out.println("Radius value is invalid");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Runs the plain search commands held since the last other command as
+     * a single batch search, then prints each one's output just as
+     * searchRequest would have, in the order they were given.
+     */
+    private static void flushSearches() {
+        if(pendingSearches.isEmpty())
+            return;
+        //batch the valid searches, invalid ones just print why below
+        ArrayList<QueryRegion> regions = new ArrayList<QueryRegion>();
+        for(int[] area : pendingAreas) {
+            if (Math.abs(area[0]) <= qt.MAX_COORD
+                && Math.abs(area[1]) <= qt.MAX_COORD
+                && area[2] >= 0 && area[2] < qt.MAX_COORD)
+                regions.add(new CircleRegion(area[0], area[1], area[2]));
+        }
+        int[] visited = new int[regions.size()];
+        ArrayList<ArrayList<CityRecord>> results =
+            qt.search(regions.toArray(new QueryRegion[regions.size()]), visited);
+
+        int next = 0;
+        for(int i = 0; i < pendingSearches.size(); i++) {
+            printTokens(pendingSearches.get(i));
+            int[] area = pendingAreas.get(i);
+            if (!checkSearchArea(area[0], area[1], area[2]))
+                continue;
+            System.out.println("Searched " + visited[next] + " nodes");
+            if(results.get(next).isEmpty())
+                System.out.println("Could not find any cities within " +
+                    area[2] + " units of (" + area[0] + ", " + area[1] + ").");
+            for(CityRecord rec : results.get(next)) {
+                System.out.println("Found the city " + rec.getName() +
+                    " located at ("+rec.getX()+", "+rec.getY()+").");
+            }
+            next++;
+        }
+        pendingSearches.clear();
+        pendingAreas.clear();
+    }
+
+    /**
+     * Parses the "rect xmin ymin xmax ymax" command. If it is a valid command
+     * syntax, the rectangle search will be processed.
+     * @param commandToken the command to process separated in a StringTokenizer
+     */
+    private static void parseRect(StringTokenizer commandToken) {
+        if(commandToken.countTokens() != 4)
+        {
+            System.out.println("Rect commands MUST be in the format " +
+                    "'rect xmin ymin xmax ymax'");
+            while(commandToken.hasMoreTokens()) {
+                System.out.print(commandToken.nextToken());
+            }
+            return;
+        }
+
+        int xmin = Integer.valueOf(commandToken.nextToken());
+        int ymin = Integer.valueOf(commandToken.nextToken());
+        int xmax = Integer.valueOf(commandToken.nextToken());
+        int ymax = Integer.valueOf(commandToken.nextToken());
+        if (xmin > xmax || ymin > ymax)
+        {
+            System.out.println("Rectangle bounds are invalid");
+            return;
+        }
+
+        regionRequest(new RectangleRegion(xmin, ymin, xmax, ymax));
+    }
+
+    /**
+     * Parses the "polygon x1 y1 x2 y2 x3 y3 ..." command. If it is a valid
+     * command syntax, the polygon search will be processed.
+     * @param commandToken the command to process separated in a StringTokenizer
+     */
+    private static void parsePolygon(StringTokenizer commandToken) {
+        int numTokens = commandToken.countTokens();
+        if(numTokens < 6 || numTokens % 2 != 0)
+        {
+            System.out.println("Polygon commands MUST be in the format " +
+                    "'polygon x1 y1 x2 y2 x3 y3 ...'");
+            while(commandToken.hasMoreTokens()) {
+                System.out.print(commandToken.nextToken());
+            }
+            return;
+        }
+
+        int[] xs = new int[numTokens / 2];
+        int[] ys = new int[numTokens / 2];
+        for(int i = 0; i < xs.length; i++) {
+            xs[i] = Integer.valueOf(commandToken.nextToken());
+            ys[i] = Integer.valueOf(commandToken.nextToken());
+        }
+
+        regionRequest(new PolygonRegion(xs, ys));
+    }
+
+    /**
+     * regionRequest finds all cities inside a rectangle or polygon.
+     * @param region the region to search
+     */
+    private static void regionRequest(QueryRegion region) {
+        ArrayList<CityRecord> recList = qt.search(region);
+        // the QuadTree prints how many nodes it looked at when searching
+
+        if(recList.size() <= 0) {
+            System.out.println("Could not find any cities in the region.");
+            return;
+        }
+
+        for(CityRecord rec : recList) {
+            System.out.println("Found the city " + rec.getName() +
+                " located at ("+rec.getX()+", "+rec.getY()+").");
+        }
+    }
+
+    /**
+     * Parses the "nearest x y k" command. If it is a valid command
+     * syntax, the nearest neighbor search will be processed.
+     * @param commandToken the command to process separated in a StringTokenizer
+     */
+    private static void parseNearest(StringTokenizer commandToken) {
+        if(commandToken.countTokens() != 3)
+        {
+            System.out.println("Nearest commands MUST be in the format " +
+                    "'nearest x y k'");
+            while(commandToken.hasMoreTokens()) {
+                System.out.print(commandToken.nextToken());
+            }
+            return;
+        }
+
+        int x = Integer.valueOf(commandToken.nextToken());
+        int y = Integer.valueOf(commandToken.nextToken());
+        int k = Integer.valueOf(commandToken.nextToken());
+
+        nearestRequest(x, y, k);
+    }
+
+    /**
+     * nearestRequest finds the k cities closest to the x,y coordinate,
+     * closest first.  The absolute value of x and y must be less than 2^14,
+     * and k must be a positive integer.
+     * @param x the x coordinate of the query point
+     * @param y the y coordinate of the query point
+     * @param k the number of cities to find
+     */
+    private static void nearestRequest(int x, int y, int k) {
+        if (Math.abs(x) > qt.MAX_COORD || Math.abs(y) > qt.MAX_COORD)
+        {
+            System.out.println("Coordinates are out of bounds");
+            return;
+        }
+        if (k <= 0)
+        {
+            System.out.println("Number of cities is invalid");
+            return;
+        }
+        ArrayList<CityRecord> recList = qt.nearest(x, y, k);
+        // the QuadTree prints how many nodes it looked at when searching
+
+        if(recList.size() <= 0) {
+            System.out.println("Could not find any cities near ("+x+", "+y+").");
+            return;
+        }
+
+        for(CityRecord rec : recList) {
+            System.out.println("Found the city " + rec.getName() +
+                " located at ("+rec.getX()+", "+rec.getY()+").");
+        }
+    }
+
+    /**
+     * Parses the "count x y radius" command. If it is a valid command
+     * syntax, the count will be processed.
+     * @param commandToken the command to process separated in a StringTokenizer
+     */
+    private static void parseCount(StringTokenizer commandToken) {
+        if(commandToken.countTokens() != 3)
+        {
+            System.out.println("Count commands MUST be in the format " +
+                    "'count x y radius'");
             while(commandToken.hasMoreTokens()) {
                 System.out.print(commandToken.nextToken());
             }
@@ -287,18 +738,18 @@ public class Client
         int y = Integer.valueOf(commandToken.nextToken());
         int radius = Integer.valueOf(commandToken.nextToken());
 
-        searchRequest(x,y,radius);
+        countRequest(x, y, radius);
     }
 
     /**
-     * searchRequest finds all cities in a given radius from the x,y coordinate
-     * the absolute value of the x and y must be less than 2^14, and the radius
-     * must be a positive integer less than 2^14.
+     * countRequest counts the cities in a given radius from the x,y
+     * coordinate without listing them.  The same bounds as searchRequest
+     * apply.
      * @param x the x coordinate of the search area center
      * @param y the y coordinate of the search area center
      * @param radius the radius of the search area
      */
-    private static void searchRequest(int x, int y, int radius) {
+    private static void countRequest(int x, int y, int radius) {
         if (Math.abs(x) > qt.MAX_COORD || Math.abs(y) > qt.MAX_COORD)
         {
             System.out.println("Coordinates are out of bounds");
@@ -309,19 +760,241 @@ public class Client
             System.out.println("Radius value is invalid");
             return;
         }
-    	ArrayList<CityRecord> recList = qt.search(x, y, radius);
-    	// the QuadTree should print how how many nodes it looked at when searching
+        int count = qt.count(x, y, radius);
+        // the QuadTree prints how many nodes it looked at when counting
 
-    	if(recList.size() <= 0) {
-    	    System.out.println("Could not find any cities within "+radius+" units of ("+x+", "+y+").");
-    	    return;
-    	}
+        System.out.println("Counted " + count + " cities within " + radius +
+            " units of (" + x + ", " + y + ").");
+    }
 
-    	for(CityRecord rec : recList) {
-    	    System.out.println("Found the city " + rec.getName() +
-    	        " located at ("+rec.getX()+", "+rec.getY()+").");
-    	}
+    /**
+     * Parses the "heatmap level [centroids]" command. If it is a valid
+     * command syntax, the grid will be printed.
+     * @param commandToken the command to process separated in a StringTokenizer
+     */
+    private static void parseHeatmap(StringTokenizer commandToken) {
+        int numTokens = commandToken.countTokens();
+        if(numTokens < 1 || numTokens > 2)
+        {
+            System.out.println("Heatmap commands MUST be in the format " +
+                    "'heatmap level [centroids]'");
+            while(commandToken.hasMoreTokens()) {
+                System.out.print(commandToken.nextToken());
+            }
+            return;
+        }
+
+        int level = Integer.valueOf(commandToken.nextToken());
+        boolean centroids = false;
+        if(numTokens == 2) {
+            String option = commandToken.nextToken();
+            if(!option.equalsIgnoreCase("centroids")) {
+                System.out.println("Invalid heatmap option '" + option + "'");
+                return;
+            }
+            centroids = true;
+        }
+
+        heatmapRequest(level, centroids);
+    }
+
+    /**
+     * heatmapRequest prints the number of cities in each cell of a grid
+     * with 2^level cells on a side, one line per non-empty cell.  The level
+     * must be from 0 to 14.
+     * @param level the resolution of the grid
+     * @param centroids whether to print the centroid of each cell's cities
+     */
+    private static void heatmapRequest(int level, boolean centroids) {
+        if (level < 0 || level > Morton.BITS)
+        {
+            System.out.println("Level value is invalid");
+            return;
+        }
+        ArrayList<GridCell> cells = qt.aggregate(level, centroids);
+        // the QuadTree prints how many nodes it looked at when aggregating
+
+        int total = 0;
+        for(GridCell cell : cells) {
+            String line = "Cell (" + cell.getColumn() + ", " + cell.getRow() +
+                ") from (" + cell.getXMin() + ", " + cell.getYMin() + ") to (" +
+                cell.getXMax() + ", " + cell.getYMax() + ") has " +
+                cell.getCount() + " cities";
+            if (cell.hasCentroid())
+                line += " centered at (" +
+                    String.format("%.1f", cell.getCentroidX()) + ", " +
+                    String.format("%.1f", cell.getCentroidY()) + ")";
+            System.out.println(line + ".");
+            total += cell.getCount();
+        }
+        System.out.println("Counted " + total + " cities in " + cells.size() +
+            " cells.");
+    }
+
+    /**
+     * Parses the "pairs distance" command. If it is a valid command syntax,
+     * the pairs will be printed.
+     * @param commandToken the command to process separated in a StringTokenizer
+     */
+    private static void parsePairs(StringTokenizer commandToken) {
+        if(commandToken.countTokens() != 1)
+        {
+            System.out.println("Pairs commands MUST be in the format " +
+                    "'pairs distance'");
+            while(commandToken.hasMoreTokens()) {
+                System.out.print(commandToken.nextToken());
+            }
+            return;
+        }
+
+        int distance = Integer.valueOf(commandToken.nextToken());
+
+        pairsRequest(distance);
+    }
+
+    /**
+     * pairsRequest prints every pair of cities within distance of each
+     * other, one line per pair.  The distance has the same bounds as a
+     * search radius.
+     * @param distance the farthest apart two cities of a pair can be
+     */
+    private static void pairsRequest(final int distance) {
+        if (distance < 0 || distance >= qt.MAX_COORD)
+        {
+            System.out.println("Distance value is invalid");
+            return;
+        }
+        long pairs = qt.join(distance,
+            new PairVisitor<CityRecord, CityRecord>() {
+                public void visit(CityRecord first, CityRecord second) {
+                    System.out.println("Found the cities " + first.getName() +
+                        " located at (" + first.getX() + ", " + first.getY() +
+                        ") and " + second.getName() + " located at (" +
+                        second.getX() + ", " + second.getY() + ").");
+                }
+            });
+        // the QuadTree prints how many pairs of nodes it looked at
+
+        System.out.println("Found " + pairs + " pairs of cities within " +
+            distance + " units of each other.");
+    }
+
+    /**
+     * Parses the "explain search x y radius" command. If it is a valid
+     * command syntax, the search will be processed and its profile printed.
+     * @param commandToken the command to process separated in a StringTokenizer
+     */
+    private static void parseExplain(StringTokenizer commandToken) {
+        if(commandToken.countTokens() != 4
+            || !commandToken.nextToken().equalsIgnoreCase("search"))
+        {
+            System.out.println("Explain commands MUST be in the format " +
+                    "'explain search x y radius'");
+            while(commandToken.hasMoreTokens()) {
+                System.out.print(commandToken.nextToken());
+            }
+            return;
+        }
 
+        int x = Integer.valueOf(commandToken.nextToken());
+        int y = Integer.valueOf(commandToken.nextToken());
+        int radius = Integer.valueOf(commandToken.nextToken());
+
+        explainRequest(x, y, radius);
+    }
+
+    /**
+     * explainRequest finds all cities in a given radius from the x,y
+     * coordinate like searchRequest, then prints what the search did.  The
+     * same bounds as searchRequest apply.
+     * @param x the x coordinate of the search area center
+     * @param y the y coordinate of the search area center
+     * @param radius the radius of the search area
+     */
+    private static void explainRequest(int x, int y, int radius) {
+        if (!checkSearchArea(x, y, radius))
+            return;
+        QueryProfile profile = new QueryProfile();
+        ArrayList<CityRecord> recList = qt.search(x, y, radius, profile);
+        // the QuadTree prints how many nodes it looked at when searching
+
+        for(CityRecord rec : recList) {
+            System.out.println("Found the city " + rec.getName() +
+                " located at ("+rec.getX()+", "+rec.getY()+").");
+        }
+        if(recList.isEmpty())
+            System.out.println("Could not find any cities within "+radius+" units of ("+x+", "+y+").");
+        System.out.println("Region nodes visited: " + profile.getRegionNodes());
+        System.out.println("Leaf nodes visited: " + profile.getLeafNodes());
+        System.out.println("Quadrants pruned: " +
+            profile.getQuadrantsPruned());
+        System.out.println("Points tested: " + profile.getPointsTested());
+        System.out.println("Results: " + profile.getResults());
+        System.out.println("Buffer pool hits: " + profile.getBufferHits() +
+            ", misses: " + profile.getBufferMisses());
+        System.out.println("Bytes read: " + profile.getBytesRead());
+        System.out.println(String.format("Time: %.3f ms",
+            profile.getWallTime() / 1000000.0));
+    }
+
+    /**
+     * Parses the "slowlog milliseconds" and "slowlog off" command. If it is
+     * a valid command syntax, the slow query log will be set.
+     * @param commandToken the command to process separated in a StringTokenizer
+     */
+    private static void parseSlowLog(StringTokenizer commandToken) {
+        if(commandToken.countTokens() != 1)
+        {
+            System.out.println("Slowlog commands MUST be in the format " +
+                    "'slowlog milliseconds' or 'slowlog off'");
+            while(commandToken.hasMoreTokens()) {
+                System.out.print(commandToken.nextToken());
+            }
+            return;
+        }
+
+        String threshold = commandToken.nextToken();
+        if(threshold.equalsIgnoreCase("off"))
+        {
+            qt.setSlowQueryLog(null, 0);
+            System.out.println("Slow query log is off");
+            return;
+        }
+        long millis = Long.valueOf(threshold);
+        if (millis < 0)
+        {
+            System.out.println("Threshold value is invalid");
+            return;
+        }
+        qt.setSlowQueryLog(System.out, millis);
+        System.out.println("Logging searches that take at least " + millis +
+            " ms");
+    }
+
+    /**
+     * Handles the "cachestats" command, printing how well the search and
+     * find caches are doing.
+     */
+    private static void cacheStatsRequest() {
+        printCacheStats("Search", qt.getSearchCache());
+        printCacheStats("Find", bst.getFindCache());
+    }
+
+    /**
+     * Prints the hit rate and size of one result cache.
+     * @param name the name of the cache
+     * @param cache the cache, or null if there isn't one
+     */
+    private static void printCacheStats(String name, ResultCache<?, ?> cache) {
+        if(cache == null) {
+            System.out.println(name + " cache is off");
+            return;
+        }
+        System.out.println(name + " cache: " + cache.getHits() + " hits, " +
+            cache.getMisses() + " misses, " +
+            String.format("%.1f%% hit rate, ", 100 * cache.getHitRate()) +
+            cache.size() + " results in " + cache.getUsedBytes() +
+            " bytes, " + cache.getInvalidations() + " invalidated");
     }
 
     /**
@@ -14,19 +14,19 @@ public class FreeBlockList
 {
     //NOT_ENOUGH_SPACE serves as a value to indicate not enough space was in the
     //freelist to process a request.
-    private final int NOT_ENOUGH_SPACE = -1;
+    private final long NOT_ENOUGH_SPACE = -1;
     //head and tail serve as sentinel nodes in the doubly linked list
     private Node head;
     private Node tail;
     //memorySize holds the value for the Freelist's total capacity.
-    private int memorySize;
+    private long memorySize;
 
     /**
      * Create a new FreeblockList with one node representing a free
      * block the size of the memory pool.
      * @param memorySize the initial size of the freeblockList in bytes.
      */
-    public FreeBlockList(int memorySize)
+    public FreeBlockList(long memorySize)
     {
         head = new Node(0, 0);
         tail = new Node(0, 0);
@@ -44,7 +44,7 @@ public class FreeBlockList
      * @return the position in memory where the used block will start or -1 if
      * not enough space exists.
      */
-    public int use(int size)
+    public long use(long size)
     {
         Node currentNode = tail;
         //search from the tail to find the smallest free block that can be used.
@@ -73,7 +73,7 @@ public class FreeBlockList
      * @param size the size in bytes of the new node being added
      * @param position the position in memory where the new node starts
      */
-    public void free(int size, int position)
+    public void free(long size, long position)
     {
         if (size > memorySize || position < 0 || position > memorySize)
         {
@@ -194,8 +194,8 @@ public class FreeBlockList
     {
       //~ Instance/static variables .........................................
 
-        private int size;
-        private int index;
+        private long size;
+        private long index;
         private Node next;
         private Node prev;
 
@@ -207,7 +207,7 @@ public class FreeBlockList
          * @param size the size of memory this node represent
          * @param index the starting position of this block of memory
          */
-        public Node(int size, int index)
+        public Node(long size, long index)
         {
             this(size, index, null, null);
         }
@@ -219,7 +219,7 @@ public class FreeBlockList
          * @param next the node to follow this one in the list
          * @param prev the node to precede this one in the list
          */
-        public Node(int size, int index, Node next, Node prev)
+        public Node(long size, long index, Node next, Node prev)
         {
             setSize(size);
             setIndex(index);
@@ -234,7 +234,7 @@ public class FreeBlockList
          * Set the size value stored in this node.
          * @param value the new size value to set
          */
-        public void setSize(int value)
+        public void setSize(long value)
         {
             size = value;
         }
@@ -243,7 +243,7 @@ public class FreeBlockList
          * Set the index value stored in this node.
          * @param value the new index value to set
          */
-        public void setIndex(int value)
+        public void setIndex(long value)
         {
             index = value;
         }
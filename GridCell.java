@@ -0,0 +1,133 @@
+// -------------------------------------------------------------------------
+/**
+ *  One cell of a density grid from PRQuadTree.aggregate: the square of the
+ *  coordinate space at a column and row of the grid, the number of records
+ *  in it, and, if they were asked for, the sums of the records' coordinates
+ *  for finding their centroid.
+ *
+ *  @author Joshua Rush
+ *  @author Benjamin Roble
+ *  @version Dec 2, 2011
+ */
+public class GridCell
+{
+    private int column;
+    private int row;
+    //the width and height of the cell
+    private int size;
+    private int count;
+    //the sums of the records' coordinates, or -1 if they weren't asked for
+    private long sumX;
+    private long sumY;
+
+    /**
+     * Create a new GridCell.
+     * @param column the column of the cell, counting from x = 0
+     * @param row the row of the cell, counting from y = 0
+     * @param size the width and height of the cell
+     * @param count the number of records in the cell
+     * @param sumX the sum of the records' x coordinates, or -1
+     * @param sumY the sum of the records' y coordinates, or -1
+     */
+    public GridCell(int column, int row, int size, int count, long sumX,
+        long sumY)
+    {
+        this.column = column;
+        this.row = row;
+        this.size = size;
+        this.count = count;
+        this.sumX = sumX;
+        this.sumY = sumY;
+    }
+
+    /**
+     * Return the column of the cell.
+     * @return the column, counting from x = 0
+     */
+    public int getColumn()
+    {
+        return column;
+    }
+
+    /**
+     * Return the row of the cell.
+     * @return the row, counting from y = 0
+     */
+    public int getRow()
+    {
+        return row;
+    }
+
+    /**
+     * Return the minimum x value in the cell.
+     * @return the minimum x value
+     */
+    public int getXMin()
+    {
+        return column * size;
+    }
+
+    /**
+     * Return the minimum y value in the cell.
+     * @return the minimum y value
+     */
+    public int getYMin()
+    {
+        return row * size;
+    }
+
+    /**
+     * Return the maximum x value in the cell.
+     * @return the maximum x value
+     */
+    public int getXMax()
+    {
+        return column * size + size - 1;
+    }
+
+    /**
+     * Return the maximum y value in the cell.
+     * @return the maximum y value
+     */
+    public int getYMax()
+    {
+        return row * size + size - 1;
+    }
+
+    /**
+     * Return the number of records in the cell.
+     * @return the number of records
+     */
+    public int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Return whether the cell has a centroid, which it does if centroids
+     * were asked for.
+     * @return true if getCentroidX and getCentroidY can be used
+     */
+    public boolean hasCentroid()
+    {
+        return sumX >= 0 && count > 0;
+    }
+
+    /**
+     * Return the mean x coordinate of the records in the cell.
+     * @return the centroid's x coordinate
+     */
+    public double getCentroidX()
+    {
+        return (double)sumX / count;
+    }
+
+    /**
+     * Return the mean y coordinate of the records in the cell.
+     * @return the centroid's y coordinate
+     */
+    public double getCentroidY()
+    {
+        return (double)sumY / count;
+    }
+}
@@ -1,32 +1,71 @@
-
 /**
- *  A class to represent the position a record is
- *  stored at in memory.
+ *  Handles are the positions records are stored at in memory.  A handle is
+ *  kept as a primitive long rather than an object, so the memory pool can
+ *  grow past 2 GB and a node doesn't need an object for each of its child
+ *  pointers.  This class holds the constants and helpers for working with
+ *  handles and for reading and writing them in node messages.
  *
  *  @author Joshua Rush
  *  @author Benjamin Roble
- *  @version Aug 28, 2011
+ *  @version Nov 22, 2011
  */
-public class Handle
+public final class Handle
 {
-    //position is where the record that this handle is associated
-    //with is stored.
-    private int position;
     /**
-     * Creates a new Handle object.
-     * @param posNum the position of the record
-     * this Handle represents in memory
+     * The handle of an empty child, which has no message.
+     */
+    public static final long EMPTY = -1;
+    /**
+     * The number of bytes a handle takes up in a node message.
+     */
+    public static final int SIZE = 8;
+    /**
+     * The number of bytes a handle took up in the original node messages,
+     * before handles were widened to longs.
+     */
+    public static final int NARROW_SIZE = 4;
+
+    /**
+     * Handles are plain longs, so this class is never instantiated.
      */
-    public Handle(int posNum)
+    private Handle()
     {
-        position = posNum;
+        //no instances
     }
+
+    /**
+     * Read a big endian handle from a message.  Narrow handles are sign
+     * extended, so a narrow EMPTY handle reads as EMPTY.
+     * @param message the message to read from
+     * @param pos the position of the handle's first byte
+     * @param width the number of bytes in the handle, SIZE or NARROW_SIZE
+     * @return the handle
+     */
+    public static long read(byte[] message, int pos, int width)
+    {
+        //the first byte keeps its sign, the rest are unsigned
+        long handle = message[pos];
+        for (int i = 1; i < width; i++)
+        {
+            handle = (handle << 8) | (message[pos + i] & 0xFF);
+        }
+        return handle;
+    }
+
     /**
-     * Returns the position associated with this Handle.
-     * @return the position of this Handle
+     * Write a handle into a message as SIZE big endian bytes.
+     * @param handle the handle to write
+     * @param message the message to write to
+     * @param pos the position to write the handle's first byte at
+     * @return the position just after the handle
      */
-    public int getPosition()
+    public static int write(long handle, byte[] message, int pos)
     {
-        return position;
+        for (int i = SIZE - 1; i >= 0; i--)
+        {
+            message[pos + i] = (byte)handle;
+            handle >>= 8;
+        }
+        return pos + SIZE;
     }
 }
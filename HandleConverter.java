@@ -1,64 +1,629 @@
-import java.nio.ByteBuffer;
-
+import java.util.Arrays;
 
 /**
- *  Write a one-sentence summary of your class here.
- *  Follow it with additional details about its purpose, what abstraction
- *  it represents, and how to use it.
+ *  Converts the node messages stored in a MemoryManager back into quadtree
+ *  nodes, and nodes into messages.  If the MemoryManager has a NodeCache,
+ *  nodes are looked up there first and cached after they are decoded.  The
+ *  decoders here are also used by NodeView, so every reader of a node
+ *  message agrees on its layout.
+ *
+ *  The first byte of a message is its type.  Nodes are written in the
+ *  COMPACT format:
+ *  byte .... data
+ *  0 ..... type: COMPACT, LEAF if a leaf, and for a region a mask with a
+ *          bit set for each empty child (NW is bit 1, NE 2, SW 3, SE 4)
+ *          and COUNTED and SUMMED
+ *  region: a varint count of the records under the region, varlong sums
+ *          of their x and of their y coordinates, then one varint for
+ *          each non-empty child, in NW, NE, SW, SE order
+ *  leaf: a varint record count, then one varint for each record, and with
+ *          POINTS a varint for each record's x coordinate followed by a
+ *          varint for each record's y coordinate
+ *  Each handle is stored as its zigzagged distance from the node's own
+ *  position, so nodes stored near their children and records stay small.
+ *
+ *  A compressed region stands in for a chain of regions with one child
+ *  each.  Its type has the PREFIXED mask, which no other region has since
+ *  a region always has a child, and the byte after it holds the region's
+ *  real mask in its low 4 bits and the depth of its quadrant in the high
+ *  4.  A varint of the quadrant's path from the root, two bits a level,
+ *  follows before the count.
+ *
+ *  Messages in the older formats are still read: a type of REGION or LEAF
+ *  has 4 byte handles, and with the WIDE bit set 8 byte handles.  Regions
+ *  in those formats, and compact regions without COUNTED, don't store
+ *  their count, and compact regions without SUMMED don't store the sums.
  *
  *  @author Josh
  *  @version Nov 16, 2011
  */
 public class HandleConverter
 {
+    /**
+     * The type byte of a region node.
+     */
+    public static final byte REGION = 0;
+    /**
+     * The type byte of a leaf node.
+     */
+    public static final byte LEAF = 1;
+    /**
+     * Set in the type byte of nodes whose handles are Handle.SIZE bytes
+     * rather than Handle.NARROW_SIZE bytes.
+     */
+    public static final byte WIDE = 0x20;
+    /**
+     * Set in the type byte of nodes whose handles are relative varints.
+     */
+    public static final byte COMPACT = 0x40;
+    /**
+     * Set in the type byte of compact regions that store the number of
+     * records under them.
+     */
+    public static final byte COUNTED = (byte)0x80;
+    /**
+     * Set in the type byte of counted compact regions that also store the
+     * sums of their records' coordinates.  Compact messages don't use the
+     * WIDE bit, so this shares it.
+     */
+    public static final byte SUMMED = WIDE;
+    /**
+     * Set in the type byte of compact leaves that store their records'
+     * coordinates after the handles.  Leaves have no empty child mask, so
+     * this shares the mask's first bit.
+     */
+    public static final byte POINTS = 0x02;
+    /**
+     * The empty child mask of a compressed compact region, every child
+     * empty, followed by the region's real mask and its depth and prefix.
+     */
+    public static final byte PREFIXED = 0x1E;
 
+    //the empty child mask in a compact region's type byte starts at this bit
+    private static final int MASK_SHIFT = 1;
+    //the largest a compact region message can be
+    private static final int MAX_REGION_SIZE = 2 + 2 * VarInt.MAX_INT_BYTES
+        + 6 * VarInt.MAX_LONG_BYTES;
 
     public HandleConverter()
     {
     }
 
-    public static Node convertToNode(Handle handle, MemoryManager manager)
+    /**
+     * Return whether a node's type byte is a region node's.
+     * @param type the first byte of the node's message
+     * @return true if the node is a region node, false if it is a leaf
+     */
+    public static boolean isRegion(byte type)
+    {
+        if ((type & COMPACT) != 0)
+            return (type & LEAF) == 0;
+        return (type & ~WIDE) == REGION;
+    }
+
+    /**
+     * Read the children of a region message, in NW, NE, SW, SE order.
+     * @param message the region's message
+     * @param size the size of the message
+     * @param position the position the message is stored at
+     * @param children an array of at least 4 handles to read the children
+     * into.  Empty children are read as Handle.EMPTY.
+     * @throws IllegalStateException if the children run past the end of the
+     * message, which can only happen to a message changed while it was read
+     */
+    public static void readChildren(byte[] message, int size, long position,
+        long[] children)
+    {
+        if ((message[0] & COMPACT) == 0)
+        {
+            int width = handleWidth(message[0]);
+            checkEnd(1 + 4 * width, size);
+            for (int i = 0; i <= 3; i++)
+            {
+                children[i] = Handle.read(message, 1 + i * width, width);
+            }
+            return;
+        }
+        int mask = isPrefixed(message) ? message[1] & 0xF
+            : (message[0] >> MASK_SHIFT) & 0xF;
+        int pos = regionStart(message);
+        if ((message[0] & COUNTED) != 0)
+            pos += VarInt.length(message, pos);
+        if ((message[0] & SUMMED) != 0)
+        {
+            pos += VarInt.length(message, pos);
+            pos += VarInt.length(message, pos);
+        }
+        for (int i = 0; i <= 3; i++)
+        {
+            if ((mask & (1 << i)) != 0)
+                children[i] = Handle.EMPTY;
+            else
+            {
+                long delta = VarInt.readLong(message, pos);
+                pos += VarInt.sizeLong(delta);
+                children[i] = position + VarInt.unzigzag(delta);
+            }
+        }
+        checkEnd(pos, size);
+    }
+
+    /**
+     * Return the number of records under a region message.
+     * @param message the region's message
+     * @return the number of records, or -1 if the message doesn't store it
+     */
+    public static int regionCount(byte[] message)
+    {
+        if ((message[0] & COMPACT) == 0 || (message[0] & COUNTED) == 0)
+            return -1;
+        return VarInt.read(message, regionStart(message));
+    }
+
+    /**
+     * Return the sum of one coordinate of the records under a region
+     * message.
+     * @param message the region's message
+     * @param y false for the sum of the x coordinates, true for the y
+     * @return the sum, or -1 if the message doesn't store it
+     */
+    public static long regionSum(byte[] message, boolean y)
+    {
+        if ((message[0] & COMPACT) == 0 || (message[0] & COUNTED) == 0
+            || (message[0] & SUMMED) == 0)
+            return -1;
+        int pos = regionStart(message);
+        pos += VarInt.length(message, pos);
+        if (y)
+            pos += VarInt.length(message, pos);
+        return VarInt.readLong(message, pos);
+    }
+
+    /**
+     * Return the depth of a compressed region message's quadrant.
+     * @param message the region's message
+     * @return the depth, or -1 if the region isn't compressed
+     */
+    public static int regionDepth(byte[] message)
+    {
+        if (!isPrefixed(message))
+            return -1;
+        return (message[1] >> 4) & 0xF;
+    }
+
+    /**
+     * Return the Morton code of the corner of a compressed region message's
+     * quadrant (see Morton.prefix).
+     * @param message the region's message
+     * @return the prefix, or 0 if the region isn't compressed
+     */
+    public static int regionPrefix(byte[] message)
     {
+        if (!isPrefixed(message))
+            return 0;
+        int path = VarInt.read(message, 2);
+        return path << (2 * (Morton.BITS - regionDepth(message)));
+    }
+
+    /**
+     * Return the number of records in a leaf message.
+     * @param message the leaf's message
+     * @return the number of records
+     */
+    public static int recordCount(byte[] message)
+    {
+        if ((message[0] & COMPACT) == 0)
+            return message[1] & 0xFF;
+        return VarInt.read(message, 1);
+    }
+
+    /**
+     * Return the number of records in a leaf message, making sure they
+     * could fit in it before anything is sized by the count.  Every record
+     * takes at least one byte, so a larger count can only come from a
+     * message that was changed while it was read.
+     * @param message the leaf's message
+     * @param size the size of the message
+     * @return the number of records
+     * @throws IllegalStateException if the records couldn't fit
+     */
+    public static int recordCount(byte[] message, int size)
+    {
+        int numRecs = recordCount(message);
+        if (numRecs < 0 || numRecs > size)
+            throw new IllegalStateException("Leaf message of " + size
+                + " bytes can't hold " + numRecs + " records");
+        return numRecs;
+    }
+
+    /**
+     * Read the coordinates of the records of a leaf message, if it stores
+     * them.
+     * @param message the leaf's message
+     * @param xs an array of at least recordCount(message) values to read
+     * the x coordinates into
+     * @param ys an array of at least recordCount(message) values to read
+     * the y coordinates into
+     * @return true if the leaf stores its coordinates and they were read
+     */
+    public static boolean readPoints(byte[] message, int[] xs, int[] ys)
+    {
+        if ((message[0] & COMPACT) == 0 || (message[0] & POINTS) == 0)
+            return false;
+        int numRecs = VarInt.read(message, 1);
+        int pos = 1 + VarInt.size(numRecs);
+        //skip past the handles
+        for (int i = 0; i < numRecs; i++)
+        {
+            pos += VarInt.length(message, pos);
+        }
+        for (int i = 0; i < numRecs; i++)
+        {
+            xs[i] = VarInt.read(message, pos);
+            pos += VarInt.length(message, pos);
+        }
+        for (int i = 0; i < numRecs; i++)
+        {
+            ys[i] = VarInt.read(message, pos);
+            pos += VarInt.length(message, pos);
+        }
+        return true;
+    }
+
+    /**
+     * Read the record handles of a leaf message.
+     * @param message the leaf's message
+     * @param position the position the message is stored at
+     * @param records an array of at least recordCount(message) handles to
+     * read the records into
+     * @return the number of records read
+     */
+    public static int readRecords(byte[] message, long position,
+        long[] records)
+    {
+        int numRecs = recordCount(message);
+        if ((message[0] & COMPACT) == 0)
+        {
+            int width = handleWidth(message[0]);
+            for (int i = 0; i < numRecs; i++)
+            {
+                records[i] = Handle.read(message, 2 + i * width, width);
+            }
+            return numRecs;
+        }
+        int pos = 1 + VarInt.size(numRecs);
+        for (int i = 0; i < numRecs; i++)
+        {
+            long delta = VarInt.readLong(message, pos);
+            pos += VarInt.sizeLong(delta);
+            records[i] = position + VarInt.unzigzag(delta);
+        }
+        return numRecs;
+    }
+
+    /**
+     * Return the node stored in the message at the handle's position.  The
+     * message doesn't record the class type of the node's elements, so the
+     * caller names it.
+     * @param <T> the class type of the elements the node stores
+     * @param handle the handle of the node's message
+     * @param manager the MemoryManager the message is stored in
+     * @return the decoded node
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Node<T> convertToNode(long handle,
+        MemoryManager manager)
+    {
+        NodeCache cache = manager.getNodeCache();
+        if (cache != null)
+        {
+            Node<?> cached = cache.get(handle);
+            if (cached != null)
+                return (Node<T>)cached;
+        }
         int messageSize = manager.getSize(handle);
         byte[] nodeMessage = new byte[messageSize];
         manager.get(nodeMessage, handle, messageSize);
 
-        ByteBuffer bbuff = ByteBuffer.allocate(4);
-        if (nodeMessage[0] == 0) // if the first byte is 0, its a region node
+        Node<T> node;
+        if (isRegion(nodeMessage[0]))
         {
             //the node is internal, get the children Handles
-            Handle[] handles = new Handle[4];
-            for (int i = 0; i <= 3; i++)
+            long[] handles = new long[4];
+            readChildren(nodeMessage, messageSize, handle, handles);
+            RegionNode<T> region = new RegionNode<T>(handles[0], handles[1],
+                handles[2], handles[3], regionCount(nodeMessage),
+                regionSum(nodeMessage, false), regionSum(nodeMessage, true),
+                manager);
+            region.setPrefix(regionDepth(nodeMessage),
+                regionPrefix(nodeMessage));
+            node = region;
+        }
+        else
+        {
+            //construct a leaf node
+            long handles[] = new long[recordCount(nodeMessage, messageSize)];
+            readRecords(nodeMessage, handle, handles);
+            int[] xs = new int[handles.length];
+            int[] ys = new int[handles.length];
+            if (readPoints(nodeMessage, xs, ys))
+                node = new LeafNode<T>(handles, xs, ys, manager);
+            else
+                node = new LeafNode<T>(handles, manager);
+        }
+        node.handle = handle;
+        if (cache != null)
+            cache.put(handle, node, messageSize);
+        return node;
+    }
+
+    /**
+     * Return the message a region node stored at position is written as.
+     * @param region the region node
+     * @param position the position the message will be stored at
+     * @return the region's message
+     */
+    public static byte[] convertToMessage(RegionNode<?> region, long position)
+    {
+        long[] children = {region.getNorthWest(), region.getNorthEast(),
+            region.getSouthWest(), region.getSouthEast()};
+        byte[] message = new byte[MAX_REGION_SIZE];
+        int mask = 0;
+        for (int i = 0; i <= 3; i++)
+        {
+            if (children[i] == Handle.EMPTY)
+                mask |= 1 << i;
+        }
+        int pos = 1;
+        int counted = 0;
+        if (region.getDepth() >= 0)
+        {
+            //the real mask and depth, then the quadrant's path
+            int depth = region.getDepth();
+            message[pos++] = (byte)(mask | (depth << 4));
+            pos = VarInt.write(region.getPrefix()
+                >>> (2 * (Morton.BITS - depth)), message, pos);
+            mask = PREFIXED >> MASK_SHIFT;
+        }
+        if (region.getCount() >= 0)
+        {
+            pos = VarInt.write(region.getCount(), message, pos);
+            counted = COUNTED;
+            if (region.getSumX() >= 0)
             {
-                for(int j = 0; j < 4; j++)
-                {
-                    bbuff.put(nodeMessage[j+i*4+1]); // 1-4, 5-8, 9-12, 13-16
-                }
-                handles[i] = new Handle(bbuff.getInt(0)); // pull those four bytes from the bbuff and put it into a handle
-                bbuff.clear();
+                pos = VarInt.writeLong(region.getSumX(), message, pos);
+                pos = VarInt.writeLong(region.getSumY(), message, pos);
+                counted |= SUMMED;
             }
-            return new RegionNode(handles[0], handles[1], handles[2], handles[3], manager);
         }
-        else // if the first byte is non-zero, its a leaf node
+        for (int i = 0; i <= 3; i++)
         {
-            //construct a leaf node
-            bbuff.put(nodeMessage[1]);
-            int numRecs = bbuff.getInt(0);
-            bbuff.clear();
-            Handle handles[] = new Handle[numRecs];
-            for (int i = 0; i < numRecs; i ++)
+            if (children[i] != Handle.EMPTY)
+                pos = VarInt.writeLong(VarInt.zigzag(children[i] - position),
+                    message, pos);
+        }
+        message[0] = (byte)(COMPACT | REGION | (mask << MASK_SHIFT) | counted);
+        return trim(message, pos);
+    }
+
+    /**
+     * Return the message a leaf node stored at position is written as.  The
+     * records' coordinates are stored too if the leaf has them.
+     * @param leaf the leaf node
+     * @param position the position the message will be stored at
+     * @return the leaf's message
+     */
+    public static byte[] convertToMessage(LeafNode<?> leaf, long position)
+    {
+        long[] records = leaf.getRecords();
+        byte[] message = new byte[maxLeafSize(records.length)];
+        message[0] = COMPACT | LEAF;
+        int pos = VarInt.write(records.length, message, 1);
+        for (long record: records)
+        {
+            pos = VarInt.writeLong(VarInt.zigzag(record - position), message,
+                pos);
+        }
+        if (leaf.getXs() != null)
+        {
+            message[0] |= POINTS;
+            for (int x: leaf.getXs())
+            {
+                pos = VarInt.write(x, message, pos);
+            }
+            for (int y: leaf.getYs())
             {
-                for(int j = 0; j < 4; j++)
-                {
-                    bbuff.put(nodeMessage[j+i*4+2]);
-                }
-                handles[i] = new Handle(bbuff.getInt(0));
-                bbuff.clear();
+                pos = VarInt.write(y, message, pos);
             }
-            return new LeafNode(handles, manager)
+        }
+        return trim(message, pos);
+    }
 
+    /**
+     * Store a region node in the MemoryManager and return its handle.
+     * @param region the region node
+     * @param manager the MemoryManager to store the node in
+     * @return the handle of the region's message
+     */
+    public static long write(RegionNode<?> region, MemoryManager manager)
+    {
+        //the message depends on where it is stored, so reserve room for the
+        //largest it could be, build it, and give back what isn't used
+        int reserved = MemoryManager.blockSize(MAX_REGION_SIZE);
+        long position = manager.reserve(reserved);
+        byte[] message = convertToMessage(region, position);
+        manager.put(position, message, message.length);
+        manager.release(position + MemoryManager.blockSize(message.length),
+            reserved - MemoryManager.blockSize(message.length));
+        return position;
+    }
 
+    /**
+     * Store a leaf node in the MemoryManager and return its handle.
+     * @param leaf the leaf node
+     * @param manager the MemoryManager to store the node in
+     * @return the handle of the leaf's message
+     */
+    public static long write(LeafNode<?> leaf, MemoryManager manager)
+    {
+        int reserved = MemoryManager.blockSize(maxLeafSize(
+            leaf.getItemCount()));
+        long position = manager.reserve(reserved);
+        byte[] message = convertToMessage(leaf, position);
+        manager.put(position, message, message.length);
+        manager.release(position + MemoryManager.blockSize(message.length),
+            reserved - MemoryManager.blockSize(message.length));
+        return position;
+    }
 
+    /**
+     * Append a region node to a MessageWriter and return its handle.
+     * @param region the region node
+     * @param writer the MessageWriter to append the node to
+     * @return the handle of the region's message
+     */
+    public static long write(RegionNode<?> region, MessageWriter writer)
+    {
+        return writer.append(convertToMessage(region,
+            writer.next(MAX_REGION_SIZE)));
+    }
+
+    /**
+     * Append a leaf node to a MessageWriter and return its handle.
+     * @param leaf the leaf node
+     * @param writer the MessageWriter to append the node to
+     * @return the handle of the leaf's message
+     */
+    public static long write(LeafNode<?> leaf, MessageWriter writer)
+    {
+        return writer.append(convertToMessage(leaf,
+            writer.next(maxLeafSize(leaf.getItemCount()))));
+    }
+
+    /**
+     * Store a new region node together with new leaves for some of its
+     * children, as when a leaf is split.  The leaves and then the region are
+     * laid out in one block and written with a single write.
+     * @param children the region's children, in NW, NE, SW, SE order.
+     * Children that get a new leaf are ignored.
+     * @param leaves the new leaf for each child, or null for children that
+     * don't get a new leaf
+     * @param count the number of records under the region
+     * @param sumX the sum of the x coordinates of the records
+     * @param sumY the sum of the y coordinates of the records
+     * @param depth the depth of the region's quadrant if it is compressed,
+     * or -1
+     * @param prefix the prefix of a compressed region's quadrant
+     * @param manager the MemoryManager to store the nodes in
+     * @return the handle of the region's message
+     */
+    public static long writeSplit(long[] children, LeafNode<?>[] leaves,
+        int count, long sumX, long sumY, int depth, int prefix,
+        MemoryManager manager)
+    {
+        //reserve room for the largest the nodes could be
+        int reserved = MemoryManager.blockSize(MAX_REGION_SIZE);
+        for (LeafNode<?> leaf: leaves)
+        {
+            if (leaf != null)
+                reserved += MemoryManager.blockSize(maxLeafSize(
+                    leaf.getItemCount()));
         }
+        long position = manager.reserve(reserved);
+        //each message depends on where it lands, so encode them in order
+        byte[][] messages = new byte[5][];
+        int used = 0;
+        long next = position;
+        long[] handles = children.clone();
+        for (int i = 0; i <= 3; i++)
+        {
+            if (leaves[i] != null)
+            {
+                handles[i] = next;
+                messages[used] = convertToMessage(leaves[i], next);
+                next += MemoryManager.blockSize(messages[used++].length);
+            }
+        }
+        long regionPosition = next;
+        RegionNode<Object> region = new RegionNode<Object>(handles[0],
+            handles[1], handles[2], handles[3], count, sumX, sumY, manager);
+        region.setPrefix(depth, prefix);
+        messages[used] = convertToMessage(region, next);
+        next += MemoryManager.blockSize(messages[used++].length);
+        manager.putAll(position, Arrays.copyOf(messages, used));
+        manager.release(next, (int)(position + reserved - next));
+        return regionPosition;
+    }
+
+    /**
+     * Make sure a decoded part of a message ends inside it.
+     * @param end the index just past the decoded part
+     * @param size the size of the message
+     * @throws IllegalStateException if the part runs past the message
+     */
+    private static void checkEnd(int end, int size)
+    {
+        if (end > size)
+            throw new IllegalStateException("Node message of " + size
+                + " bytes ends before its children");
+    }
+
+    /**
+     * Return whether a region message is a compressed region's.
+     * @param message the region's message
+     * @return true if the message has the PREFIXED mask
+     */
+    private static boolean isPrefixed(byte[] message)
+    {
+        return (message[0] & COMPACT) != 0 && (message[0] & LEAF) == 0
+            && (message[0] & PREFIXED) == PREFIXED;
+    }
+
+    /**
+     * Return where the count of a compact region message starts, past its
+     * type and, for a compressed region, its depth and prefix.
+     * @param message the region's message
+     * @return the index of the count
+     */
+    private static int regionStart(byte[] message)
+    {
+        if (!isPrefixed(message))
+            return 1;
+        return 2 + VarInt.length(message, 2);
+    }
+
+    /**
+     * Return the number of bytes in each handle of an older format message.
+     * @param type the first byte of the node's message
+     * @return Handle.SIZE or Handle.NARROW_SIZE
+     */
+    private static int handleWidth(byte type)
+    {
+        return ((type & WIDE) != 0) ? Handle.SIZE : Handle.NARROW_SIZE;
+    }
+
+    /**
+     * Return the largest a compact leaf message can be, with its
+     * coordinates.
+     * @param numRecs the number of records in the leaf
+     * @return the most bytes the message can take up
+     */
+    private static int maxLeafSize(int numRecs)
+    {
+        return 1 + VarInt.MAX_INT_BYTES
+            + numRecs * (VarInt.MAX_LONG_BYTES + 2 * VarInt.MAX_INT_BYTES);
+    }
+
+    /**
+     * Return the first length bytes of message.
+     * @param message the message being built
+     * @param length the number of bytes used
+     * @return a copy of the used part of the message
+     */
+    private static byte[] trim(byte[] message, int length)
+    {
+        byte[] trimmed = new byte[length];
+        System.arraycopy(message, 0, trimmed, 0, length);
+        return trimmed;
     }
 }
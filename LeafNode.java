@@ -4,8 +4,8 @@ import java.util.ArrayList;
 /**
  * // -------------------------------------------------------------------------
 /**
- *  A Leaf Node in a PRQuadtree.  Can store up to 3 elements, using Points as
- *  keys.
+ *  A Leaf Node in a PRQuadtree.  Holds the handles of its records; how many
+ *  it can hold before it is split is up to the tree.
  *  @param <T> the class type of the elements stored
  *
  *  @author Joshua Rush
@@ -17,7 +17,11 @@ public class LeafNode<T> extends Node<T>
     private ArrayList<T> items;
     private ArrayList<Point> keys;
     private MemoryManager manager;
-    private Handle[] handles;
+    private long[] handles;
+    //the coordinates of the records, or null if the leaf's message doesn't
+    //store them
+    private int[] xs;
+    private int[] ys;
     // ----------------------------------------------------------
     /**
      * Create a new LeafNode object.
@@ -26,14 +30,35 @@ public class LeafNode<T> extends Node<T>
     {
         items = new ArrayList<T>();
         keys = new ArrayList<Point>();
-        handles = new Handle[0];
+        handles = new long[0];
     }
 
-    public LeafNode(Handle[] handles, MemoryManager memman)
+    /**
+     * Create a new LeafNode holding the records at the given handles.
+     * @param handles the handles of the records
+     * @param memman the MemoryManager the records are stored in
+     */
+    public LeafNode(long[] handles, MemoryManager memman)
     {
         manager = memman;
         this.handles = handles;
     }
+
+    /**
+     * Create a new LeafNode holding the records at the given handles, along
+     * with their coordinates, so the leaf can be searched without reading
+     * the records.
+     * @param handles the handles of the records
+     * @param xs the x coordinate of each record
+     * @param ys the y coordinate of each record
+     * @param memman the MemoryManager the records are stored in
+     */
+    public LeafNode(long[] handles, int[] xs, int[] ys, MemoryManager memman)
+    {
+        this(handles, memman);
+        this.xs = xs;
+        this.ys = ys;
+    }
     /**
      * Add an item into this LeafNode.
      * @param item the item to add
@@ -117,6 +142,33 @@ public class LeafNode<T> extends Node<T>
             return false;
     }
 
+    /**
+     * Returns the handles of the records stored in this LeafNode
+     * @return the record handles
+     */
+    public long[] getRecords()
+    {
+        return handles;
+    }
+
+    /**
+     * Returns the x coordinates of the records stored in this LeafNode
+     * @return the x coordinates, or null if the leaf doesn't have them
+     */
+    public int[] getXs()
+    {
+        return xs;
+    }
+
+    /**
+     * Returns the y coordinates of the records stored in this LeafNode
+     * @return the y coordinates, or null if the leaf doesn't have them
+     */
+    public int[] getYs()
+    {
+        return ys;
+    }
+
     /**
      * Returns the number of items in this LeafNode
      * @return the number of items in this LeafNode
@@ -0,0 +1,29 @@
+// -------------------------------------------------------------------------
+/**
+ *  Finds the points of a leaf that fall inside a circle.  The leaf's
+ *  coordinates are given as two side by side arrays so a scanner can compare
+ *  many of them at once.  Distances are compared squared, in int arithmetic,
+ *  so the center must be no more than PRQuadTree.MAX_COORD from 0 on either
+ *  axis and the radius no more than twice that, or the squares can overflow.
+ *
+ *  @author Joshua Rush
+ *  @author Benjamin Roble
+ *  @version Dec 4, 2011
+ */
+public interface LeafScanner
+{
+    /**
+     * Find the points within radius of (cx, cy).
+     * @param xs the x coordinates of the points
+     * @param ys the y coordinates of the points
+     * @param count the number of points, counting from the start of xs and ys
+     * @param cx the x coordinate of the circle's center
+     * @param cy the y coordinate of the circle's center
+     * @param radius the radius of the circle
+     * @param matches an array of at least count values the indexes of the
+     * points inside the circle are written to, in ascending order
+     * @return the number of points inside the circle
+     */
+    int within(int[] xs, int[] ys, int count, int cx, int cy, int radius,
+        int[] matches);
+}
@@ -5,28 +5,53 @@
  *  records stored as bytes, and the free space that exists in memory.  Can
  *  access, insert and remove records.
  *
+ *  Each message is stored behind a variable length size header (see VarInt),
+ *  so messages under 128 bytes still only spend one byte on their size.
+ *  Messages that won't fit in a single buffer are read and written around
+ *  the buffer pool so they don't push everything else out of it.
+ *
+ *  Methods that change the pool are synchronized, so one change is made at
+ *  a time.  get and getSize aren't: each read keeps its size header to
+ *  itself, and the buffer pool only locks to swap a block into a buffer,
+ *  so searches on many threads read the pool at the same time.  A read
+ *  made while a change is being written can see part of it; the quadtree
+ *  checks its stamp after every read and throws away any that overlapped a
+ *  change.  A thread can have its reads counted into a QueryProfile, which
+ *  gets the buffer pool hits and misses and the bytes of that thread's
+ *  reads only.
+ *
  *  @author Joshua Rush
  *  @author Benjamin Roble
  *  @version Aug 28, 2011
  */
 public class MemoryManager
 {
-    //pool is a large byte array forholding data about records.
-    private byte[] pool;
     //freeList is a doubly linked list of free blocks in the memory pool.
     private FreeBlockList freeList;
 
     //reference to the BufferPool in order to read and write
-    private BufferPool bufferpool;
+    private BufferPool bufferPool;
+
+    //cache of nodes decoded from messages in this pool, may be null.
+    //Reads look it up without the lock.
+    private volatile NodeCache nodeCache;
+    //the decoded nodes of the pool kept resident for searches, may be null.
+    //Searches check it on every node, so it is read without the lock.
+    private volatile NodePager nodePager;
+
+    //the profile each thread's reads are counted into, if it has one
+    private ThreadLocal<QueryProfile> profiles =
+        new ThreadLocal<QueryProfile>();
 
     /**
      * Creates a memory manager with a memory pool of the
      * specified size.
      * @param poolsize the size of the pool of free memory
+     * @param pBufferPool the buffer pool the messages are read and written
+     * through
      */
-    public MemoryManager(int poolsize, BufferPool pBufferPool)
+    public MemoryManager(long poolsize, BufferPool pBufferPool)
     {
-        pool = new byte[poolsize];
         freeList = new FreeBlockList(poolsize);
         bufferPool = pBufferPool;
     }
@@ -36,17 +61,145 @@ public class MemoryManager
      * @param space the record to be inserted
      * @param size the size of the record being inserted
      * @return the position Handle of the inserted record
+     * @throws IllegalStateException if the pool has no free block big enough
      */
-    public Handle insert(byte[] space, int size)
+    public synchronized long insert(byte[] space, int size)
     {
+        int headerSize = VarInt.size(size);
         //find out the position to make the insertion from the freeblock list.
-        int position = freeList.use(size);
-        if(position < 0) {
-            // THEN ADD A NEW BLOCK TO EXPAND THE MEMORY;
+        long position = use(headerSize + size);
+        if (headerSize + size > BufferPool.BUFFER_SIZE)
+        {
+            //large message, write the header through the pool and the body
+            //around it.
+            byte[] header = new byte[headerSize];
+            VarInt.write(size, header, 0);
+            bufferPool.write(header, position, headerSize);
+            bufferPool.writeDirect(space, position + headerSize, size);
+        }
+        else
+        {
+            //copy the header and record into one message and write it.
+            byte[] message = new byte[headerSize + size];
+            int start = VarInt.write(size, message, 0);
+            System.arraycopy(space, 0, message, start, size);
+            bufferPool.write(message, position, message.length);
+        }
+        invalidate(position);
+        return position;
+    }
+
+    /**
+     * Inserts a group of records into one contiguous block and returns their
+     * position Handles.  The records are laid out back to back in the order
+     * given, each behind its own size header, and written with a single
+     * write.  Each record can later be removed on its own.
+     * @param messages the records to be inserted
+     * @return the position Handles of the inserted records, in the same
+     * order as messages
+     * @throws IllegalStateException if the pool has no free block big enough
+     * for all of the records
+     */
+    public synchronized long[] insertBatch(byte[][] messages)
+    {
+        //add up the space needed for all the records and their headers
+        int total = 0;
+        for (byte[] message: messages)
+        {
+            total += VarInt.size(message.length) + message.length;
+        }
+        return putAll(use(total), messages);
+    }
+
+    /**
+     * Write a group of records back to back, starting at a position inside a
+     * block from reserve, with a single write.  The records take up the sum
+     * of blockSize for each of them.
+     * @param position the position to write the first record at
+     * @param messages the records to be written
+     * @return the position Handles of the written records, in the same
+     * order as messages
+     */
+    public synchronized long[] putAll(long position, byte[][] messages)
+    {
+        int total = 0;
+        for (byte[] message: messages)
+        {
+            total += blockSize(message.length);
         }
-        //copy into the pool the record information.
-        bufferPool.write(space, position, size);
-        return new Handle(position);
+        //lay the records out one after another in a single extent
+        byte[] extent = new byte[total];
+        long[] handles = new long[messages.length];
+        int offset = 0;
+        for (int i = 0; i < messages.length; i++)
+        {
+            handles[i] = position + offset;
+            offset = VarInt.write(messages[i].length, extent, offset);
+            System.arraycopy(messages[i], 0, extent, offset,
+                messages[i].length);
+            offset += messages[i].length;
+            invalidate(handles[i]);
+        }
+        if (total > BufferPool.BUFFER_SIZE)
+            bufferPool.writeDirect(extent, position, total);
+        else
+            bufferPool.write(extent, position, total);
+        return handles;
+    }
+
+    /**
+     * Return the number of bytes a message of the given size takes up in the
+     * pool, including its size header.
+     * @param size the size of the message
+     * @return the size of the block the message is stored in
+     */
+    public static int blockSize(int size)
+    {
+        return VarInt.size(size) + size;
+    }
+
+    /**
+     * Reserve a block of the pool without writing to it, for callers that
+     * need to know where a message will be stored before building it.
+     * Messages are written into the block with put, and any part of the
+     * block that isn't needed is given back with release.
+     * @param size the number of bytes to reserve, counting size headers
+     * @return the position of the reserved block
+     * @throws IllegalStateException if the pool has no free block big enough
+     */
+    public synchronized long reserve(int size)
+    {
+        return use(size);
+    }
+
+    /**
+     * Write a record at a position inside a block from reserve.  The record
+     * and its size header take up blockSize(size) bytes.
+     * @param position the position to write the record at
+     * @param space the record to be written
+     * @param size the size of the record
+     */
+    public synchronized void put(long position, byte[] space, int size)
+    {
+        byte[] message = new byte[blockSize(size)];
+        int start = VarInt.write(size, message, 0);
+        System.arraycopy(space, 0, message, start, size);
+        if (message.length > BufferPool.BUFFER_SIZE)
+            bufferPool.writeDirect(message, position, message.length);
+        else
+            bufferPool.write(message, position, message.length);
+        invalidate(position);
+    }
+
+    /**
+     * Give back part of a reserved block that wasn't written to.
+     * @param position the position of the unused bytes
+     * @param size the number of unused bytes
+     */
+    public synchronized void release(long position, int size)
+    {
+        if (size > 0)
+            freeList.free(size, position);
     }
 
     /**
@@ -55,18 +208,15 @@ public class MemoryManager
      * @param theHandle the position Handle of the record
      * to be removed
      */
-    public void remove(Handle theHandle)
+    public synchronized void remove(long theHandle)
     {
-        int position = theHandle.getPosition();
-        int size = getSize(theHandle);
-        //clears the pool of the record
-        /*for (int i = position; i <= position + sizeInt; i++)
-        {
-            pool[i] = 0;
-        }*/
-        bufferPool.remove(position, size+1);
-        freeList.free(size+1, position); // have to add one byte because there is
-        // one byte in front of the record which indicates size
+        byte[] header = new byte[VarInt.MAX_INT_BYTES];
+        int headerSize = readHeader(theHandle, header);
+        //the block being freed includes the size header in front of the record
+        int blockSize = headerSize + VarInt.read(header, 0);
+        bufferPool.remove(theHandle, blockSize);
+        freeList.free(blockSize, theHandle);
+        invalidate(theHandle);
     }
 
     /**
@@ -77,12 +227,19 @@ public class MemoryManager
      * @param size the number of bytes to copy
      * @return the amount of bytes actually copied into the space array
      */
-    public int get(byte[] space, Handle theHandle, int size)
+    public int get(byte[] space, long theHandle, int size)
     {
-        //System.arraycopy(freeList, theHandle.getPosition(), space, 0, size);
-        int recordSize = pool[theHandle.getPosition()];
+        int hits = bufferPool.getThreadHits();
+        int misses = bufferPool.getThreadMisses();
+        byte[] header = new byte[VarInt.MAX_INT_BYTES];
+        int headerSize = readHeader(theHandle, header);
+        int recordSize = VarInt.read(header, 0);
         int copySize = (size < recordSize) ? size: recordSize;
-        System.arraycopy(pool, theHandle.getPosition() + 1, space, 0, copySize);
+        if (headerSize + recordSize > BufferPool.BUFFER_SIZE)
+            bufferPool.readDirect(space, theHandle + headerSize, copySize);
+        else
+            bufferPool.read(space, theHandle + headerSize, copySize);
+        countReads(hits, misses, headerSize + copySize);
         return copySize;
     }
 
@@ -92,16 +249,140 @@ public class MemoryManager
      * @param theHandle the Handle with the message's position
      * @return the size of the message.
      */
-    public int getSize(Handle theHandle)
+    public int getSize(long theHandle)
     {
-        int recordSize = pool[theHandle.getPosition()];
-        return recordSize;
+        int hits = bufferPool.getThreadHits();
+        int misses = bufferPool.getThreadMisses();
+        byte[] header = new byte[VarInt.MAX_INT_BYTES];
+        countReads(hits, misses, readHeader(theHandle, header));
+        return VarInt.read(header, 0);
+    }
+
+    // ----------------------------------------------------------
+    /**
+     * Count the calling thread's reads into a profile until it is set
+     * back to null.  Reads made by other threads aren't counted.
+     * @param profile the profile to count reads into, or null to stop
+     */
+    public void setProfile(QueryProfile profile)
+    {
+        if (profile == null)
+            profiles.remove();
+        else
+            profiles.set(profile);
+    }
+
+    // ----------------------------------------------------------
+    /**
+     * Set the cache that nodes decoded from this pool are kept in.  Cached
+     * nodes are dropped whenever their message is removed or overwritten.
+     * @param cache the node cache, or null to stop caching nodes
+     */
+    public synchronized void setNodeCache(NodeCache cache)
+    {
+        nodeCache = cache;
+    }
+
+    // ----------------------------------------------------------
+    /**
+     * Return the cache that nodes decoded from this pool are kept in.
+     * @return the node cache, or null if nodes aren't being cached
+     */
+    public NodeCache getNodeCache()
+    {
+        return nodeCache;
+    }
+
+    // ----------------------------------------------------------
+    /**
+     * Set the pager that keeps nodes decoded from this pool resident.
+     * Resident nodes are dropped whenever their message is removed or
+     * overwritten.
+     * @param pager the node pager, or null to stop keeping nodes resident
+     */
+    public synchronized void setNodePager(NodePager pager)
+    {
+        nodePager = pager;
+    }
+
+    // ----------------------------------------------------------
+    /**
+     * Return the pager that keeps nodes decoded from this pool resident.
+     * @return the node pager, or null if nodes aren't kept resident
+     */
+    public NodePager getNodePager()
+    {
+        return nodePager;
+    }
+
+    /**
+     * Use up a free block of the pool, which has a fixed size and isn't
+     * grown.
+     * @param size the number of bytes to use
+     * @return the position of the block
+     * @throws IllegalStateException if no free block is big enough
+     */
+    private long use(long size)
+    {
+        long position = freeList.use(size);
+        if (position < 0)
+            throw new IllegalStateException("Memory pool is full, no free "
+                + "block of " + size + " bytes");
+        return position;
+    }
+
+    /**
+     * Drop any cached or resident node decoded from the message at
+     * position.
+     * @param position the position of the message that changed
+     */
+    private void invalidate(long position)
+    {
+        if (nodeCache != null)
+            nodeCache.invalidate(position);
+        if (nodePager != null)
+            nodePager.invalidate(position);
+    }
+
+    /**
+     * Count a read into the calling thread's profile, if it has one.
+     * @param hits the thread's buffer pool hits before the read
+     * @param misses the thread's buffer pool misses before the read
+     * @param bytes the bytes the read copied out of the pool
+     */
+    private void countReads(int hits, int misses, int bytes)
+    {
+        QueryProfile profile = profiles.get();
+        if (profile != null)
+            profile.addReads(bufferPool.getThreadHits() - hits,
+                bufferPool.getThreadMisses() - misses, bytes);
+    }
+
+    /**
+     * Read the size header stored in front of the message at position into
+     * the header array.
+     * @param position the position of the message
+     * @param header the array to read the header into, at least
+     * VarInt.MAX_INT_BYTES long
+     * @return the number of bytes in the header
+     */
+    private int readHeader(long position, byte[] header)
+    {
+        byte[] nextByte = new byte[1];
+        int length = 0;
+        //read a byte at a time until one without the continuation bit
+        do
+        {
+            bufferPool.read(nextByte, position + length, 1);
+            header[length++] = nextByte[0];
+        } while ((nextByte[0] & 0x80) != 0);
+        return length;
     }
 
     /**
      * Prints out a representation of the nodes in the freeblock list.
      */
-    public void dump()
+    public synchronized void dump()
     {
         System.out.println(freeList.toString());
     }
@@ -0,0 +1,97 @@
+import java.util.ArrayList;
+
+// -------------------------------------------------------------------------
+/**
+ *  Writes a long run of messages to a MemoryManager one after another.  Room
+ *  is reserved a chunk at a time and each chunk is written with a single
+ *  putAll once it fills up, so a bulk load touches the pool sequentially
+ *  instead of going through the free list and the buffer pool for every
+ *  message.
+ *
+ *  Node messages depend on where they are stored, so the position of the
+ *  next message is available before it is built: call next with the
+ *  largest the message could be, encode it for the returned position, then
+ *  append it.  Handles returned by next can't be read until the writer is
+ *  flushed.
+ *
+ *  @author Joshua Rush
+ *  @author Benjamin Roble
+ *  @version Nov 27, 2011
+ */
+public class MessageWriter
+{
+    //the manager the messages are written to
+    private MemoryManager manager;
+    //the number of bytes reserved at a time
+    private int chunkSize;
+    //the position of the current chunk, or -1 before the first one
+    private long chunkStart;
+    //the number of bytes reserved for the current chunk
+    private int chunkLength;
+    //the number of bytes of the current chunk that are spoken for
+    private int chunkUsed;
+    //the messages appended to the current chunk, in order
+    private ArrayList<byte[]> pending;
+
+    /**
+     * Create a new MessageWriter.
+     * @param pManager the manager the messages are written to
+     * @param pChunkSize the number of bytes to reserve at a time
+     */
+    public MessageWriter(MemoryManager pManager, int pChunkSize)
+    {
+        manager = pManager;
+        chunkSize = pChunkSize;
+        chunkStart = -1;
+        chunkUsed = 0;
+        pending = new ArrayList<byte[]>();
+    }
+
+    /**
+     * Return the position the next message will be stored at, making sure
+     * there is room for a message of up to maxSize bytes there.
+     * @param maxSize the largest the next message could be
+     * @return the position of the next message
+     */
+    public long next(int maxSize)
+    {
+        int needed = MemoryManager.blockSize(maxSize);
+        if (chunkStart < 0 || chunkUsed + needed > chunkLength)
+        {
+            flush();
+            chunkLength = Math.max(chunkSize, needed);
+            chunkStart = manager.reserve(chunkLength);
+            chunkUsed = 0;
+        }
+        return chunkStart + chunkUsed;
+    }
+
+    /**
+     * Add a message at the position last returned by next.
+     * @param message the message, no bigger than the size given to next
+     * @return the handle of the message
+     */
+    public long append(byte[] message)
+    {
+        long position = next(message.length);
+        pending.add(message);
+        chunkUsed += MemoryManager.blockSize(message.length);
+        return position;
+    }
+
+    /**
+     * Write the messages appended so far and give back the rest of the
+     * current chunk.
+     */
+    public void flush()
+    {
+        if (chunkStart < 0)
+            return;
+        if (!pending.isEmpty())
+            manager.putAll(chunkStart,
+                pending.toArray(new byte[pending.size()][]));
+        manager.release(chunkStart + chunkUsed, chunkLength - chunkUsed);
+        pending.clear();
+        chunkStart = -1;
+    }
+}
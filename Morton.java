@@ -0,0 +1,137 @@
+// -------------------------------------------------------------------------
+/**
+ *  Static helpers for Morton (Z-order) codes of PRQuadTree coordinates.  A
+ *  code interleaves the bits of a 14 bit x and y, x in the low bit of each
+ *  pair, so the quadrant a point falls in at each level of the tree is two
+ *  bits of its code: 1 for the east side plus 2 for the south side.  That is
+ *  the same NW, NE, SW, SE order NodeView and the node messages use, and
+ *  finding the child to descend into is a shift and a mask.
+ *
+ *  @author Joshua Rush
+ *  @author Benjamin Roble
+ *  @version Nov 26, 2011
+ */
+public class Morton
+{
+    /**
+     * The number of bits in each coordinate, which is also the number of
+     * levels of the tree a code can address.
+     */
+    public static final int BITS = 14;
+
+    /**
+     * Return the Morton code of a point.
+     * @param x the x coordinate, from 0 to 2^BITS - 1
+     * @param y the y coordinate, from 0 to 2^BITS - 1
+     * @return the point's Morton code
+     */
+    public static int encode(int x, int y)
+    {
+        return spread(x) | (spread(y) << 1);
+    }
+
+    /**
+     * Return the quadrant a point falls in at a level of the tree.
+     * @param code the point's Morton code
+     * @param depth the level of the tree, 0 being the root
+     * @return the quadrant, one of NodeView.NW, NE, SW or SE
+     */
+    public static int quadrant(int code, int depth)
+    {
+        return (code >>> (2 * (BITS - 1 - depth))) & 3;
+    }
+
+    /**
+     * Return the Morton code of the corner of the quadrant a point falls in
+     * at a level of the tree: the point's code with the bits below that
+     * level cleared.  Every point in the quadrant has the same prefix.
+     * @param code the point's Morton code
+     * @param depth the level of the quadrant, 0 being the root
+     * @return the quadrant's prefix
+     */
+    public static int prefix(int code, int depth)
+    {
+        int low = 2 * (BITS - depth);
+        return (low >= 32) ? 0 : code & (-1 << low);
+    }
+
+    /**
+     * Return the prefix of one of a quadrant's four children.
+     * @param prefix the quadrant's prefix
+     * @param depth the level of the quadrant
+     * @param quadrant the child, one of NodeView.NW, NE, SW or SE
+     * @return the child's prefix
+     */
+    public static int child(int prefix, int depth, int quadrant)
+    {
+        return prefix | (quadrant << (2 * (BITS - 1 - depth)));
+    }
+
+    /**
+     * Return the first level of the tree at which two points fall in
+     * different quadrants, which is the number of levels their paths from
+     * the root share.
+     * @param code1 the first point's Morton code
+     * @param code2 the second point's Morton code
+     * @return the level, or BITS if the codes are the same
+     */
+    public static int commonDepth(int code1, int code2)
+    {
+        int differ = code1 ^ code2;
+        if (differ == 0)
+            return BITS;
+        return BITS - 1 - (31 - Integer.numberOfLeadingZeros(differ)) / 2;
+    }
+
+    /**
+     * Return the x coordinate of a Morton code.
+     * @param code the Morton code
+     * @return the x coordinate
+     */
+    public static int decodeX(int code)
+    {
+        return compact(code);
+    }
+
+    /**
+     * Return the y coordinate of a Morton code.
+     * @param code the Morton code
+     * @return the y coordinate
+     */
+    public static int decodeY(int code)
+    {
+        return compact(code >>> 1);
+    }
+
+    /**
+     * Spread the low BITS bits of value out so there is a 0 bit between
+     * each of them.
+     * @param value the value to spread
+     * @return the spread value
+     */
+    private static int spread(int value)
+    {
+        value &= (1 << BITS) - 1;
+        value = (value | (value << 8)) & 0x00FF00FF;
+        value = (value | (value << 4)) & 0x0F0F0F0F;
+        value = (value | (value << 2)) & 0x33333333;
+        value = (value | (value << 1)) & 0x55555555;
+        return value;
+    }
+
+    /**
+     * Gather every other bit of value, starting with the lowest, into its
+     * low BITS bits; the reverse of spread.
+     * @param value the value to compact
+     * @return the compacted value
+     */
+    private static int compact(int value)
+    {
+        value &= 0x55555555;
+        value = (value | (value >>> 1)) & 0x33333333;
+        value = (value | (value >>> 2)) & 0x0F0F0F0F;
+        value = (value | (value >>> 4)) & 0x00FF00FF;
+        value = (value | (value >>> 8)) & 0x0000FFFF;
+        return value & ((1 << BITS) - 1);
+    }
+}
@@ -17,7 +17,7 @@ public abstract class Node<T> {
      * Create a Node
      */
 
-    Handle handle;
+    long handle = Handle.EMPTY;
 
     // empty constructor, as the memory manager will assign a handle later
     public Node()
@@ -25,9 +25,9 @@ public abstract class Node<T> {
         //empty constructor
     }
 
-    public Node(int pPos)
+    public Node(long pPos)
     {
-       handle = new Handle(pPos);
+       handle = pPos;
     }
     /**
      * Return the number of items contained within this node, or in all nodes
@@ -0,0 +1,162 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+// -------------------------------------------------------------------------
+/**
+ *  A least recently used cache of decoded quadtree nodes, keyed by the
+ *  position of the node's message in the memory pool.  The cache is bounded
+ *  by an estimate of the heap space its nodes take up rather than by a count,
+ *  so a few wide leaves don't crowd out the upper levels of the tree.
+ *
+ *  Cached nodes are shared, so a node taken from the cache must not be
+ *  changed without rewriting its message; the MemoryManager drops a position
+ *  from the cache whenever the message there is removed or written.  The
+ *  cache is synchronized, since messages can be freed from any thread once
+ *  the last snapshot reaching them is closed.
+ *
+ *  @author Joshua Rush
+ *  @author Benjamin Roble
+ *  @version Nov 20, 2011
+ */
+public class NodeCache
+{
+    //rough heap cost of a decoded node and its map entry, not counting the
+    //handles it holds
+    private static final int ENTRY_OVERHEAD = 64;
+    //rough heap cost of each byte of a message once it is decoded
+    private static final int BYTES_PER_MESSAGE_BYTE = 2;
+
+    //the cached nodes, in least to most recently used order
+    private LinkedHashMap<Long, Entry> entries;
+    //the most bytes the cached nodes can take up
+    private long capacity;
+    //the bytes the cached nodes take up now
+    private long used;
+
+    //number of cache hits
+    private int hits = 0;
+    //number of cache misses
+    private int misses = 0;
+
+    /**
+     * Create a new, empty NodeCache.
+     * @param capacity the most bytes of heap the cached nodes can take up
+     */
+    public NodeCache(long capacity)
+    {
+        this.capacity = capacity;
+        used = 0;
+        entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+    }
+
+    /**
+     * Return the node decoded from the message at position, or null if it
+     * isn't cached.
+     * @param position the position of the node's message
+     * @return the cached node, or null
+     */
+    public synchronized Node<?> get(long position)
+    {
+        Entry entry = entries.get(position);
+        if (entry == null)
+        {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.node;
+    }
+
+    /**
+     * Add a decoded node to the cache, evicting the least recently used nodes
+     * until the cache is back under its capacity.
+     * @param position the position of the node's message
+     * @param node the decoded node
+     * @param messageSize the size of the node's message
+     */
+    public synchronized void put(long position, Node<?> node, int messageSize)
+    {
+        int cost = ENTRY_OVERHEAD + messageSize * BYTES_PER_MESSAGE_BYTE;
+        invalidate(position);
+        //a node bigger than the whole cache is never cached
+        if (cost > capacity)
+            return;
+        entries.put(position, new Entry(node, cost));
+        used += cost;
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (used > capacity)
+        {
+            used -= eldest.next().cost;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Drop the node at position from the cache, if it is there.
+     * @param position the position of the node's message
+     */
+    public synchronized void invalidate(long position)
+    {
+        Entry entry = entries.remove(position);
+        if (entry != null)
+            used -= entry.cost;
+    }
+
+    /**
+     * Drop every node from the cache.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        used = 0;
+    }
+
+    /**
+     * Return the number of cache hits.
+     * @return cache hits
+     */
+    public synchronized int getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * Return the number of cache misses.
+     * @return cache misses
+     */
+    public synchronized int getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * Return the fraction of lookups that found their node in the cache.
+     * @return the hit rate, from 0 to 1
+     */
+    public synchronized double getHitRate()
+    {
+        if (hits + misses == 0)
+            return 0;
+        return (double)hits / (hits + misses);
+    }
+
+    /**
+     * A cached node along with the bytes it is counted as taking up.
+     */
+    private static class Entry
+    {
+        private Node<?> node;
+        private int cost;
+
+        /**
+         * Create a new Entry.
+         * @param node the cached node
+         * @param cost the bytes the node is counted as taking up
+         */
+        public Entry(Node<?> node, int cost)
+        {
+            this.node = node;
+            this.cost = cost;
+        }
+    }
+}
@@ -0,0 +1,338 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// -------------------------------------------------------------------------
+/**
+ *  Keeps the hot part of a quadtree decoded in memory, up to a budget of
+ *  heap, while the rest of the tree stays in the memory pool.  A node is
+ *  paged in the first time a search reaches it: its message is decoded once
+ *  into a NodeView that stays resident, and the view is kept as a Page.
+ *  Once a region's child has been paged in, the region's Page points
+ *  straight at the child's, so a search walking down through resident
+ *  nodes follows references rather than looking up positions or reading
+ *  messages at all.
+ *
+ *  When the resident pages take up more than the budget, the coldest are
+ *  evicted: each page is given a second chance if it has been used since
+ *  the last time eviction passed it, so pages reached through references
+ *  are kept as well as ones looked up by position.  An evicted page is
+ *  unhooked from the region that points at it, so the subtree drops back
+ *  to being reached by position until it is used again.
+ *
+ *  Like NodeCache, the pager is attached to a MemoryManager, which drops
+ *  a position's page whenever the message there is removed or written.
+ *  Resident views are shared between threads and must not be moved.
+ *
+ *  A search pages a node in by reading its message and then handing the
+ *  view to put, and the message can be written in between.  Like the
+ *  generation of a ResultCache, the pager's epoch moves up with every
+ *  invalidation, and a view is only made resident if the epoch is still
+ *  the one read before its message was, so a stale page is never
+ *  published for other searches to find.
+ *
+ *  @author Joshua Rush
+ *  @author Benjamin Roble
+ *  @version Dec 6, 2011
+ */
+public class NodePager
+{
+    //rough heap cost of a page and its map entry, not counting its view
+    private static final int PAGE_OVERHEAD = 96;
+
+    //the resident pages, in the order they were paged in
+    private LinkedHashMap<Long, Page> pages;
+    //the most bytes the resident pages can take up
+    private long capacity;
+    //the bytes the resident pages take up now
+    private long used;
+    //moved up by every invalidation
+    private long epoch;
+
+    //number of lookups that found their page resident
+    private int hits = 0;
+    //number of lookups that had to page a node in
+    private int misses = 0;
+    //number of pages evicted to stay under the budget
+    private int evictions = 0;
+
+    /**
+     * Create a new NodePager with nothing resident.
+     * @param capacity the most bytes of heap the resident pages can take up
+     */
+    public NodePager(long capacity)
+    {
+        this.capacity = capacity;
+        used = 0;
+        epoch = 0;
+        pages = new LinkedHashMap<Long, Page>();
+    }
+
+    /**
+     * Return the resident page of the node at position, or null if it has
+     * to be paged in.
+     * @param position the position of the node's message
+     * @return the resident page, or null
+     */
+    public synchronized Page get(long position)
+    {
+        Page page = pages.get(position);
+        if (page == null)
+        {
+            misses++;
+            return null;
+        }
+        hits++;
+        page.referenced = true;
+        return page;
+    }
+
+    /**
+     * Return the pager's epoch, to be read before reading a message whose
+     * view will be handed to put.
+     * @return the epoch
+     */
+    public synchronized long getEpoch()
+    {
+        return epoch;
+    }
+
+    /**
+     * Make a decoded node resident, evicting the coldest pages until the
+     * pager is back under its budget.  If another thread paged the node in
+     * first, its page is kept and returned instead.  The node isn't made
+     * resident if anything has been invalidated since its message was read.
+     * @param position the position of the node's message
+     * @param view the node's decoded view, which must not be moved again
+     * @param pEpoch the epoch read before the node's message was
+     * @return the node's resident page, or an evicted page of the view if
+     * it wasn't made resident
+     */
+    public synchronized Page put(long position, NodeView view, long pEpoch)
+    {
+        Page page = pages.get(position);
+        if (page != null)
+            return page;
+        view.trim();
+        page = new Page(view, PAGE_OVERHEAD + view.heapSize());
+        //a node read before a change, or bigger than the whole budget, is
+        //never resident, but the caller can still use the page it asked for
+        if (pEpoch != epoch || page.cost > capacity)
+        {
+            page.evicted = true;
+            return page;
+        }
+        pages.put(position, page);
+        used += page.cost;
+        page.referenced = true;
+        Iterator<Page> eldest = pages.values().iterator();
+        while (used > capacity)
+        {
+            Page next = eldest.next();
+            if (next.referenced)
+            {
+                //used since eviction last passed it, move it to the back
+                next.referenced = false;
+                eldest.remove();
+                pages.put(next.view.getPosition(), next);
+                eldest = pages.values().iterator();
+                continue;
+            }
+            eldest.remove();
+            evict(next);
+            evictions++;
+        }
+        return page;
+    }
+
+    /**
+     * Point a region's page at one of its children's, so the child can be
+     * reached without looking it up.
+     * @param parent the region's page
+     * @param quadrant the child's quadrant, one of NodeView.NW, NE, SW or SE
+     * @param child the child's page
+     */
+    public synchronized void link(Page parent, int quadrant, Page child)
+    {
+        if (parent.evicted || child.evicted || parent.children == null)
+            return;
+        parent.children.set(quadrant, child);
+        //a node shared by two versions of the tree can have two regions
+        //pointing at it; only the latest is unhooked when it is evicted,
+        //and the other finds it evicted the next time it is followed
+        child.owner = parent;
+        child.slot = quadrant;
+    }
+
+    /**
+     * Drop the page of the node at position, if it is resident.
+     * @param position the position of the node's message
+     */
+    public synchronized void invalidate(long position)
+    {
+        epoch++;
+        Page page = pages.remove(position);
+        if (page != null)
+            evict(page);
+    }
+
+    /**
+     * Drop every page.
+     */
+    public synchronized void clear()
+    {
+        epoch++;
+        for (Page page: pages.values())
+        {
+            page.evicted = true;
+        }
+        pages.clear();
+        used = 0;
+    }
+
+    /**
+     * Return the number of lookups that found their page resident.  Pages
+     * reached through a region's page aren't looked up, so aren't counted.
+     * @return page hits
+     */
+    public synchronized int getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * Return the number of lookups that had to page a node in.
+     * @return page misses
+     */
+    public synchronized int getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * Return the fraction of lookups that found their page resident.
+     * @return the hit rate, from 0 to 1
+     */
+    public synchronized double getHitRate()
+    {
+        if (hits + misses == 0)
+            return 0;
+        return (double)hits / (hits + misses);
+    }
+
+    /**
+     * Return the number of pages evicted to stay under the budget.
+     * @return evictions
+     */
+    public synchronized int getEvictions()
+    {
+        return evictions;
+    }
+
+    /**
+     * Return the bytes of heap the resident pages take up now.
+     * @return the resident bytes
+     */
+    public synchronized long getResidentBytes()
+    {
+        return used;
+    }
+
+    /**
+     * Mark a page that has left the map as evicted and unhook it from the
+     * region pointing at it and from its own children.
+     * @param page the page
+     */
+    private void evict(Page page)
+    {
+        used -= page.cost;
+        page.evicted = true;
+        if (page.owner != null)
+        {
+            page.owner.children.compareAndSet(page.slot, page, null);
+            page.owner = null;
+        }
+        for (int i = 0; page.children != null && i <= 3; i++)
+        {
+            Page child = page.children.getAndSet(i, null);
+            if (child != null && child.owner == page)
+                child.owner = null;
+        }
+    }
+
+    /**
+     * A resident node: its decoded view and the resident pages of its
+     * children.
+     */
+    public static class Page
+    {
+        //the node's decoded view, never moved once the page is made
+        private NodeView view;
+        //the bytes the page is counted as taking up
+        private int cost;
+        //the pages of a region's children that have been linked in, or null
+        //for a leaf
+        private AtomicReferenceArray<Page> children;
+        //the region page pointing at this one and the quadrant it points
+        //from, both only used under the pager's lock
+        private Page owner;
+        private int slot;
+        //set once the page has left the pager
+        private volatile boolean evicted;
+        //set whenever the page is used, cleared as eviction passes it
+        private volatile boolean referenced;
+
+        /**
+         * Create a new Page.
+         * @param view the node's decoded view
+         * @param cost the bytes the page is counted as taking up
+         */
+        private Page(NodeView view, int cost)
+        {
+            this.view = view;
+            this.cost = cost;
+            if (view.isRegion())
+                children = new AtomicReferenceArray<Page>(4);
+        }
+
+        /**
+         * Return the node's view.
+         * @return the resident view
+         */
+        public NodeView getView()
+        {
+            referenced = true;
+            return view;
+        }
+
+        /**
+         * Return the quadrant of the region a child is in.
+         * @param position the position of the child's message
+         * @return the child's quadrant, or -1 if the node has no such child
+         */
+        public int quadrantOf(long position)
+        {
+            for (int i = 0; children != null && i <= 3; i++)
+            {
+                if (view.getChild(i) == position)
+                    return i;
+            }
+            return -1;
+        }
+
+        /**
+         * Return the page of one of the region's children, if it has been
+         * linked in and is still resident.
+         * @param quadrant the child's quadrant
+         * @return the child's page, or null
+         */
+        public Page getChild(int quadrant)
+        {
+            Page child = children.get(quadrant);
+            if (child == null || child.evicted)
+                return null;
+            child.referenced = true;
+            return child;
+        }
+    }
+}
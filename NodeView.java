@@ -0,0 +1,314 @@
+import java.util.Arrays;
+
+// -------------------------------------------------------------------------
+/**
+ *  A reusable, read-only view of a quadtree node message.  Rather than
+ *  building a RegionNode or LeafNode, a view copies the message at a position
+ *  into a byte array it keeps between uses and decodes the node's child
+ *  positions or record positions into arrays it also keeps.  A traversal
+ *  keeps one view per level of the tree, so walking the tree doesn't
+ *  allocate a node per visit.
+ *
+ *  Messages are decoded with the same HandleConverter methods that read
+ *  nodes, so any format HandleConverter reads can be viewed.
+ *
+ *  @author Joshua Rush
+ *  @author Benjamin Roble
+ *  @version Nov 21, 2011
+ */
+public class NodeView
+{
+    /**
+     * Index of the northwest child in a region message.
+     */
+    public static final int NW = 0;
+    /**
+     * Index of the northeast child in a region message.
+     */
+    public static final int NE = 1;
+    /**
+     * Index of the southwest child in a region message.
+     */
+    public static final int SW = 2;
+    /**
+     * Index of the southeast child in a region message.
+     */
+    public static final int SE = 3;
+
+    //the message of the node being viewed.  Only the first size bytes are
+    //part of the current message.
+    private byte[] message;
+    //the size of the message being viewed
+    private int size;
+    //the position of the message being viewed
+    private long position;
+    //the children of the region being viewed
+    private long[] children;
+    //the number of records under the region being viewed, or -1
+    private int count;
+    //the sums of the coordinates under the region being viewed, or -1
+    private long sumX;
+    private long sumY;
+    //the depth and prefix of a compressed region's quadrant, or -1 and 0
+    private int depth;
+    private int prefix;
+    //the records of the leaf being viewed.  Only the first recordCount
+    //handles belong to the current leaf.
+    private long[] records;
+    //the number of records in the leaf being viewed
+    private int recordCount;
+    //the coordinates of the leaf's records, kept side by side so a leaf can
+    //be scanned without reading its records.  Only the first recordCount
+    //belong to the current leaf, and only if hasPoints is set.
+    private int[] xs;
+    private int[] ys;
+    private boolean hasPoints;
+
+    /**
+     * Create a new NodeView that isn't looking at any node yet.
+     */
+    public NodeView()
+    {
+        message = new byte[32];
+        size = 0;
+        position = Handle.EMPTY;
+        children = new long[4];
+        count = -1;
+        sumX = -1;
+        sumY = -1;
+        depth = -1;
+        prefix = 0;
+        records = new long[4];
+        recordCount = 0;
+        xs = new int[4];
+        ys = new int[4];
+        hasPoints = false;
+    }
+
+    /**
+     * Point this view at the node message stored at position.
+     * @param pPosition the position of the node's message
+     * @param manager the MemoryManager the message is stored in
+     */
+    public void moveTo(long pPosition, MemoryManager manager)
+    {
+        moveTo(pPosition, manager.getSize(pPosition), manager);
+    }
+
+    /**
+     * Point this view at the node message stored at position, when the size
+     * of the message has already been read.
+     * @param pPosition the position of the node's message
+     * @param pSize the size of the node's message
+     * @param manager the MemoryManager the message is stored in
+     * @throws IllegalStateException if the message's children or records
+     * don't fit in it, as when the message changed while it was read
+     */
+    public void moveTo(long pPosition, int pSize, MemoryManager manager)
+    {
+        position = pPosition;
+        size = pSize;
+        //only grow the array, so a view settles on the largest node it sees
+        if (size > message.length)
+            message = new byte[Math.max(size, message.length * 2)];
+        manager.get(message, position, size);
+        if (HandleConverter.isRegion(message[0]))
+        {
+            HandleConverter.readChildren(message, size, position, children);
+            count = HandleConverter.regionCount(message);
+            sumX = HandleConverter.regionSum(message, false);
+            sumY = HandleConverter.regionSum(message, true);
+            depth = HandleConverter.regionDepth(message);
+            prefix = HandleConverter.regionPrefix(message);
+        }
+        else
+        {
+            depth = -1;
+            prefix = 0;
+            recordCount = HandleConverter.recordCount(message, size);
+            if (recordCount > records.length)
+            {
+                records = new long[Math.max(recordCount, records.length * 2)];
+                xs = new int[records.length];
+                ys = new int[records.length];
+            }
+            HandleConverter.readRecords(message, position, records);
+            hasPoints = HandleConverter.readPoints(message, xs, ys);
+        }
+    }
+
+    /**
+     * Shrink the view's arrays to fit the node being viewed, for a view
+     * that is kept on one node rather than reused.
+     */
+    public void trim()
+    {
+        message = Arrays.copyOf(message, Math.max(size, 1));
+        if (!isRegion())
+        {
+            records = Arrays.copyOf(records, recordCount);
+            xs = Arrays.copyOf(xs, recordCount);
+            ys = Arrays.copyOf(ys, recordCount);
+        }
+    }
+
+    /**
+     * Return a rough count of the bytes of heap the view's arrays take up.
+     * @return the view's size in bytes
+     */
+    public int heapSize()
+    {
+        return message.length + 8 * (children.length + records.length)
+            + 4 * (xs.length + ys.length);
+    }
+
+    /**
+     * Return the position of the node being viewed.
+     * @return the position of the node's message
+     */
+    public long getPosition()
+    {
+        return position;
+    }
+
+    /**
+     * Return whether the node being viewed is a region node.
+     * @return true if the node is a region node, false if it is a leaf
+     */
+    public boolean isRegion()
+    {
+        return HandleConverter.isRegion(message[0]);
+    }
+
+    /**
+     * Return the position of one of the region's children.
+     * @param quadrant the child to return, one of NW, NE, SW or SE
+     * @return the position of the child's message, or Handle.EMPTY
+     */
+    public long getChild(int quadrant)
+    {
+        return children[quadrant];
+    }
+
+    /**
+     * Return the number of records under the region, as stored in its
+     * message.
+     * @return the number of records, or -1 if the region doesn't store it
+     */
+    public int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Return the sum of the x coordinates of the records under the region,
+     * as stored in its message.
+     * @return the sum, or -1 if the region doesn't store it
+     */
+    public long getSumX()
+    {
+        return sumX;
+    }
+
+    /**
+     * Return the sum of the y coordinates of the records under the region,
+     * as stored in its message.
+     * @return the sum, or -1 if the region doesn't store it
+     */
+    public long getSumY()
+    {
+        return sumY;
+    }
+
+    /**
+     * Return the depth of the region's quadrant if it is a compressed
+     * region, whose children split a smaller quadrant than the one below
+     * its parent.
+     * @return the depth, or -1 if the region isn't compressed
+     */
+    public int getDepth()
+    {
+        return depth;
+    }
+
+    /**
+     * Return the Morton code of the corner of a compressed region's
+     * quadrant (see Morton.prefix).
+     * @return the prefix, or 0 if the region isn't compressed
+     */
+    public int getPrefix()
+    {
+        return prefix;
+    }
+
+    /**
+     * Return the number of records in the leaf.
+     * @return the number of records
+     */
+    public int getRecordCount()
+    {
+        return recordCount;
+    }
+
+    /**
+     * Return whether the coordinates of the leaf's records are known, either
+     * because the leaf's message stores them or because they were set.
+     * @return true if getXs and getYs hold the leaf's coordinates
+     */
+    public boolean hasPoints()
+    {
+        return hasPoints;
+    }
+
+    /**
+     * Set the coordinates of one of the leaf's records, for leaves whose
+     * message doesn't store them.  Once every record's are set, call
+     * pointsSet.
+     * @param index the index of the record in the leaf
+     * @param x the record's x coordinate
+     * @param y the record's y coordinate
+     */
+    public void setPoint(int index, int x, int y)
+    {
+        xs[index] = x;
+        ys[index] = y;
+    }
+
+    /**
+     * Mark the coordinates of every record in the leaf as set.
+     */
+    public void pointsSet()
+    {
+        hasPoints = true;
+    }
+
+    /**
+     * Return the x coordinates of the leaf's records.  Only the first
+     * getRecordCount values belong to the leaf.
+     * @return the x coordinates
+     */
+    public int[] getXs()
+    {
+        return xs;
+    }
+
+    /**
+     * Return the y coordinates of the leaf's records.  Only the first
+     * getRecordCount values belong to the leaf.
+     * @return the y coordinates
+     */
+    public int[] getYs()
+    {
+        return ys;
+    }
+
+    /**
+     * Return the position of one of the leaf's records.
+     * @param index the index of the record in the leaf
+     * @return the position of the record's message
+     */
+    public long getRecord(int index)
+    {
+        return records[index];
+    }
+}
@@ -1,6 +1,18 @@
-import java.nio.ByteBuffer;
 import java.awt.Point;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * // -------------------------------------------------------------------------
@@ -8,6 +20,34 @@ import java.util.ArrayList;
  *  A Point Region Quadtree for storing objects of generic type T according to
  *  x and y coordinates.  Objects can be inserted, removed, and searched for by
  *  region.
+ *
+ *  Both the nodes and the objects are stored as messages in a MemoryManager.
+ *  Leaves hold the handles of their objects' messages along with the
+ *  objects' coordinates, so a leaf can be searched without reading the
+ *  objects, and a node's message is rewritten whenever one of its children
+ *  changes.  If the MemoryManager has a NodePager, searches walk the
+ *  decoded nodes it keeps resident and only read the messages of nodes
+ *  that have been paged out.
+ *
+ *  In a compressed tree (see setCompressed) a region whose records all lie
+ *  in one small quadrant far below its parent stores that quadrant's depth
+ *  and Morton prefix, and stands in for the chain of one-child regions
+ *  that would otherwise lead down to it.  Every walk of the tree narrows
+ *  its bounds to a compressed region's quadrant before looking at the
+ *  region's children.
+ *
+ *  The tree can be searched from many threads while one thread at a time
+ *  changes it.  Changes take the write lock of a StampedLock.  Searches run
+ *  first on an optimistic read stamp that is checked after every read from
+ *  the memory pool, and only take the read lock if a change got in the way,
+ *  so they never wait on one another.  Everything an operation needs for
+ *  itself is kept in a per thread Context rather than in the tree.
+ *
+ *  Nodes are never changed in place; a change writes new copies of the
+ *  nodes from the changed leaf up to the root.  A Snapshot keeps an old
+ *  root, and the messages only older versions reach are kept until the
+ *  last snapshot that could reach them is closed, so long reads can run on
+ *  a snapshot without any lock.
  *  @param <T> the generic type of the objects being stored
  *
  *  @author Joshua Rush
@@ -21,42 +61,387 @@ public class PRQuadTree<T>
      */
     public final int MAX_COORD = (int)Math.pow(2, 14) - 1;
 
-    private final Handle EMPTY = new Handle(-1);
+    private final long EMPTY = Handle.EMPTY;
+    //thrown to abandon an optimistic read
+    private static final RetryException RETRY = new RetryException();
+    //the most records a leaf can hold before it is split, by default
+    private static final int LEAF_CAPACITY = 3;
+    //the number of levels over which adaptive buckets double in size
+    private static final int ADAPTIVE_STEP = 3;
+    //the number of decoded records kept in the record cache
+    private static final int RECORD_CACHE_SIZE = 100;
+    //the default width of the smallest region parallelSearch splits up
+    private static final int PARALLEL_THRESHOLD = 1 << 11;
+    //the number of bytes of the pool reserved at a time by load
+    private static final int LOAD_CHUNK_SIZE = 1 << 16;
+    //checks one leaf point at a time, for any circle
+    private static final LeafScanner SCALAR = new ScalarLeafScanner();
+    //checks leaf points a vector at a time if the vector API is there
+    private static final LeafScanner SCANNER = loadScanner();
+    //the order circular searches visit a region's children in
+    private static final int[] WALK_ORDER = {NodeView.NW, NodeView.NE,
+        NodeView.SE, NodeView.SW};
 
     private MemoryManager manager;
+    //converts the records in the leaves to and from their messages
+    private RecordCodec<T> codec;
     //The root node of the quadtree
-    private Handle root;
-    //a flyweight for an empty leaf node
-    private EmptyLeafNode<T> empty;
-    //a boolean flag that is set when an insertion fails
-    private boolean failedInsert;
-    //a counter for the number of nodes looked at during a search
-    private int searchCount;
+    private long root;
+    //recently used records, so hot records aren't decoded on every use
+    private RecordCache<T> recordCache;
+    //each thread's views, read space and flags for the operation it's in
+    private ThreadLocal<Context> contexts;
+    //write locked by changes, read optimistically or read locked by searches
+    private StampedLock lock;
+    //how wide a region has to be for parallelSearch to split it across tasks
+    private int parallelThreshold;
+    //the version of the tree, moved up by every change, so open cursors can
+    //tell their nodes may have been removed and snapshots know what they pin
+    private volatile long version;
+    //the versions pinned by open snapshots, and how many snapshots pin each
+    private TreeMap<Long, Integer> pinned;
+    //messages a change replaced while a snapshot was open, as {version of
+    //the change, handle}, oldest first
+    private ArrayDeque<long[]> retired;
+    //the most records a leaf holds before it is split
+    private int leafCapacity;
+    //the most records a region can hold and still be merged into a leaf
+    private int mergeThreshold;
+    //the deepest a node can be; leaves this deep are never split
+    private int maxDepth;
+    //whether buckets get wider the deeper, and so denser, they are
+    private boolean adaptive;
+    //whether chains of regions with one child are written as one region
+    private boolean compressed;
+    //where the profiles of slow searches are printed, or null to not print
+    //them, and how many nanoseconds a search has to take to be printed
+    private PrintStream slowQueryLog;
+    private long slowQueryThreshold;
+    //the results of recent circular searches, or null if they aren't kept
+    private SearchCache<T> searchCache;
+    /**
+     * Create a new quadtree with an empty root, using 3 record buckets that
+     * are merged back as soon as a region holds 3 records or fewer.
+     * @param memman the MemoryManager the nodes and records are stored in
+     * @param pCodec converts records to and from their messages
+     */
+    public PRQuadTree(MemoryManager memman, RecordCodec<T> pCodec)
+    {
+        this(memman, pCodec, LEAF_CAPACITY, LEAF_CAPACITY, Morton.BITS);
+    }
     /**
-     * Create a new quadtree with an empty root.
+     * Create a new quadtree with an empty root and the given bucket shape.
+     * A leaf is split when it would hold more than pLeafCapacity records,
+     * and a region is only merged back into a leaf once it holds
+     * pMergeThreshold records or fewer.  Keeping the merge threshold below
+     * the capacity keeps a region whose count goes up and down around the
+     * capacity from being split and merged over and over.
+     * @param memman the MemoryManager the nodes and records are stored in
+     * @param pCodec converts records to and from their messages
+     * @param pLeafCapacity the most records a leaf holds before it is split
+     * @param pMergeThreshold the most records a region can hold and be
+     * merged into a leaf, no more than pLeafCapacity
+     * @param pMaxDepth the deepest a node can be, up to Morton.BITS; leaves
+     * this deep hold any number of records
      */
-    public PRQuadTree(MemoryManager memman)
+    public PRQuadTree(MemoryManager memman, RecordCodec<T> pCodec,
+        int pLeafCapacity, int pMergeThreshold, int pMaxDepth)
     {
-        empty = new EmptyLeafNode<T>();
+        if (pLeafCapacity < 1)
+            throw new IllegalArgumentException("Leaf capacity must be at "
+                + "least 1");
+        if (pMergeThreshold < 0 || pMergeThreshold > pLeafCapacity)
+            throw new IllegalArgumentException("Merge threshold must be from "
+                + "0 to the leaf capacity");
+        if (pMaxDepth < 0 || pMaxDepth > Morton.BITS)
+            throw new IllegalArgumentException("Max depth must be from 0 to "
+                + Morton.BITS);
+        leafCapacity = pLeafCapacity;
+        mergeThreshold = pMergeThreshold;
+        maxDepth = pMaxDepth;
+        adaptive = false;
+        compressed = false;
         root = EMPTY;
-        failedInsert = false;
         manager = memman;
+        codec = pCodec;
+        recordCache = new RecordCache<T>(RECORD_CACHE_SIZE);
+        contexts = new ThreadLocal<Context>() {
+            protected Context initialValue()
+            {
+                return new Context();
+            }
+        };
+        lock = new StampedLock();
+        parallelThreshold = PARALLEL_THRESHOLD;
+        slowQueryLog = null;
+        searchCache = null;
+        pinned = new TreeMap<Long, Integer>();
+        retired = new ArrayDeque<long[]>();
+    }
+    /**
+     * Turn adaptive buckets on or off.  With adaptive buckets the capacity
+     * and merge threshold double every few levels down the tree, so the
+     * small, crowded regions deep in the tree get wide leaves instead of
+     * long chains of regions.  The setting applies to changes made after
+     * it; nodes already in the tree keep their shape until they change.
+     * @param pAdaptive true to widen buckets in dense regions
+     */
+    public void setAdaptive(boolean pAdaptive)
+    {
+        long stamp = lock.writeLock();
+        try
+        {
+            adaptive = pAdaptive;
+        }
+        finally
+        {
+            lock.unlockWrite(stamp);
+        }
+    }
+    /**
+     * Turn path compression on or off.  Clustered records, such as many
+     * cities around one spot, otherwise split into long chains of regions
+     * with only one non-empty child each, one message and one read for
+     * every level down to where the records part.  A compressed tree
+     * writes such a chain as a single region that knows the depth and
+     * prefix of the quadrant its children split, so every region but one
+     * over a lone leaf has at least two children and the height of the
+     * tree is bounded by the number of records rather than by the
+     * coordinate resolution.  The setting applies to changes made after
+     * it; nodes already in the tree keep their shape until they change.
+     * @param pCompressed true to compress chains of regions
+     */
+    public void setCompressed(boolean pCompressed)
+    {
+        long stamp = lock.writeLock();
+        try
+        {
+            compressed = pCompressed;
+        }
+        finally
+        {
+            lock.unlockWrite(stamp);
+        }
+    }
+    /**
+     * Set the cache the results of circular searches are kept in.  Each
+     * insertion or removal drops the cached searches whose circle holds
+     * the changed point, so the cache only ever answers with the records
+     * the search would find now.  The cache is cleared when it is set, since
+     * it may hold results of another tree.
+     * @param cache the search cache, or null to stop caching searches
+     */
+    public void setSearchCache(SearchCache<T> cache)
+    {
+        long stamp = lock.writeLock();
+        try
+        {
+            if (cache != null)
+                cache.clear();
+            searchCache = cache;
+        }
+        finally
+        {
+            lock.unlockWrite(stamp);
+        }
+    }
+    /**
+     * Return the cache the results of circular searches are kept in.
+     * @return the search cache, or null if searches aren't cached
+     */
+    public SearchCache<T> getSearchCache()
+    {
+        return searchCache;
+    }
+    /**
+     * Return the most records a leaf at the given depth holds before it is
+     * split.
+     * @param depth the depth of the leaf in the whole tree
+     * @return the leaf's capacity
+     */
+    private int capacity(int depth)
+    {
+        if (depth >= maxDepth)
+            return Integer.MAX_VALUE;
+        return adaptive ? leafCapacity << (depth / ADAPTIVE_STEP)
+            : leafCapacity;
+    }
+    /**
+     * Return the most records a region at the given depth can hold and
+     * still be merged into a leaf.
+     * @param depth the depth of the region in the whole tree
+     * @return the region's merge threshold
+     */
+    private int mergeThreshold(int depth)
+    {
+        return adaptive ? mergeThreshold << (depth / ADAPTIVE_STEP)
+            : mergeThreshold;
     }
     /**
      * Insert the specified record into the appropriate place in the quadtree.
+     * The record is stored as a message in the MemoryManager.
+     * @param element the element to be inserted
+     * @param x the x coordinate where the element will be stored
+     * @param y the y coordinate where the element will be stored
+     * @return the handle of the stored element, or Handle.EMPTY if the insert
+     * failed
+     */
+    public long insert(T element, int x, int y)
+    {
+        long stamp = lock.writeLock();
+        try
+        {
+            return insert(contexts.get(), element, x, y);
+        }
+        finally
+        {
+            lock.unlockWrite(stamp);
+        }
+    }
+    /**
+     * Insert a record while holding the write lock.
+     * @param context the calling thread's context
      * @param element the element to be inserted
      * @param x the x coordinate where the element will be stored
      * @param y the y coordinate where the element will be stored
-     * @return if the insert was successful
+     * @return the handle of the stored element, or Handle.EMPTY if the insert
+     * failed
      */
-    public boolean insert(T element, int x, int y)
+    private long insert(Context context, T element, int x, int y)
     {
-        failedInsert = false;
-        root =  insertHelp(0, MAX_COORD, 0, MAX_COORD, root, element, new Point(x, y));
-        if (failedInsert)
-            return false;
+        context.failedInsert = false;
+        version++;
+        byte[] message = codec.encode(element);
+        long record = manager.insert(message, message.length);
+        //the handle may be a removed record's, which a reader could have
+        //cached after the removal dropped it
+        recordCache.invalidate(record);
+        root =  insertHelp(context, root, record, new Point(x, y),
+            Morton.encode(x, y), 0);
+        if (context.failedInsert)
+        {
+            //a record is already at these coordinates, don't keep this one
+            manager.remove(record);
+            return EMPTY;
+        }
         else
-            return true;
+        {
+            invalidateSearches(x, y);
+            return record;
+        }
+    }
+    /**
+     * Return the record stored at a handle, such as one returned by insert.
+     * @param handle the handle of the record's message
+     * @return the record
+     */
+    public T getRecord(final long handle)
+    {
+        return new ReadOperation<T>() {
+            protected T run(Context context)
+            {
+                return getRecord(context, handle);
+            }
+        }.execute();
+    }
+    /**
+     * Return the record stored at a handle, reading it with a context.
+     * @param context the context of the operation reading the record
+     * @param handle the handle of the record's message
+     * @return the record
+     */
+    private T getRecord(Context context, long handle)
+    {
+        T record = recordCache.get(handle);
+        if (record == null)
+        {
+            //a change made while the record is read moves the generation
+            //up, so put won't cache what may be another record's message
+            long generation = recordCache.getGeneration();
+            int size = context.readRecord(handle);
+            record = codec.decode(context.recordSpace, size);
+            recordCache.put(handle, record, generation);
+        }
+        return record;
+    }
+    /**
+     * Return the handle of the record stored at the given coordinates.
+     * @param x the x coordinate of the record
+     * @param y the y coordinate of the record
+     * @return the handle of the record, or Handle.EMPTY if no record is
+     * stored there
+     */
+    public long getHandle(final int x, final int y)
+    {
+        return new ReadOperation<Long>() {
+            protected Long run(Context context)
+            {
+                return handleAt(context, x, y);
+            }
+        }.execute();
+    }
+    /**
+     * Walk down to the leaf a point is in and return the handle of the
+     * record stored at the point.
+     * @param context the context of the operation reading the tree
+     * @param x the x coordinate of the point
+     * @param y the y coordinate of the point
+     * @return the handle of the record, or Handle.EMPTY
+     */
+    private long handleAt(Context context, int x, int y)
+    {
+        long position = root;
+        int xmin = 0;
+        int ymin = 0;
+        int xmax = MAX_COORD;
+        int ymax = MAX_COORD;
+        int depth = 0;
+        while (position != EMPTY)
+        {
+            NodeView view = context.view(depth, position);
+            if (!view.isRegion())
+            {
+                context.loadPoints(view);
+                for (int i = 0; i < view.getRecordCount(); i++)
+                {
+                    if (view.getXs()[i] == x && view.getYs()[i] == y)
+                        return view.getRecord(i);
+                }
+                return EMPTY;
+            }
+            if (view.getDepth() >= 0)
+            {
+                //a compressed region, its children split a smaller quadrant
+                int[] bounds = quadrantBounds(view);
+                if (x < bounds[0] || y < bounds[1] || x > bounds[2]
+                    || y > bounds[3])
+                    return EMPTY;
+                xmin = bounds[0];
+                ymin = bounds[1];
+                xmax = bounds[2];
+                ymax = bounds[3];
+                depth = view.getDepth();
+            }
+            int xmid = (xmax + xmin)/2;
+            int ymid = (ymax + ymin)/2;
+            int quadrant;
+            if (y <= ymid)
+                quadrant = (x <= xmid) ? NodeView.NW : NodeView.NE;
+            else
+                quadrant = (x <= xmid) ? NodeView.SW : NodeView.SE;
+            position = view.getChild(quadrant);
+            //narrow the bounds to the child's quadrant
+            if (x <= xmid)
+                xmax = xmid;
+            else
+                xmin = xmid + 1;
+            if (y <= ymid)
+                ymax = ymid;
+            else
+                ymin = ymid + 1;
+            depth++;
+        }
+        return EMPTY;
     }
     /**
      * Print out a String representation of the quadtree.  Traverse in a
@@ -65,48 +450,59 @@ public class PRQuadTree<T>
      */
     public void debug()
     {
-        preOrderTraverse(root);
+        //print from a snapshot, so a long printout doesn't hold up changes
+        Snapshot snapshot = snapshot();
+        try
+        {
+            snapshot.debug();
+        }
+        finally
+        {
+            snapshot.close();
+        }
     }
     /**
      * Visit each Node in the tree in a preorder fashion.  The NW, NE, SW, and
      * SE children are visited in that order after visiting the root.
-     * @param rootNode the root of the tree/subtree being traversed.
+     * @param position the position of the root of the tree/subtree being
+     * traversed.
+     * @param depth the depth of the subtree's root in the whole tree
      */
-    @SuppressWarnings("unchecked")
-    public void preOrderTraverse(Node<T> rootNode)
+    public void preOrderTraverse(long position, int depth)
     {
-        if (rootNode == null)
+        if (position == EMPTY)
+        {
+            System.out.print("E");
             return;
-        visit(rootNode);
-        if (rootNode instanceof RegionNode)
+        }
+        Context context = contexts.get();
+        NodeView view = context.view(depth, position);
+        visit(view);
+        if (view.isRegion())
         {
-            RegionNode<T> region = (RegionNode<T>)rootNode;
-            preOrderTraverse(region.getNorthWest());
-            preOrderTraverse(region.getNorthEast());
-            preOrderTraverse(region.getSouthWest());
-            preOrderTraverse(region.getSouthEast());
+            preOrderTraverse(view.getChild(NodeView.NW), depth + 1);
+            preOrderTraverse(view.getChild(NodeView.NE), depth + 1);
+            preOrderTraverse(view.getChild(NodeView.SW), depth + 1);
+            preOrderTraverse(view.getChild(NodeView.SE), depth + 1);
         }
     }
     /**
      * Print out a representation of a node in the quadtree.  RegionNodes are
-     * represented with an 'I', emmpty leaf nodes with an 'E' and leaf nodes
-     * with a printout of the items they store.
-     * @param node the node to print a representation of
+     * represented with an 'I' and leaf nodes with a printout of the items
+     * they store.
+     * @param view a view of the node to print a representation of
      */
-    public void visit(Node<T> node)
+    public void visit(NodeView view)
     {
-        if(node instanceof RegionNode<?>)
+        if(view.isRegion())
             System.out.print("I");
-        else if(node.equals(empty))
-            System.out.print("E");
         else
         {
             //node is leaf, print its records
-            LeafNode<T> leaf = (LeafNode<T>)node;
-            ArrayList<T> records = leaf.getItems();
-            for(T record: records)
+            for(int i = 0; i < view.getRecordCount(); i++)
             {
-                System.out.print(record.toString());
+                System.out.print(getRecord(contexts.get(),
+                    view.getRecord(i)).toString());
             }
             System.out.print("|");
         }
@@ -114,106 +510,409 @@ public class PRQuadTree<T>
 
     /**
      * Insert a record into the tree.  Traverse down to the correct leaf, and
-     * split the leaf into 4 regions if necessary.
-     * @param xmin the min x value for the region being inserted into
-     * @param xmax the max x value for the region being inserted into
-     * @param ymin the min y value for the region being inserted into
-     * @param ymax the max y value for the region being inserted into
+     * split the leaf into 4 regions if necessary.  Every node on the way down
+     * is rewritten, since its child's handle changes.  The child to descend
+     * into at each level is read from the record's Morton code.
+     * @param context the context of the insert
      * @param rootNode the root of the tree being inserted into
-     * @param element the element being inserted
+     * @param record the handle of the record being inserted
      * @param coords the coordinates for the element being inserted, stored in a Point
+     * @param code the Morton code of the coordinates
+     * @param depth the depth of rootNode in the whole tree
      * @return the root of a new Quadtree with the record inserted
      */
-    public Node<T> insertHelp(int xmin, int xmax, int ymin, int ymax,
-        Node<T> rootNode, T element, Point coords)
+    public long insertHelp(Context context, long rootNode, long record,
+        Point coords, int code, int depth)
     {
+        if (rootNode == EMPTY)
+        {
+            //we're at an empty leaf, return a new leaf with the record.
+            return HandleConverter.write(new LeafNode<T>(new long[] {record},
+                new int[] {coords.x}, new int[] {coords.y}, manager), manager);
+        }
+        Node<T> node = HandleConverter.convertToNode(rootNode, manager);
         //check what type of node rootNode is.
-        if (rootNode instanceof RegionNode<?>)
+        if (node instanceof RegionNode<?>)
         {
-            RegionNode<T> regionRoot = (RegionNode<T>)rootNode;
+            RegionNode<T> regionRoot = (RegionNode<T>)node;
+            if (regionRoot.getDepth() >= 0)
+            {
+                //a compressed region, the record may be outside its quadrant
+                if (Morton.prefix(code, regionRoot.getDepth())
+                    != regionRoot.getPrefix())
+                    return branch(regionRoot, record, coords, code, depth);
+                depth = regionRoot.getDepth();
+            }
+            long[] children = {regionRoot.getNorthWest(),
+                regionRoot.getNorthEast(), regionRoot.getSouthWest(),
+                regionRoot.getSouthEast()};
             //We're not at a leaf, so find which node to try to insert to next.
-            String regionName = determineRegion(coords, xmin, ymin, xmax, ymax);
-            if (regionName.equals("SE"))
-                regionRoot.setSouthEast(insertHelp((xmax + xmin)/2 + 1, xmax,
-                    (ymax + ymin)/2 + 1, ymax, regionRoot.getSouthEast(), element, coords));
-            else if (regionName.equals("NE"))
-                regionRoot.setNorthEast(insertHelp((xmax + xmin)/2 + 1, xmax, ymin,
-                    (ymax + ymin)/2, regionRoot.getNorthEast(), element, coords));
-            else if (regionName.equals("SW"))
-                regionRoot.setSouthWest(insertHelp(xmin, (xmax + xmin)/2, (ymax + ymin)/2 + 1, ymin,
-                    regionRoot.getSouthWest(), element, coords));
-            else
-                regionRoot.setNorthWest(insertHelp(xmin, (xmax + xmin)/2, ymin, (ymax + ymin)/2,
-                    regionRoot.getNorthWest(), element, coords));
+            int quadrant = Morton.quadrant(code, depth);
+            children[quadrant] = insertHelp(context, children[quadrant], record,
+                coords, code, depth + 1);
+            int count = regionRoot.getItemCount();
+            long sumX = regionRoot.getSumX();
+            long sumY = regionRoot.getSumY();
+            if (!context.failedInsert)
+            {
+                count++;
+                //the sums stay unknown in regions that never had them
+                if (sumX >= 0)
+                {
+                    sumX += coords.x;
+                    sumY += coords.y;
+                }
+            }
             //return the RegionNode that set it's region through recursion
-            return regionRoot;
+            return rewrite(regionRoot, children[NodeView.NW],
+                children[NodeView.NE], children[NodeView.SW],
+                children[NodeView.SE], count, sumX, sumY);
         }
-        else if (rootNode.equals(empty))
+        //We're at a leaf node, check to see if a record is already present
+        //at the coordinates.
+        LeafNode<T> leaf = (LeafNode<T>)node;
+        long[] records = leaf.getRecords();
+        int[][] points = points(context, leaf);
+        for (int i = 0; i < records.length; i++)
         {
-            //we're at an empty leaf, return a new Leafnode with the record.
-            LeafNode<T> newLeaf = new LeafNode<T>();
-            newLeaf.addItem(element, coords);
-            return newLeaf;
+            if (points[0][i] == coords.x && points[1][i] == coords.y)
+            {
+                //if the record is already present, set the failedinsert
+                //flag and return the leaf without inserting.
+                context.failedInsert = true;
+                return rootNode;
+            }
         }
-        else
+        long[] newRecords = Arrays.copyOf(records, records.length + 1);
+        int[] xs = Arrays.copyOf(points[0], records.length + 1);
+        int[] ys = Arrays.copyOf(points[1], records.length + 1);
+        newRecords[records.length] = record;
+        xs[records.length] = coords.x;
+        ys[records.length] = coords.y;
+        retire(rootNode);
+        if (records.length < capacity(depth))
+        {
+            //the leaf isn't full, return a new leaf with the record added.
+            return HandleConverter.write(new LeafNode<T>(newRecords, xs, ys,
+                manager), manager);
+        }
+        //the leaf is full, split it into 4 leaves under a new RegionNode
+        return split(newRecords, xs, ys, depth);
+    }
+
+    /**
+     * Insert a record that falls outside a compressed region's quadrant.  A
+     * new region is put where the record's path and the region's part,
+     * with the compressed region and a new leaf for the record as its
+     * children.  The compressed region itself is kept as it is.
+     * @param region the compressed region
+     * @param record the handle of the record being inserted
+     * @param coords the coordinates of the record
+     * @param code the Morton code of the coordinates
+     * @param depth the depth of the region's place in the whole tree
+     * @return the handle of the new region
+     */
+    private long branch(RegionNode<T> region, long record, Point coords,
+        int code, int depth)
+    {
+        int level = Morton.commonDepth(code, region.getPrefix());
+        long[] children = {EMPTY, EMPTY, EMPTY, EMPTY};
+        LeafNode<?>[] leaves = new LeafNode<?>[4];
+        children[Morton.quadrant(region.getPrefix(), level)] = region.handle;
+        leaves[Morton.quadrant(code, level)] = new LeafNode<T>(
+            new long[] {record}, new int[] {coords.x}, new int[] {coords.y},
+            manager);
+        long sumX = region.getSumX();
+        long sumY = region.getSumY();
+        if (sumX >= 0)
+        {
+            sumX += coords.x;
+            sumY += coords.y;
+        }
+        return HandleConverter.writeSplit(children, leaves,
+            region.getItemCount() + 1, sumX, sumY,
+            (level > depth) ? level : -1, Morton.prefix(code, level), manager);
+    }
+
+    /**
+     * Return the coordinates of a leaf's records, from the leaf if it has
+     * them and otherwise from the records' messages.
+     * @param context the context used to read the records
+     * @param leaf the leaf
+     * @return the x coordinates followed by the y coordinates, in the same
+     * order as the leaf's records
+     */
+    private int[][] points(Context context, LeafNode<T> leaf)
+    {
+        if (leaf.getXs() != null)
+            return new int[][] {leaf.getXs(), leaf.getYs()};
+        long[] records = leaf.getRecords();
+        int[][] points = new int[2][records.length];
+        for (int i = 0; i < records.length; i++)
+        {
+            context.readRecord(records[i]);
+            points[0][i] = codec.readX(context.recordSpace);
+            points[1][i] = codec.readY(context.recordSpace);
+        }
+        return points;
+    }
+    /**
+     * Build a region node and up to 4 leaf nodes holding the given records.
+     * The new nodes are written together in one block.  A quadrant that
+     * still holds too many records for a leaf is split again.  In a
+     * compressed tree the region skips down past the levels where every
+     * record falls in the same quadrant.
+     * @param records the handles of the records in the new region
+     * @param xs the x coordinate of each record
+     * @param ys the y coordinate of each record
+     * @param depth the depth of the new region's place in the whole tree
+     * @return the handle of the new RegionNode
+     */
+    public long split(long[] records, int[] xs, int[] ys, int depth)
+    {
+        int[] codes = new int[records.length];
+        int low = Integer.MAX_VALUE;
+        int high = 0;
+        for (int i = 0; i < records.length; i++)
+        {
+            codes[i] = Morton.encode(xs[i], ys[i]);
+            low = Math.min(low, codes[i]);
+            high = Math.max(high, codes[i]);
+        }
+        int level = depth;
+        if (compressed)
+        {
+            //every record shares the path of the lowest and highest codes,
+            //so skip the levels on it that would split into a single region
+            int common = Morton.commonDepth(low, high);
+            while (level < common && records.length > capacity(level + 1))
+            {
+                level++;
+            }
+        }
+        //sort the records into the quadrant each one falls in
+        int[] quadrantOf = new int[records.length];
+        int[] counts = new int[4];
+        long sumX = 0;
+        long sumY = 0;
+        for (int i = 0; i < records.length; i++)
+        {
+            quadrantOf[i] = Morton.quadrant(codes[i], level);
+            counts[quadrantOf[i]]++;
+            sumX += xs[i];
+            sumY += ys[i];
+        }
+        long[] children = new long[4];
+        LeafNode<?>[] leaves = new LeafNode<?>[4];
+        for (int i = 0; i <= 3; i++)
         {
-            //We're at a leaf node, check to see if the record is already
-            //present.
-            LeafNode<T> leaf = (LeafNode<T>)rootNode;
-            ArrayList<T> leafItems = leaf.getItems();
-            for(T item: leafItems)
+            children[i] = EMPTY;
+            if (counts[i] == 0)
+                continue;
+            long[] quadrantRecords = new long[counts[i]];
+            int[] quadrantXs = new int[counts[i]];
+            int[] quadrantYs = new int[counts[i]];
+            int count = 0;
+            for (int j = 0; j < records.length; j++)
             {
-                if (item.equals(element))
+                if (quadrantOf[j] == i)
                 {
-                    //if the record is already present, set the failedinsert
-                    //flag and return the leaf without inserting.
-                    failedInsert = true;
-                    return leaf;
+                    quadrantRecords[count] = records[j];
+                    quadrantXs[count] = xs[j];
+                    quadrantYs[count++] = ys[j];
                 }
             }
-            if (leaf.isFull())
+            if (counts[i] > capacity(level + 1))
             {
-                //the leaf is full, split it into 4 leaves under a new RegionNode and try the insertion again
-                RegionNode<T> newRegion = split(xmin, xmax, ymin, ymax,
-                    leaf);
-                return insertHelp(xmin, xmax, ymin, ymax, newRegion, element, coords);
+                //the quadrant is still too full for a leaf, split it too
+                children[i] = split(quadrantRecords, quadrantXs, quadrantYs,
+                    level + 1);
             }
             else
+                leaves[i] = new LeafNode<T>(quadrantRecords, quadrantXs,
+                    quadrantYs, manager);
+        }
+        return HandleConverter.writeSplit(children, leaves, records.length,
+            sumX, sumY, (level > depth) ? level : -1,
+            Morton.prefix(low, level), manager);
+    }
+    /**
+     * Insert a group of records at once.  An empty tree is built bottom up:
+     * the records are sorted by Morton code, which puts every quadrant's
+     * records next to each other, and each node is built from a range of
+     * the sorted records and written once, children before their parent,
+     * through a MessageWriter.  A leaf's records are written just in front
+     * of it.  If the tree already holds records they are inserted one at a
+     * time instead.
+     * @param elements the records to insert
+     * @return the handle of each stored record, in the same order as
+     * elements, or Handle.EMPTY for records that weren't inserted because
+     * another record has the same coordinates
+     */
+    public long[] load(List<T> elements)
+    {
+        long stamp = lock.writeLock();
+        try
+        {
+            return load(contexts.get(), elements);
+        }
+        finally
+        {
+            lock.unlockWrite(stamp);
+        }
+    }
+    /**
+     * Insert a group of records while holding the write lock.
+     * @param context the calling thread's context
+     * @param elements the records to insert
+     * @return the handle of each stored record, or Handle.EMPTY
+     */
+    private long[] load(Context context, List<T> elements)
+    {
+        long[] handles = new long[elements.size()];
+        version++;
+        if (root != EMPTY)
+        {
+            for (int i = 0; i < handles.length; i++)
             {
-                //the leaf isn't full, add it the record to it and return it.
-                leaf.addItem(element, coords);
-                return leaf;
+                T element = elements.get(i);
+                handles[i] = insert(context, element, codec.getX(element),
+                    codec.getY(element));
             }
+            return handles;
         }
-
+        //sort by Morton code, keeping each record's index in the low bits
+        long[] keys = new long[handles.length];
+        for (int i = 0; i < keys.length; i++)
+        {
+            T element = elements.get(i);
+            keys[i] = ((long)Morton.encode(codec.getX(element),
+                codec.getY(element)) << 32) | i;
+        }
+        Arrays.parallelSort(keys);
+        //drop every record after the first at the same coordinates
+        Arrays.fill(handles, EMPTY);
+        int count = 0;
+        for (int i = 0; i < keys.length; i++)
+        {
+            if (count == 0 || (keys[i] >>> 32) != (keys[count - 1] >>> 32))
+                keys[count++] = keys[i];
+        }
+        MessageWriter writer = new MessageWriter(manager, LOAD_CHUNK_SIZE);
+        root = loadHelp(elements, keys, 0, count, 0, writer, handles);
+        writer.flush();
+        for (int i = 0; i < count; i++)
+        {
+            T element = elements.get((int)keys[i]);
+            invalidateSearches(codec.getX(element), codec.getY(element));
+        }
+        return handles;
     }
     /**
-     * Convert a leaf node into a region node and 4 leaf nodes.  Insert the leaf
-     * node's records into the correct leaves of the new region.
-     * @param xmin the minimum x bounds for the new regionNode
-     * @param xmax the max x bound for the new regionNode
-     * @param ymin the minimum y bound for the new regionNode
-     * @param ymax the max y bound for the new regionNode
-     * @param leaf the leaf being split
-     * @return the new RegionNode with leaves containing the previous leaf's
-     * records
+     * Build and write the subtree holding a range of the sorted records.
+     * @param elements the records being loaded
+     * @param keys the records' Morton codes and indexes, sorted
+     * @param lo the index of the first key in the subtree
+     * @param hi the index just past the last key in the subtree
+     * @param depth the depth of the subtree's root in the whole tree
+     * @param writer the writer the nodes and records are appended to
+     * @param handles where each record's handle is stored, by index
+     * @return the handle of the subtree's root
      */
-    public RegionNode<T> split(int xmin, int xmax, int ymin,
-        int ymax, LeafNode<T> leaf)
+    private long loadHelp(List<T> elements, long[] keys, int lo, int hi,
+        int depth, MessageWriter writer, long[] handles)
     {
-        RegionNode<T> regionNode = new RegionNode<T>(empty, empty,
-            empty, empty);
-        //get the items and keys stored in the leaf
-        ArrayList<T> items = leaf.getItems();
-        ArrayList<Point> coords = leaf.getKeys();
-        for(T item: items)
+        if (lo == hi)
+            return EMPTY;
+        if (hi - lo <= capacity(depth))
         {
-            //add all the items in to the new region with their respective coordinates
-            regionNode = (RegionNode<T>)insertHelp(xmin, xmax, ymin, ymax,
-                regionNode, item, coords.get(items.indexOf(item)));
-
+            //few enough records for a leaf, write them and then the leaf
+            long[] records = new long[hi - lo];
+            int[] xs = new int[hi - lo];
+            int[] ys = new int[hi - lo];
+            for (int i = lo; i < hi; i++)
+            {
+                int index = (int)keys[i];
+                T element = elements.get(index);
+                records[i - lo] = writer.append(codec.encode(element));
+                recordCache.invalidate(records[i - lo]);
+                xs[i - lo] = codec.getX(element);
+                ys[i - lo] = codec.getY(element);
+                handles[index] = records[i - lo];
+            }
+            return HandleConverter.write(new LeafNode<T>(records, xs, ys,
+                manager), writer);
+        }
+        long sumX = 0;
+        long sumY = 0;
+        for (int i = lo; i < hi; i++)
+        {
+            T element = elements.get((int)keys[i]);
+            sumX += codec.getX(element);
+            sumY += codec.getY(element);
+        }
+        int first = (int)(keys[lo] >>> 32);
+        int level = depth;
+        if (compressed)
+        {
+            //skip the levels where the whole range is in one quadrant
+            int common = Morton.commonDepth(first, (int)(keys[hi - 1] >>> 32));
+            while (level < common && hi - lo > capacity(level + 1))
+            {
+                level++;
+            }
+        }
+        //the keys in each quadrant follow each other in NW, NE, SW, SE order
+        long[] children = new long[4];
+        int start = lo;
+        for (int quadrant = 0; quadrant <= 3; quadrant++)
+        {
+            int end = start;
+            while (end < hi
+                && Morton.quadrant((int)(keys[end] >>> 32), level) == quadrant)
+            {
+                end++;
+            }
+            children[quadrant] = loadHelp(elements, keys, start, end,
+                level + 1, writer, handles);
+            start = end;
         }
-        return regionNode;
+        RegionNode<T> region = new RegionNode<T>(children[NodeView.NW],
+            children[NodeView.NE], children[NodeView.SW],
+            children[NodeView.SE], hi - lo, sumX, sumY, manager);
+        if (level > depth)
+            region.setPrefix(level, Morton.prefix(first, level));
+        return HandleConverter.write(region, writer);
+    }
+    /**
+     * Return the handle of a region with the given children.  If the children
+     * or the summary changed, the region's message is replaced with a new one.
+     * A child can change and still come back at the same handle, when its
+     * new message lands where its old one was freed, so the summary has to
+     * be checked too.
+     * @param region the region as it is stored now
+     * @param nw the new northwest child
+     * @param ne the new northeast child
+     * @param sw the new southwest child
+     * @param se the new southeast child
+     * @param count the number of records under the region's new children
+     * @param sumX the sum of their x coordinates, or -1 if it isn't known
+     * @param sumY the sum of their y coordinates, or -1 if it isn't known
+     * @return the handle of the region with the given children
+     */
+    private long rewrite(RegionNode<T> region, long nw, long ne, long sw,
+        long se, int count, long sumX, long sumY)
+    {
+        if (nw == region.getNorthWest() && ne == region.getNorthEast()
+            && sw == region.getSouthWest() && se == region.getSouthEast()
+            && count == region.getCount() && sumX == region.getSumX()
+            && sumY == region.getSumY())
+            return region.handle;
+        retire(region.handle);
+        RegionNode<T> copy = new RegionNode<T>(nw, ne, sw, se, count, sumX,
+            sumY, manager);
+        copy.setPrefix(region.getDepth(), region.getPrefix());
+        return HandleConverter.write(copy, manager);
     }
     /**
      * Remove the item with the given x and y coordinates.  Return the item removed,
@@ -223,110 +922,254 @@ public class PRQuadTree<T>
      * @return the item removed
      */
     public T remove(int x, int y)
+    {
+        long stamp = lock.writeLock();
+        try
+        {
+            return remove(contexts.get(), x, y);
+        }
+        finally
+        {
+            lock.unlockWrite(stamp);
+        }
+    }
+    /**
+     * Remove the item with the given coordinates while holding the write
+     * lock.
+     * @param context the calling thread's context
+     * @param x the x coordinate of the item to remove
+     * @param y the y coordinate of the item to remove
+     * @return the item removed, or null
+     */
+    private T remove(Context context, int x, int y)
     {
         ArrayList<T> toRemove = new ArrayList<T>();
         //search for the coordinates to make sure a record to remove exists.
-        searchHelp(new Point(x, y), 0, root,
-            toRemove, 0, 0, MAX_COORD, MAX_COORD);
+        searchHelp(context, new Point(x, y), 0, root,
+            toRemove, 0, 0, MAX_COORD, MAX_COORD, 0);
         if (!toRemove.isEmpty())
         {
+            version++;
             //remove the node
-            root = removeHelp(root, new Point(x, y), 0, 0, MAX_COORD, MAX_COORD);
+            context.removed = EMPTY;
+            root = removeHelp(context, root, new Point(x, y),
+                Morton.encode(x, y), 0);
+            //the record's message isn't needed once it is out of the tree
+            recordCache.invalidate(context.removed);
+            retire(context.removed);
+            invalidateSearches(x, y);
             return toRemove.get(0);
         }
         else
             return null;
     }
+    /**
+     * Drop the cached searches a record inserted or removed at a point
+     * could change, if searches are being cached.
+     * @param x the x coordinate of the point
+     * @param y the y coordinate of the point
+     */
+    private void invalidateSearches(int x, int y)
+    {
+        if (searchCache != null)
+            searchCache.invalidate(x, y);
+    }
     /**
      * Progress through the tree until the item is found, then remove it.
      * Merge any regionNodes that have fewer than 4 items under them into a single
-     * leaf node.
+     * leaf node.  The handle of the removed record is left in the context.
+     * @param context the context of the removal
      * @param node the node currently being looked at (root of current subtree)
      * @param coords the coordinates of the point where the item to remove is stored
-     * @param xmin the minimum x value for the region being examined
-     * @param ymin the minimum y value for the region being examined
-     * @param xmax the maximum x value for the region being examined
-     * @param ymax the maximum y value for the region being examined
+     * @param code the Morton code of the coordinates
+     * @param depth the depth of node in the whole tree
      * @return the root of the subtree with the item removed
      */
-    public Node<T> removeHelp(Node<T> node, Point coords, int xmin, int ymin,
-        int xmax, int ymax)
+    public long removeHelp(Context context, long node, Point coords, int code,
+        int depth)
     {
+        if (node == EMPTY)
+            return EMPTY;
+        Node<T> current = HandleConverter.convertToNode(node, manager);
         //Determine what type of node is currently being looked at.
-        if (node instanceof RegionNode<?>)
+        if (current instanceof RegionNode<?>)
         {
-            RegionNode<T> region = (RegionNode<T>)node;
+            RegionNode<T> region = (RegionNode<T>)current;
+            if (region.getDepth() >= 0)
+            {
+                //a compressed region, the record can only be in its quadrant
+                if (Morton.prefix(code, region.getDepth())
+                    != region.getPrefix())
+                    return node;
+                depth = region.getDepth();
+            }
+            long[] children = {region.getNorthWest(), region.getNorthEast(),
+                region.getSouthWest(), region.getSouthEast()};
             //determine which region the node to be deleted is in.
-            String regionName = determineRegion(coords, xmin, ymin, xmax, ymax);
-            if (regionName.equals("SE"))
-                region.setSouthEast(removeHelp(region.getSouthEast(), coords,
-                    (xmax + xmin)/2 + 1, (ymax + ymin)/2 + 1, xmax, ymax));
-            else if (regionName.equals("NE"))
-                region.setNorthEast(removeHelp(region.getNorthEast(), coords,
-                    (xmax + xmin)/2 + 1, ymin, xmax, (ymax + ymin)/2));
-            else if (regionName.equals("SW"))
-                region.setSouthWest(removeHelp(region.getSouthWest(), coords,
-                    xmin, (ymax + ymin)/2 + 1, (xmax + xmin)/2, ymax));
-            else
-                region.setNorthWest(removeHelp(region.getNorthWest(), coords,
-                    xmin, ymin, (xmax + xmin)/2, (ymax + ymin)/2));
+            int quadrant = Morton.quadrant(code, depth);
+            children[quadrant] = removeHelp(context, children[quadrant], coords,
+                code, depth + 1);
+            long nw = children[NodeView.NW];
+            long ne = children[NodeView.NE];
+            long sw = children[NodeView.SW];
+            long se = children[NodeView.SE];
 
-            //check how many records we have in our children.
-            if (region.getItemCount() < 4)
+            //check how many records are left under the region.
+            int count = region.getItemCount();
+            long sumX = region.getSumX();
+            long sumY = region.getSumY();
+            if (context.removed != EMPTY)
+            {
+                count--;
+                if (sumX >= 0)
+                {
+                    sumX -= coords.x;
+                    sumY -= coords.y;
+                }
+            }
+            if (count <= mergeThreshold(depth))
             {
-                //There's less than 4 items in this region, merge it into a
+                //There's few enough items in this region to merge it into a
                 //single leaf.
-                ArrayList<T> items = region.getItems();
-                ArrayList<Point> keys = region.getKeys();
-                //make a new leaf with this region's items and return it
-                LeafNode<T> newLeaf = new LeafNode<T>();
-                for (int i = 0; i < items.size(); i++)
+                ArrayList<LeafNode<T>> leaves = new ArrayList<LeafNode<T>>();
+                takeLeaves(nw, leaves);
+                takeLeaves(ne, leaves);
+                takeLeaves(sw, leaves);
+                takeLeaves(se, leaves);
+                retire(node);
+                int total = 0;
+                for (LeafNode<T> leaf: leaves)
+                {
+                    total += leaf.getItemCount();
+                }
+                //with a merge threshold of 0 the region merges once its
+                //last record is gone, and an empty quadrant has no leaf
+                if (total == 0)
+                    return EMPTY;
+                long[] records = new long[total];
+                int[] xs = new int[total];
+                int[] ys = new int[total];
+                int merged = 0;
+                for (LeafNode<T> leaf: leaves)
                 {
-                    newLeaf.addItem(items.get(i), keys.get(i));
+                    int[][] points = points(context, leaf);
+                    int size = leaf.getItemCount();
+                    System.arraycopy(leaf.getRecords(), 0, records, merged,
+                        size);
+                    System.arraycopy(points[0], 0, xs, merged, size);
+                    System.arraycopy(points[1], 0, ys, merged, size);
+                    merged += size;
                 }
-                return newLeaf;
+                return HandleConverter.write(new LeafNode<T>(records, xs, ys,
+                    manager), manager);
             }
+            else if (compressed)
+                return compress(region, children, count, sumX, sumY, code,
+                    depth);
             else
-                return region;
+                return rewrite(region, nw, ne, sw, se, count, sumX, sumY);
         }
         else
         {
             //otherwise the node is the leaf we're looking for, delete the record.
-            LeafNode<T> leaf = (LeafNode<T>)node;
-            leaf.remove(coords);
-            if (leaf.isEmpty())
-                return empty;
+            LeafNode<T> leaf = (LeafNode<T>)current;
+            long[] records = leaf.getRecords();
+            int[][] points = points(context, leaf);
+            long[] kept = new long[records.length];
+            int[] xs = new int[records.length];
+            int[] ys = new int[records.length];
+            int count = 0;
+            for (int i = 0; i < records.length; i++)
+            {
+                if (points[0][i] == coords.x && points[1][i] == coords.y)
+                    context.removed = records[i];
+                else
+                {
+                    kept[count] = records[i];
+                    xs[count] = points[0][i];
+                    ys[count++] = points[1][i];
+                }
+            }
+            retire(node);
+            if (count == 0)
+                return EMPTY;
             else
-                return leaf;
+                return HandleConverter.write(new LeafNode<T>(
+                    Arrays.copyOf(kept, count), Arrays.copyOf(xs, count),
+                    Arrays.copyOf(ys, count), manager), manager);
         }
     }
-
     /**
-     * Given a point and region boundries, determine which quadrant of the
-     * region the point lies in.  Return a String representing the quadrant.
-     * @param coords the Point being checked
-     * @param xmin the minimum x value for the region
-     * @param ymin the minimum y value for the region
-     * @param xmax the maximum x value for the region
-     * @param ymax the maximum y value for the region
-     * @return a two character string representing the quadrant the point is in.
-     * @precondition the point is in the region bounds
+     * Return the handle of a region with the given children in a compressed
+     * tree.  A region left with a region as its only child is replaced by
+     * that child, which is made a compressed region if it isn't one
+     * already, so removals don't leave chains behind.  Otherwise the region
+     * is rewritten as usual.
+     * @param region the region as it is stored now
+     * @param children the region's new children, in NW, NE, SW, SE order
+     * @param count the number of records under the region's new children
+     * @param sumX the sum of their x coordinates, or -1 if it isn't known
+     * @param sumY the sum of their y coordinates, or -1 if it isn't known
+     * @param code the Morton code of a point in the region's quadrant
+     * @param depth the depth of the region's quadrant
+     * @return the handle of the region or of the child replacing it
      */
-    private String determineRegion(Point coords, int xmin, int ymin, int xmax, int ymax)
+    private long compress(RegionNode<T> region, long[] children, int count,
+        long sumX, long sumY, int code, int depth)
     {
-        if (coords.x > (xmax + xmin)/2)
+        int only = -1;
+        for (int i = 0; i <= 3; i++)
         {
-            //the point is in the the east side, check the y value
-            if (coords.y > (ymax + ymin)/2)
-                return "SE";
-            else
-                return "NE";
+            if (children[i] != EMPTY)
+                only = (only == -1) ? i : 4;
+        }
+        if (only >= 0 && only <= 3)
+        {
+            Node<T> child = HandleConverter.convertToNode(children[only],
+                manager);
+            if (child instanceof RegionNode<?>)
+            {
+                RegionNode<T> lifted = (RegionNode<T>)child;
+                retire(region.handle);
+                if (lifted.getDepth() >= 0)
+                    return lifted.handle;
+                //the child is right below the region, give it a prefix so it
+                //can take the region's place
+                retire(lifted.handle);
+                RegionNode<T> copy = new RegionNode<T>(lifted.getNorthWest(),
+                    lifted.getNorthEast(), lifted.getSouthWest(),
+                    lifted.getSouthEast(), lifted.getItemCount(),
+                    lifted.getSumX(), lifted.getSumY(), manager);
+                copy.setPrefix(depth + 1, Morton.child(Morton.prefix(code,
+                    depth), depth, only));
+                return HandleConverter.write(copy, manager);
+            }
+        }
+        return rewrite(region, children[NodeView.NW], children[NodeView.NE],
+            children[NodeView.SW], children[NodeView.SE], count, sumX, sumY);
+    }
+    /**
+     * Retire the messages of every node in a subtree, collecting the leaves
+     * it held.  The records themselves are kept.
+     * @param node the root of the subtree
+     * @param leaves the list the subtree's leaves are added to
+     */
+    private void takeLeaves(long node, ArrayList<LeafNode<T>> leaves)
+    {
+        if (node == EMPTY)
+            return;
+        Node<T> current = HandleConverter.convertToNode(node, manager);
+        if (current instanceof RegionNode<?>)
+        {
+            RegionNode<T> region = (RegionNode<T>)current;
+            takeLeaves(region.getNorthWest(), leaves);
+            takeLeaves(region.getNorthEast(), leaves);
+            takeLeaves(region.getSouthWest(), leaves);
+            takeLeaves(region.getSouthEast(), leaves);
         }
-        //the point is in the west side, check the y value
-        else if (coords.y > (ymax+ ymin)/2)
-            return "SW";
         else
-            return "NW";
+            leaves.add((LeafNode<T>)current);
+        retire(node);
     }
 
     /**
@@ -339,51 +1182,1057 @@ public class PRQuadTree<T>
      */
     public ArrayList<T> search(int x, int y, int radius)
     {
-        ArrayList<T> results = new ArrayList<T>();
-        searchCount = 0;
-        searchHelp(new Point(x, y), radius, root, results, 0, 0, MAX_COORD, MAX_COORD);
-        System.out.println("Searched " + searchCount + " nodes");
-
-        return results;
+        return search(x, y, radius, null);
     }
     /**
-     * Recursively search each node within the given search region.
-     * @param center the coordinates of the search point
+     * Search the quadtree with a circular search area, filling in a profile
+     * of what the search did.
+     * @param x the x coordinate of the search area center
+     * @param y the y coordinate of the search area center
      * @param radius the radius of the search area
-     * @param rootNode the root node of the subtree being searched
-     * @param currList the current List of items within the search region so far
-     * @param xmin the minimum x value for the region being examined
-     * @param ymin the minimum y value for the region being examined
-     * @param xmax the maximum x value for the region being examined
-     * @param ymax the maximum y value for the region being examined
+     * @param profile the profile to fill in, or null to only profile the
+     * search if there is a slow query log
+     * @return an ArrayList containing all the items within the search area
      */
-    private void searchHelp(Point center, int radius, Node<T> rootNode, ArrayList<T> currList,
-        int xmin, int ymin, int xmax, int ymax)
+    public ArrayList<T> search(final int x, final int y, final int radius,
+        QueryProfile profile)
     {
-        searchCount ++;
-        //make sure the node isn't null
-        if (rootNode == null)
-        {
-          return;
-        }
-        //check for a leaf node, if so, check the leaf's elements.
-        else if (rootNode instanceof LeafNode<?>)
+        profile = startProfile(profile);
+        SearchCache<T> cache = searchCache;
+        long key = (cache == null) ? -1 : SearchCache.key(x, y, radius);
+        SearchCache.Result<T> cached = (key < 0) ? null : cache.get(key);
+        ArrayList<T> results;
+        if (cached != null)
         {
-            leafSearch(center, radius, (LeafNode<T>)rootNode, currList);
+            //answered without reading the tree, but report the nodes the
+            //search read when it was made
+            manager.setProfile(null);
+            results = cached.getRecords();
+            contexts.get().reset();
+            contexts.get().nodesVisited = cached.getNodesVisited();
         }
-        //if regionNode, check to see if the search area intersects each region
-        //call searchHelp on all regions that intersect.
-        else if (rootNode instanceof RegionNode<?>)
+        else
         {
-            RegionNode<T> region = (RegionNode<T>)rootNode;
-            if (regionContains(center, radius, xmin, ymin, xmax/2, ymax/2))
-                searchHelp(center, radius, region.getNorthWest(), currList, xmin, ymin, xmax/2, ymax/2);
-            if (regionContains(center, radius, xmax/2 + 1, ymin, xmax, ymax/2))
-                searchHelp(center, radius, region.getNorthEast(), currList, xmax/2 + 1, ymin, xmax, ymax/2);
-            if (regionContains(center, radius, xmax/2 + 1, ymax/2 + 1, xmax, ymax))
-                searchHelp(center, radius, region.getSouthEast(), currList, xmax/2 + 1, ymax/2 + 1, xmax, ymax);
-            if (regionContains(center, radius, xmin, ymax/2 + 1, xmax/2, ymax))
-                searchHelp(center, radius, region.getSouthWest(), currList, xmin, ymax/2 + 1, xmax/2, ymax);
+            long generation = (key < 0) ? 0 : cache.getGeneration();
+            try
+            {
+                results = new ReadOperation<ArrayList<T>>() {
+                    protected ArrayList<T> run(Context context)
+                    {
+                        ArrayList<T> found = new ArrayList<T>();
+                        searchHelp(context, new Point(x, y), radius, root,
+                            found, 0, 0, MAX_COORD, MAX_COORD, 0);
+                        return found;
+                    }
+                }.execute();
+            }
+            finally
+            {
+                manager.setProfile(null);
+            }
+            if (key >= 0)
+                cache.put(key, results, contexts.get().nodesVisited,
+                    generation);
+        }
+        System.out.println("Searched " + contexts.get().nodesVisited + " nodes");
+        finishProfile(profile, results.size(), "search " + x + " " + y + " "
+            + radius);
+
+        return results;
+    }
+    /**
+     * Search the quadtree with a circular search area, splitting the work
+     * for large searches across the threads of a ForkJoinPool.  Each region
+     * node at least the parallel threshold wide hands its intersecting
+     * children to separate tasks, and each task builds its own list of
+     * results that are joined in the same order search returns them.
+     * Searches narrower than the threshold run on the calling thread.
+     * Tasks read the memory pool side by side, and each uses the context
+     * of the thread it runs on, so a thread's tasks share its views.
+     * @param x the x coordinate of the search area center
+     * @param y the y coordinate of the search area center
+     * @param radius the radius of the search area
+     * @param pool the pool to run the search's tasks in
+     * @return an ArrayList containing all the items within the search area
+     */
+    public ArrayList<T> parallelSearch(int x, int y, int radius,
+        ForkJoinPool pool)
+    {
+        if (2 * radius + 1 < parallelThreshold)
+            return search(x, y, radius);
+        AtomicInteger visited = new AtomicInteger();
+        ArrayList<T> results;
+        //the tasks run on other threads, so they share this read lock
+        long stamp = lock.readLock();
+        try
+        {
+            results = pool.invoke(new SearchTask(new Point(x, y), radius,
+                root, 0, 0, MAX_COORD, MAX_COORD, 0, visited));
+        }
+        finally
+        {
+            lock.unlockRead(stamp);
+        }
+        System.out.println("Searched " + visited.get() + " nodes");
+        return results;
+    }
+    /**
+     * Set how wide a region node has to be for parallelSearch to hand its
+     * children to separate tasks.  Searches narrower than this aren't split
+     * up at all.
+     * @param threshold the width of the smallest region split across tasks
+     */
+    public void setParallelThreshold(int threshold)
+    {
+        parallelThreshold = threshold;
+    }
+    /**
+     * Search the quadtree for every record inside a region, such as a
+     * RectangleRegion or PolygonRegion.  Quadrants the region covers have
+     * all their records taken without checking coordinates, and only
+     * quadrants on the region's boundary are checked point by point.
+     * @param region the region to search
+     * @return an ArrayList containing all the items within the region
+     */
+    public ArrayList<T> search(QueryRegion region)
+    {
+        return search(region, null);
+    }
+    /**
+     * Search the quadtree for every record inside a region, filling in a
+     * profile of what the search did.
+     * @param region the region to search
+     * @param profile the profile to fill in, or null to only profile the
+     * search if there is a slow query log
+     * @return an ArrayList containing all the items within the region
+     */
+    public ArrayList<T> search(final QueryRegion region, QueryProfile profile)
+    {
+        profile = startProfile(profile);
+        ArrayList<T> results;
+        try
+        {
+            results = new ReadOperation<ArrayList<T>>() {
+                protected ArrayList<T> run(Context context)
+                {
+                    ArrayList<T> found = new ArrayList<T>();
+                    regionSearchHelp(context, region, root, found, 0, 0,
+                        MAX_COORD, MAX_COORD, 0);
+                    return found;
+                }
+            }.execute();
+        }
+        finally
+        {
+            manager.setProfile(null);
+        }
+        System.out.println("Searched " + contexts.get().nodesVisited + " nodes");
+        finishProfile(profile, results.size(), region.toString());
+        return results;
+    }
+    /**
+     * Print the profile of every search that takes at least a threshold of
+     * time to a log, along with the search it is for.  Searches are only
+     * profiled while there is a log, unless they are given a profile.
+     * @param log where to print the profiles of slow searches, or null to
+     * stop printing them
+     * @param thresholdMillis the fewest milliseconds a search has to take
+     * for its profile to be printed
+     */
+    public void setSlowQueryLog(PrintStream log, long thresholdMillis)
+    {
+        slowQueryThreshold = thresholdMillis * 1000000;
+        slowQueryLog = log;
+    }
+    /**
+     * Start a search's profile and count the calling thread's reads of the
+     * memory pool into it.
+     * @param profile the profile the caller asked for, or null
+     * @return the profile to fill in, which is a new one if the caller
+     * didn't ask for one but there is a slow query log, or null if the
+     * search isn't being profiled
+     */
+    private QueryProfile startProfile(QueryProfile profile)
+    {
+        if (profile == null && slowQueryLog != null)
+            profile = new QueryProfile();
+        if (profile != null)
+        {
+            profile.start();
+            manager.setProfile(profile);
+        }
+        return profile;
+    }
+    /**
+     * Fill in a search's profile from the calling thread's context, and
+     * print it if the search was slow.
+     * @param profile the search's profile, or null if it isn't profiled
+     * @param results the number of records the search returned
+     * @param query a description of the search for the slow query log
+     */
+    private void finishProfile(QueryProfile profile, int results,
+        String query)
+    {
+        if (profile == null)
+            return;
+        Context context = contexts.get();
+        profile.finish(context.regionsVisited, context.leavesVisited,
+            context.quadrantsPruned, context.pointsTested, results);
+        PrintStream log = slowQueryLog;
+        if (log != null && profile.getWallTime() >= slowQueryThreshold)
+            log.println("Slow query (" + query + "): " + profile);
+    }
+    /**
+     * Recursively search each node that intersects a region.
+     * @param context the views and counters for this search
+     * @param region the region being searched
+     * @param position the position of the root node of the subtree being
+     * searched
+     * @param currList the current List of items within the region so far
+     * @param xmin the minimum x value for the region being examined
+     * @param ymin the minimum y value for the region being examined
+     * @param xmax the maximum x value for the region being examined
+     * @param ymax the maximum y value for the region being examined
+     * @param depth the depth of the subtree's root in the whole tree
+     */
+    private void regionSearchHelp(Context context, QueryRegion region,
+        long position, ArrayList<T> currList, int xmin, int ymin, int xmax,
+        int ymax, int depth)
+    {
+        context.nodesVisited ++;
+        if (position == EMPTY)
+            return;
+        if (region.covers(xmin, ymin, xmax, ymax))
+        {
+            //the whole quadrant is in the region, take everything under it
+            collect(context, position, currList, depth);
+            return;
+        }
+        NodeView view = context.view(depth, position);
+        if (!view.isRegion())
+        {
+            //the leaf is on the region's boundary, check each point
+            context.leavesVisited++;
+            context.loadPoints(view);
+            context.pointsTested += view.getRecordCount();
+            for (int i = 0; i < view.getRecordCount(); i++)
+            {
+                if (region.contains(view.getXs()[i], view.getYs()[i]))
+                    currList.add(getRecord(context, view.getRecord(i)));
+            }
+            return;
+        }
+        context.regionsVisited++;
+        if (view.getDepth() >= 0)
+        {
+            //a compressed region, its children split a smaller quadrant
+            int[] bounds = quadrantBounds(view);
+            xmin = bounds[0];
+            ymin = bounds[1];
+            xmax = bounds[2];
+            ymax = bounds[3];
+            depth = view.getDepth();
+        }
+        int xmid = (xmax + xmin)/2;
+        int ymid = (ymax + ymin)/2;
+        if (region.intersects(xmin, ymin, xmid, ymid))
+            regionSearchHelp(context, region, view.getChild(NodeView.NW),
+                currList, xmin, ymin, xmid, ymid, depth + 1);
+        else
+            context.quadrantsPruned++;
+        if (region.intersects(xmid + 1, ymin, xmax, ymid))
+            regionSearchHelp(context, region, view.getChild(NodeView.NE),
+                currList, xmid + 1, ymin, xmax, ymid, depth + 1);
+        else
+            context.quadrantsPruned++;
+        if (region.intersects(xmid + 1, ymid + 1, xmax, ymax))
+            regionSearchHelp(context, region, view.getChild(NodeView.SE),
+                currList, xmid + 1, ymid + 1, xmax, ymax, depth + 1);
+        else
+            context.quadrantsPruned++;
+        if (region.intersects(xmin, ymid + 1, xmid, ymax))
+            regionSearchHelp(context, region, view.getChild(NodeView.SW),
+                currList, xmin, ymid + 1, xmid, ymax, depth + 1);
+        else
+            context.quadrantsPruned++;
+    }
+    /**
+     * Add every record in a subtree to a list, without checking where the
+     * records are.
+     * @param context the views and counters for this search
+     * @param position the position of the root of the subtree
+     * @param currList the list the records are added to
+     * @param depth the depth of the subtree's root in the whole tree
+     */
+    private void collect(Context context, long position, ArrayList<T> currList,
+        int depth)
+    {
+        if (position == EMPTY)
+            return;
+        NodeView view = context.view(depth, position);
+        if (view.isRegion())
+        {
+            context.regionsVisited++;
+            for (int i = 0; i <= 3; i++)
+            {
+                context.nodesVisited++;
+                collect(context, view.getChild(i), currList, depth + 1);
+            }
+        }
+        else
+        {
+            context.leavesVisited++;
+            for (int i = 0; i < view.getRecordCount(); i++)
+            {
+                currList.add(getRecord(context, view.getRecord(i)));
+            }
+        }
+    }
+    /**
+     * Search the quadtree for the records inside each of a batch of
+     * regions in one pass.  The walk carries the regions still live down
+     * each quadrant and drops a region as soon as it can't reach the
+     * quadrant, so each node is read once for the whole batch rather than
+     * once for each region.  Runs of searches around nearby centers share
+     * most of their nodes, so this saves most of the reads.
+     *
+     * Each region's records come back in the order search returns them,
+     * and each region is counted the nodes search would count for it,
+     * empty quadrants included, so a batch of circles reports just what
+     * the same searches run one at a time would.  Circles whose results
+     * are in the search cache, which search shares, are answered from it
+     * and left out of the walk.
+     * @param regions the regions to search
+     * @param nodesVisited if not null, set to the number of nodes searched
+     * for each region
+     * @return a list of the records inside each region, in the same order
+     * as regions
+     */
+    public ArrayList<ArrayList<T>> search(final QueryRegion[] regions,
+        final int[] nodesVisited)
+    {
+        //the batch shares one walk, so it can only be profiled as a whole
+        QueryProfile profile = startProfile(null);
+        //circles already in the search cache are left out of the walk
+        SearchCache<T> cache = searchCache;
+        long generation = (cache == null) ? 0 : cache.getGeneration();
+        final long[] keys = new long[regions.length];
+        final ArrayList<SearchCache.Result<T>> cached =
+            new ArrayList<SearchCache.Result<T>>();
+        for (int i = 0; i < regions.length; i++)
+        {
+            keys[i] = -1;
+            if (cache != null && regions[i] instanceof CircleRegion)
+            {
+                CircleRegion circle = (CircleRegion)regions[i];
+                keys[i] = SearchCache.key(circle.getX(), circle.getY(),
+                    circle.getRadius());
+            }
+            cached.add((keys[i] < 0) ? null : cache.get(keys[i]));
+        }
+        final int[] visited = new int[regions.length];
+        ArrayList<ArrayList<T>> results;
+        try
+        {
+            results = new ReadOperation<ArrayList<ArrayList<T>>>() {
+                protected ArrayList<ArrayList<T>> run(Context context)
+                {
+                    ArrayList<ArrayList<T>> found =
+                        new ArrayList<ArrayList<T>>();
+                    Arrays.fill(visited, 0);
+                    int[] live = new int[regions.length];
+                    int liveCount = 0;
+                    for (int i = 0; i < regions.length; i++)
+                    {
+                        SearchCache.Result<T> hit = cached.get(i);
+                        if (hit != null)
+                        {
+                            found.add(hit.getRecords());
+                            visited[i] = hit.getNodesVisited();
+                        }
+                        else
+                        {
+                            //search reads the root even for a region
+                            //outside the tree, so it starts out live
+                            found.add(new ArrayList<T>());
+                            live[liveCount++] = i;
+                        }
+                    }
+                    batchSearchHelp(context, regions, live, liveCount,
+                        new boolean[regions.length], root, found, visited, 0,
+                        0, MAX_COORD, MAX_COORD, 0);
+                    return found;
+                }
+            }.execute();
+        }
+        finally
+        {
+            manager.setProfile(null);
+        }
+        if (nodesVisited != null)
+            System.arraycopy(visited, 0, nodesVisited, 0, regions.length);
+        for (int i = 0; i < regions.length; i++)
+        {
+            if (keys[i] >= 0 && cached.get(i) == null)
+                cache.put(keys[i], results.get(i), visited[i], generation);
+        }
+        if (profile != null)
+        {
+            int found = 0;
+            for (ArrayList<T> list: results)
+            {
+                found += list.size();
+            }
+            finishProfile(profile, found, "batch of " + regions.length
+                + " searches");
+        }
+        return results;
+    }
+    /**
+     * Recursively search a node for every region in a batch that reaches
+     * it.
+     * @param context the views and counters for this search
+     * @param regions the regions being searched
+     * @param live the indexes of the regions that reach the node
+     * @param liveCount the number of indexes in live
+     * @param covered whether each region is known to cover the node
+     * @param position the position of the node
+     * @param results the list of records found for each region
+     * @param visited the number of nodes read for each region
+     * @param xmin the minimum x value for the region being examined
+     * @param ymin the minimum y value for the region being examined
+     * @param xmax the maximum x value for the region being examined
+     * @param ymax the maximum y value for the region being examined
+     * @param depth the depth of the node in the whole tree
+     */
+    private void batchSearchHelp(Context context, QueryRegion[] regions,
+        int[] live, int liveCount, boolean[] covered, long position,
+        ArrayList<ArrayList<T>> results, int[] visited, int xmin, int ymin,
+        int xmax, int ymax, int depth)
+    {
+        if (liveCount == 0)
+            return;
+        //empty quadrants are counted as search counts them
+        context.nodesVisited++;
+        for (int i = 0; i < liveCount; i++)
+        {
+            visited[live[i]]++;
+        }
+        if (position == EMPTY)
+            return;
+        NodeView view = context.view(depth, position);
+        if (!view.isRegion())
+        {
+            context.leavesVisited++;
+            batchLeafSearch(context, regions, live, liveCount, covered, view,
+                results);
+            return;
+        }
+        context.regionsVisited++;
+        if (view.getDepth() >= 0)
+        {
+            //a compressed region, its children split a smaller quadrant
+            int[] bounds = quadrantBounds(view);
+            xmin = bounds[0];
+            ymin = bounds[1];
+            xmax = bounds[2];
+            ymax = bounds[3];
+            depth = view.getDepth();
+        }
+        int xmid = (xmax + xmin)/2;
+        int ymid = (ymax + ymin)/2;
+        int[] childLive = new int[liveCount];
+        boolean[] childCovered = covered.clone();
+        //children are visited in the order searchHelp visits them
+        for (int quadrant: WALK_ORDER)
+        {
+            long child = view.getChild(quadrant);
+            boolean east = (quadrant & 1) != 0;
+            boolean south = (quadrant & 2) != 0;
+            int cxmin = east ? xmid + 1 : xmin;
+            int cymin = south ? ymid + 1 : ymin;
+            int cxmax = east ? xmax : xmid;
+            int cymax = south ? ymax : ymid;
+            //keep the regions that still reach this child
+            int childCount = 0;
+            for (int i = 0; i < liveCount; i++)
+            {
+                int q = live[i];
+                if (covered[q])
+                    childLive[childCount++] = q;
+                else if (regions[q].intersects(cxmin, cymin, cxmax, cymax))
+                {
+                    childCovered[q] = regions[q].covers(cxmin, cymin, cxmax,
+                        cymax);
+                    childLive[childCount++] = q;
+                }
+            }
+            if (childCount == 0)
+            {
+                context.quadrantsPruned++;
+                continue;
+            }
+            batchSearchHelp(context, regions, childLive, childCount,
+                childCovered, child, results, visited, cxmin, cymin, cxmax,
+                cymax, depth + 1);
+        }
+    }
+    /**
+     * Add each of a leaf's records to the results of every live region it
+     * is inside.  The records are read once for the whole batch, in the
+     * order they are stored, and only records that some region wants are
+     * built.
+     * @param context the views and counters for this search
+     * @param regions the regions being searched
+     * @param live the indexes of the regions that reach the leaf
+     * @param liveCount the number of indexes in live
+     * @param covered whether each region is known to cover the leaf
+     * @param leaf a view of the leaf
+     * @param results the list of records found for each region
+     */
+    private void batchLeafSearch(Context context, QueryRegion[] regions,
+        int[] live, int liveCount, boolean[] covered, NodeView leaf,
+        ArrayList<ArrayList<T>> results)
+    {
+        int count = leaf.getRecordCount();
+        context.loadPoints(leaf);
+        int[] xs = leaf.getXs();
+        int[] ys = leaf.getYs();
+        for (int j = 0; j < liveCount; j++)
+        {
+            if (!covered[live[j]])
+                context.pointsTested += count;
+        }
+        for (int i = 0; i < count; i++)
+        {
+            T record = null;
+            for (int j = 0; j < liveCount; j++)
+            {
+                int q = live[j];
+                if (covered[q] || regions[q].contains(xs[i], ys[i]))
+                {
+                    //only build the record once some region wants it
+                    if (record == null)
+                        record = getRecord(context, leaf.getRecord(i));
+                    results.get(q).add(record);
+                }
+            }
+        }
+    }
+    /**
+     * Count the records within a circular search area without reading
+     * them.
+     * @param x the x coordinate of the search area center
+     * @param y the y coordinate of the search area center
+     * @param radius the radius of the search area
+     * @return the number of records within the search area
+     */
+    public int count(int x, int y, int radius)
+    {
+        return count(new CircleRegion(x, y, radius));
+    }
+    /**
+     * Count the records inside a region.  Quadrants the region covers add
+     * the count stored in their region node, so only leaves on the region's
+     * boundary have their records read.
+     * @param region the region to count the records in
+     * @return the number of records inside the region
+     */
+    public int count(final QueryRegion region)
+    {
+        int count = new ReadOperation<Integer>() {
+            protected Integer run(Context context)
+            {
+                return countHelp(context, region, root, 0, 0, MAX_COORD,
+                    MAX_COORD, 0);
+            }
+        }.execute();
+        System.out.println("Searched " + contexts.get().nodesVisited + " nodes");
+        return count;
+    }
+    /**
+     * Recursively count the records in each node that intersects a region.
+     * @param context the views and counters for this count
+     * @param region the region being counted
+     * @param position the position of the root node of the subtree being
+     * counted
+     * @param xmin the minimum x value for the region being examined
+     * @param ymin the minimum y value for the region being examined
+     * @param xmax the maximum x value for the region being examined
+     * @param ymax the maximum y value for the region being examined
+     * @param depth the depth of the subtree's root in the whole tree
+     * @return the number of records in the subtree inside the region
+     */
+    private int countHelp(Context context, QueryRegion region, long position,
+        int xmin, int ymin, int xmax, int ymax, int depth)
+    {
+        context.nodesVisited ++;
+        if (position == EMPTY)
+            return 0;
+        NodeView view = context.view(depth, position);
+        if (view.getDepth() >= 0)
+        {
+            //a compressed region, its children split a smaller quadrant
+            int[] bounds = quadrantBounds(view);
+            xmin = bounds[0];
+            ymin = bounds[1];
+            xmax = bounds[2];
+            ymax = bounds[3];
+            depth = view.getDepth();
+        }
+        if (region.covers(xmin, ymin, xmax, ymax))
+        {
+            //the whole quadrant is in the region, take its stored count
+            long[] totals = new long[3];
+            summarize(context, view, depth, false, totals);
+            return (int)totals[0];
+        }
+        int count = 0;
+        if (!view.isRegion())
+        {
+            //the leaf is on the region's boundary, check each point
+            context.loadPoints(view);
+            for (int i = 0; i < view.getRecordCount(); i++)
+            {
+                if (region.contains(view.getXs()[i], view.getYs()[i]))
+                    count++;
+            }
+            return count;
+        }
+        int xmid = (xmax + xmin)/2;
+        int ymid = (ymax + ymin)/2;
+        if (region.intersects(xmin, ymin, xmid, ymid))
+            count += countHelp(context, region, view.getChild(NodeView.NW),
+                xmin, ymin, xmid, ymid, depth + 1);
+        if (region.intersects(xmid + 1, ymin, xmax, ymid))
+            count += countHelp(context, region, view.getChild(NodeView.NE),
+                xmid + 1, ymin, xmax, ymid, depth + 1);
+        if (region.intersects(xmid + 1, ymid + 1, xmax, ymax))
+            count += countHelp(context, region, view.getChild(NodeView.SE),
+                xmid + 1, ymid + 1, xmax, ymax, depth + 1);
+        if (region.intersects(xmin, ymid + 1, xmid, ymax))
+            count += countHelp(context, region, view.getChild(NodeView.SW),
+                xmin, ymid + 1, xmid, ymax, depth + 1);
+        return count;
+    }
+    /**
+     * Add the number of records under the node a view is on, and if asked
+     * the sums of their coordinates, to a running total.  A region's stored
+     * summary is used when it has one; regions written before summaries
+     * were stored have their children summarized, and leaves written
+     * before coordinates were stored only have their records read for the
+     * sums.
+     * @param context the views and counters for this operation
+     * @param view a view of the node
+     * @param depth the depth of the node in the whole tree
+     * @param sums whether the coordinate sums are needed
+     * @param totals the count, x sum and y sum the node's are added to
+     */
+    private void summarize(Context context, NodeView view, int depth,
+        boolean sums, long[] totals)
+    {
+        if (!view.isRegion())
+        {
+            totals[0] += view.getRecordCount();
+            if (sums)
+                context.loadPoints(view);
+            for (int i = 0; sums && i < view.getRecordCount(); i++)
+            {
+                totals[1] += view.getXs()[i];
+                totals[2] += view.getYs()[i];
+            }
+            return;
+        }
+        if (view.getCount() >= 0 && (!sums || view.getSumX() >= 0))
+        {
+            totals[0] += view.getCount();
+            totals[1] += view.getSumX();
+            totals[2] += view.getSumY();
+            return;
+        }
+        for (int i = 0; i <= 3; i++)
+        {
+            if (view.getChild(i) != EMPTY)
+            {
+                context.nodesVisited++;
+                summarize(context, context.view(depth + 1, view.getChild(i)),
+                    depth + 1, sums, totals);
+            }
+        }
+    }
+    /**
+     * Count the records in each cell of a grid over the whole coordinate
+     * space, 2^level cells on a side.  The tree is only descended as far as
+     * the grid's resolution: a node whose quadrant is a cell adds its
+     * stored summary, and only leaves bigger than a cell have their records
+     * sorted into cells one at a time.  Cells with no records are left out.
+     * @param level the resolution of the grid, from 0 for a single cell to
+     * Morton.BITS for a cell per coordinate
+     * @param centroids whether to find the centroid of each cell's records
+     * @return the non-empty cells, in Morton order
+     */
+    public ArrayList<GridCell> aggregate(final int level,
+        final boolean centroids)
+    {
+        if (level < 0 || level > Morton.BITS)
+            throw new IllegalArgumentException("Level must be from 0 to "
+                + Morton.BITS);
+        ArrayList<GridCell> cells = new ReadOperation<ArrayList<GridCell>>() {
+            protected ArrayList<GridCell> run(Context context)
+            {
+                ArrayList<GridCell> found = new ArrayList<GridCell>();
+                aggregateHelp(context, root, found, 0, 0, MAX_COORD,
+                    MAX_COORD, 0, level, centroids);
+                return found;
+            }
+        }.execute();
+        System.out.println("Searched " + contexts.get().nodesVisited + " nodes");
+        return cells;
+    }
+    /**
+     * Recursively add the cells of a subtree to a grid.
+     * @param context the views and counters for this operation
+     * @param position the position of the root of the subtree
+     * @param cells the list the non-empty cells are added to
+     * @param xmin the minimum x value for the region being examined
+     * @param ymin the minimum y value for the region being examined
+     * @param xmax the maximum x value for the region being examined
+     * @param ymax the maximum y value for the region being examined
+     * @param depth the depth of the subtree's root in the whole tree
+     * @param level the resolution of the grid
+     * @param centroids whether to find the centroid of each cell's records
+     */
+    private void aggregateHelp(Context context, long position,
+        ArrayList<GridCell> cells, int xmin, int ymin, int xmax, int ymax,
+        int depth, int level, boolean centroids)
+    {
+        context.nodesVisited ++;
+        if (position == EMPTY)
+            return;
+        NodeView view = context.view(depth, position);
+        if (view.getDepth() >= 0)
+        {
+            //a compressed region, its children split a smaller quadrant
+            int[] bounds = quadrantBounds(view);
+            xmin = bounds[0];
+            ymin = bounds[1];
+            xmax = bounds[2];
+            ymax = bounds[3];
+            depth = view.getDepth();
+        }
+        int shift = Morton.BITS - level;
+        if (depth >= level)
+        {
+            //the node's quadrant is one cell, or inside one
+            long[] totals = new long[3];
+            summarize(context, view, depth, centroids, totals);
+            cells.add(new GridCell(xmin >> shift, ymin >> shift, 1 << shift,
+                (int)totals[0], centroids ? totals[1] : -1,
+                centroids ? totals[2] : -1));
+            return;
+        }
+        if (!view.isRegion())
+        {
+            //the leaf spans many cells, sort its records into them
+            int count = view.getRecordCount();
+            long[] codes = new long[count];
+            context.loadPoints(view);
+            for (int i = 0; i < count; i++)
+            {
+                int x = view.getXs()[i];
+                int y = view.getYs()[i];
+                //the cell's Morton code above the coordinates, so sorting
+                //puts each cell's records together in the grid's order
+                codes[i] = ((long)Morton.encode(x >> shift, y >> shift) << 28)
+                    | ((long)x << Morton.BITS) | y;
+            }
+            Arrays.sort(codes);
+            int start = 0;
+            while (start < count)
+            {
+                int end = start;
+                long sumX = 0;
+                long sumY = 0;
+                while (end < count && (codes[end] >>> 28) == (codes[start] >>> 28))
+                {
+                    sumX += (codes[end] >>> Morton.BITS) & MAX_COORD;
+                    sumY += codes[end] & MAX_COORD;
+                    end++;
+                }
+                int column = (int)(codes[start] >>> Morton.BITS & MAX_COORD)
+                    >> shift;
+                int row = (int)(codes[start] & MAX_COORD) >> shift;
+                cells.add(new GridCell(column, row, 1 << shift, end - start,
+                    centroids ? sumX : -1, centroids ? sumY : -1));
+                start = end;
+            }
+            return;
+        }
+        int xmid = (xmax + xmin)/2;
+        int ymid = (ymax + ymin)/2;
+        aggregateHelp(context, view.getChild(NodeView.NW), cells, xmin, ymin,
+            xmid, ymid, depth + 1, level, centroids);
+        aggregateHelp(context, view.getChild(NodeView.NE), cells, xmid + 1,
+            ymin, xmax, ymid, depth + 1, level, centroids);
+        aggregateHelp(context, view.getChild(NodeView.SW), cells, xmin,
+            ymid + 1, xmid, ymax, depth + 1, level, centroids);
+        aggregateHelp(context, view.getChild(NodeView.SE), cells, xmid + 1,
+            ymid + 1, xmax, ymax, depth + 1, level, centroids);
+    }
+    /**
+     * Return a cursor over the records inside a region.  Nothing is read
+     * until the cursor is used, and the cursor only holds the path to the
+     * record it is on, so results can be streamed out or cut off without
+     * ever holding all of them.
+     * @param region the region to search
+     * @return a cursor over the records inside the region
+     */
+    public Cursor cursor(QueryRegion region)
+    {
+        return new Cursor(region, -1, null);
+    }
+    /**
+     * Return a cursor over the records inside a region that continues from
+     * where an earlier cursor over the same region left off.
+     * @param region the region to search
+     * @param token the continuation token from the earlier cursor
+     * @return a cursor over the records after the token
+     */
+    public Cursor cursor(QueryRegion region, long token)
+    {
+        return new Cursor(region, token, null);
+    }
+    /**
+     * Find the k records closest to (x, y), closest first.  Nodes are visited
+     * best first: a priority queue holds the nodes and records seen so far,
+     * ordered by the distance from (x, y) to a node's region or a record's
+     * coordinates, and the closest one is taken off each time.  Once k
+     * records have come off the queue no node left in it can hold anything
+     * closer, so only the nodes needed to find the k-th record are visited.
+     * @param x the x coordinate of the query point
+     * @param y the y coordinate of the query point
+     * @param k the number of records to find
+     * @return the k closest records, or every record if there are fewer
+     * than k, in order of distance
+     */
+    public ArrayList<T> nearest(final int x, final int y, final int k)
+    {
+        ArrayList<T> results = new ReadOperation<ArrayList<T>>() {
+            protected ArrayList<T> run(Context context)
+            {
+                return nearest(context, root, x, y, k);
+            }
+        }.execute();
+        System.out.println("Searched " + contexts.get().nodesVisited + " nodes");
+        return results;
+    }
+    /**
+     * Find every pair of records in the tree within distance of each other,
+     * handing each pair to a visitor as it is found.  The tree is walked
+     * once as pairs of quadrants rather than searched once for each
+     * record: a pair of quadrants too far apart to hold a close pair is
+     * dropped whole, and only pairs of leaves near each other have their
+     * points compared.  Each pair is visited once, in no particular order,
+     * and a record is never paired with itself.  The join reads a snapshot,
+     * so the visitor is free to change the tree.
+     * @param distance the farthest apart two records of a pair can be
+     * @param visitor takes each pair found
+     * @return the number of pairs found
+     */
+    public long join(int distance, PairVisitor<T, T> visitor)
+    {
+        Snapshot snapshot = snapshot();
+        try
+        {
+            return snapshot.join(distance, visitor);
+        }
+        finally
+        {
+            snapshot.close();
+        }
+    }
+    /**
+     * Find every pair of a record in this tree and a record in another tree
+     * within distance of each other, handing each pair to a visitor as it
+     * is found.  The two trees are walked side by side as pairs of
+     * quadrants, the same way as a join of one tree.  Both trees are read
+     * from snapshots.
+     * @param <U> the class type of the other tree's records
+     * @param other the other tree, which can use another memory pool
+     * @param distance the farthest apart two records of a pair can be
+     * @param visitor takes each pair found, this tree's record first
+     * @return the number of pairs found
+     */
+    public <U> long join(PRQuadTree<U> other, int distance,
+        PairVisitor<T, U> visitor)
+    {
+        Snapshot snapshot = snapshot();
+        try
+        {
+            PRQuadTree<U>.Snapshot otherSnapshot = other.snapshot();
+            try
+            {
+                return snapshot.join(otherSnapshot, distance, visitor);
+            }
+            finally
+            {
+                otherSnapshot.close();
+            }
+        }
+        finally
+        {
+            snapshot.close();
+        }
+    }
+    /**
+     * Find the k records closest to (x, y) with a context.
+     * @param context the views and counters for this search
+     * @param start the root of the tree being searched
+     * @param x the x coordinate of the query point
+     * @param y the y coordinate of the query point
+     * @param k the number of records to find
+     * @return the k closest records, in order of distance
+     */
+    private ArrayList<T> nearest(Context context, long start, int x, int y,
+        int k)
+    {
+        ArrayList<T> results = new ArrayList<T>();
+        Point center = new Point(x, y);
+        PriorityQueue<NearestEntry> queue = new PriorityQueue<NearestEntry>();
+        if (start != EMPTY && k > 0)
+            queue.add(new NearestEntry(0, start, false, 0, 0, MAX_COORD,
+                MAX_COORD));
+        while (!queue.isEmpty() && results.size() < k)
+        {
+            NearestEntry entry = queue.poll();
+            if (entry.isRecord)
+            {
+                results.add(getRecord(context, entry.position));
+                continue;
+            }
+            context.nodesVisited++;
+            NodeView view = context.view(0, entry.position);
+            if (!view.isRegion())
+            {
+                //queue the leaf's records by their own distance
+                context.loadPoints(view);
+                for (int i = 0; i < view.getRecordCount(); i++)
+                {
+                    queue.add(new NearestEntry(getDistance(x, y,
+                        view.getXs()[i], view.getYs()[i]),
+                        view.getRecord(i), true, 0, 0, 0, 0));
+                }
+            }
+            else
+            {
+                int[] bounds = {entry.xmin, entry.ymin, entry.xmax,
+                    entry.ymax};
+                if (view.getDepth() >= 0)
+                {
+                    //a compressed region, its children split a smaller
+                    //quadrant
+                    bounds = quadrantBounds(view);
+                }
+                //queue the non-empty children by the distance to their region
+                int xmid = (bounds[2] + bounds[0])/2;
+                int ymid = (bounds[3] + bounds[1])/2;
+                queueChild(queue, center, view.getChild(NodeView.NW),
+                    bounds[0], bounds[1], xmid, ymid);
+                queueChild(queue, center, view.getChild(NodeView.NE),
+                    xmid + 1, bounds[1], bounds[2], ymid);
+                queueChild(queue, center, view.getChild(NodeView.SW),
+                    bounds[0], ymid + 1, xmid, bounds[3]);
+                queueChild(queue, center, view.getChild(NodeView.SE),
+                    xmid + 1, ymid + 1, bounds[2], bounds[3]);
+            }
+        }
+        return results;
+    }
+    /**
+     * Add a child node to the nearest neighbor queue, unless it is empty.
+     * @param queue the queue
+     * @param center the query point
+     * @param position the position of the child node
+     * @param xmin the minimum x value for the child's region
+     * @param ymin the minimum y value for the child's region
+     * @param xmax the maximum x value for the child's region
+     * @param ymax the maximum y value for the child's region
+     */
+    private void queueChild(PriorityQueue<NearestEntry> queue, Point center,
+        long position, int xmin, int ymin, int xmax, int ymax)
+    {
+        if (position != EMPTY)
+            queue.add(new NearestEntry(regionDistance(center, xmin, ymin,
+                xmax, ymax), position, false, xmin, ymin, xmax, ymax));
+    }
+    /**
+     * Recursively search each node within the given search region.
+     * @param context the views and counters for this search
+     * @param center the coordinates of the search point
+     * @param radius the radius of the search area
+     * @param position the position of the root node of the subtree being
+     * searched
+     * @param currList the current List of items within the search region so far
+     * @param xmin the minimum x value for the region being examined
+     * @param ymin the minimum y value for the region being examined
+     * @param xmax the maximum x value for the region being examined
+     * @param ymax the maximum y value for the region being examined
+     * @param depth the depth of the subtree's root in the whole tree
+     */
+    private void searchHelp(Context context, Point center, int radius,
+        long position, ArrayList<T> currList, int xmin, int ymin, int xmax,
+        int ymax, int depth)
+    {
+        context.nodesVisited ++;
+        //make sure the node isn't empty
+        if (position == EMPTY)
+        {
+          return;
+        }
+        NodeView view = context.view(depth, position);
+        //check for a leaf node, if so, check the leaf's elements.
+        if (!view.isRegion())
+        {
+            context.leavesVisited++;
+            leafSearch(context, center, radius, view, currList);
+        }
+        //if regionNode, check to see if the search area intersects each region
+        //call searchHelp on all regions that intersect.
+        else
+        {
+            context.regionsVisited++;
+            if (view.getDepth() >= 0)
+            {
+                //a compressed region, its children split a smaller quadrant
+                int[] bounds = quadrantBounds(view);
+                xmin = bounds[0];
+                ymin = bounds[1];
+                xmax = bounds[2];
+                ymax = bounds[3];
+                depth = view.getDepth();
+            }
+            int xmid = (xmax + xmin)/2;
+            int ymid = (ymax + ymin)/2;
+            if (regionContains(center, radius, xmin, ymin, xmid, ymid))
+                searchHelp(context, center, radius, view.getChild(NodeView.NW),
+                    currList, xmin, ymin, xmid, ymid, depth + 1);
+            else
+                context.quadrantsPruned++;
+            if (regionContains(center, radius, xmid + 1, ymin, xmax, ymid))
+                searchHelp(context, center, radius, view.getChild(NodeView.NE),
+                    currList, xmid + 1, ymin, xmax, ymid, depth + 1);
+            else
+                context.quadrantsPruned++;
+            if (regionContains(center, radius, xmid + 1, ymid + 1, xmax, ymax))
+                searchHelp(context, center, radius, view.getChild(NodeView.SE),
+                    currList, xmid + 1, ymid + 1, xmax, ymax, depth + 1);
+            else
+                context.quadrantsPruned++;
+            if (regionContains(center, radius, xmin, ymid + 1, xmid, ymax))
+                searchHelp(context, center, radius, view.getChild(NodeView.SW),
+                    currList, xmin, ymid + 1, xmid, ymax, depth + 1);
+            else
+                context.quadrantsPruned++;
         }
     }
     /**
@@ -392,106 +2241,1498 @@ public class PRQuadTree<T>
      * area is in the region if the center is in the region, or if the
      * circumference intersects the edge of the rectangle.
      */
-    private boolean regionContains(Point center, int radius, int xmin, int ymin, int xmax, int ymax)
+    private boolean regionContains(Point center, int radius, int xmin, int ymin, int xmax, int ymax)
+    {
+        return regionDistance(center, xmin, ymin, xmax, ymax) <= radius;
+    }
+    /**
+     * Return the distance from a point to the closest point of the
+     * rectangular region given by the x and y bounds, or 0 if the point is
+     * in the region.
+     * @param center the point
+     * @param xmin the minimum x value for the region
+     * @param ymin the minimum y value for the region
+     * @param xmax the maximum x value for the region
+     * @param ymax the maximum y value for the region
+     * @return the distance to the closest point of the region
+     */
+    private double regionDistance(Point center, int xmin, int ymin, int xmax, int ymax)
+    {
+        //if the center is in the rectangle, it's as close as it can be
+        if (center.x <= xmax && center.x >= xmin && center.y <= ymax && center.y >= ymin)
+            return 0;
+        //find which edge is closest
+        if (center.y > ymax)
+        {
+            //use bottom, find closest point
+            if (center.x >= xmax)  //use BR corner
+                return getDistance(center.x, center.y, xmax, ymax);
+            else if (center.x <= xmin)   //use BL corner
+                return getDistance(center.x, center.y, xmin, ymax);
+            else  //use point above center on bottom edge
+                return getDistance(center.x, center.y, center.x, ymax);
+        }
+
+        else if (center.y < ymin)
+        {
+            //use top, find closest point
+            if (center.x >= xmax) //use TR corner
+                return getDistance(center.x, center.y, xmax, ymin);
+            if (center.x <= xmin) //use TL corner
+                return getDistance(center.x, center.y, xmin, ymin);
+            else
+                return getDistance(center.x, center.y, center.x, ymin);
+        }
+        else if (center.x > xmax)
+        {
+            //use right edge, the closest point has the center's y value
+            return getDistance(center.x, center.y, xmax, center.y);
+        }
+        else
+        {
+            //use left edge, the closest point has the center's y value
+            return getDistance(center.x, center.y, xmin, center.y);
+        }
+    }
+    /**
+     * Return the bounds of a compressed region's quadrant.
+     * @param view a view of the compressed region
+     * @return the quadrant's minimum x, minimum y, maximum x and maximum y
+     */
+    private int[] quadrantBounds(NodeView view)
+    {
+        int xmin = Morton.decodeX(view.getPrefix());
+        int ymin = Morton.decodeY(view.getPrefix());
+        int width = MAX_COORD >> view.getDepth();
+        return new int[] {xmin, ymin, xmin + width, ymin + width};
+    }
+    /**
+     * Use the distance formula to get the distance between 2 points.
+     * @param x1 the x coordinate of the first point
+     * @param y1 the y coordinate of the first point
+     * @param x2 the x coordinate of the second point
+     * @param y2 the y coordinate of the second point
+     * @return the distance between the points
+     */
+    private double getDistance(int x1, int y1, int x2, int y2)
+    {
+      return Math.sqrt(Math.pow(x1 - x2, 2) + Math.pow(y1 - y2, 2));
+    }
+
+    /**
+     * Search a leaf node to find if any of its items are stored within the
+     * radius of the given point.  Only the records that match are built.
+     * @param context the views and counters for this search
+     * @param center the coordinates of the search point
+     * @param radius the radius of the search area
+     * @param leaf a view of the leaf node being searched
+     * @param currList the list of items in the search so far.  Items found are
+     * added here.
+     */
+    private void leafSearch(Context context, Point center, int radius,
+        NodeView leaf, ArrayList<T> currList)
+    {
+        //check the coordinates all at once, then build only the matches
+        context.loadPoints(leaf);
+        int count = leaf.getRecordCount();
+        context.pointsTested += count;
+        if (context.matches.length < count)
+            context.matches = new int[leaf.getXs().length];
+        int found = scanner(center.x, center.y, radius).within(leaf.getXs(),
+            leaf.getYs(), count, center.x, center.y, radius, context.matches);
+        for (int i = 0; i < found; i++)
+        {
+            currList.add(getRecord(context, leaf.getRecord(context.matches[i])));
+        }
+    }
+
+    /**
+     * Return the scanner for a circle, the vector one unless the circle is
+     * too big for its int arithmetic.
+     * @param x the x coordinate of the circle's center
+     * @param y the y coordinate of the circle's center
+     * @param radius the circle's radius
+     * @return the LeafScanner to use
+     */
+    private LeafScanner scanner(int x, int y, int radius)
+    {
+        if (x < -MAX_COORD || x > MAX_COORD || y < -MAX_COORD
+            || y > MAX_COORD || radius > 2 * MAX_COORD)
+            return SCALAR;
+        return SCANNER;
+    }
+
+    /**
+     * Load the vector LeafScanner if the vector API module is there, or the
+     * scalar one otherwise.  VectorLeafScanner is built separately from the
+     * vector source directory and only loaded by name, so the tree compiles
+     * and runs without it or the module.
+     * @return the fastest LeafScanner that can be loaded
+     */
+    private static LeafScanner loadScanner()
+    {
+        try
+        {
+            return (LeafScanner)Class.forName("VectorLeafScanner")
+                .getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException e)
+        {
+            return SCALAR;
+        }
+        catch (LinkageError e)
+        {
+            //the class is there but the jdk.incubator.vector module isn't
+            return SCALAR;
+        }
+    }
+
+    /**
+     * Return a snapshot of the tree as it is now.  Changes made after this
+     * don't show up in the snapshot, and the messages it can reach aren't
+     * freed until it is closed, so it can be read for as long as needed
+     * without any lock.  Changes already copy the path from the changed
+     * leaf to the root and share everything else, so a snapshot only costs
+     * the old paths that changes replace while it is open.
+     * @return a snapshot of the tree, which must be closed when done with
+     */
+    public Snapshot snapshot()
+    {
+        long stamp = lock.readLock();
+        try
+        {
+            synchronized (pinned)
+            {
+                Integer count = pinned.get(version);
+                pinned.put(version, (count == null) ? 1 : count + 1);
+            }
+            return new Snapshot(root, version);
+        }
+        finally
+        {
+            lock.unlockRead(stamp);
+        }
+    }
+    /**
+     * Free the message of a node or record a change has taken out of the
+     * tree.  If a snapshot is open that might still reach it, the message
+     * is kept until every such snapshot is closed.
+     * @param handle the handle of the message
+     */
+    private void retire(long handle)
+    {
+        synchronized (pinned)
+        {
+            if (pinned.isEmpty())
+                manager.remove(handle);
+            else
+                retired.add(new long[] {version, handle});
+        }
+    }
+    /**
+     * Free the retired messages no open snapshot can reach.  A message
+     * retired by the change that made version v was last in version v - 1,
+     * so it can go once every open snapshot is of version v or later.
+     */
+    private void reclaim()
+    {
+        synchronized (pinned)
+        {
+            long oldest = pinned.isEmpty() ? Long.MAX_VALUE : pinned.firstKey();
+            while (!retired.isEmpty() && retired.peek()[0] <= oldest)
+            {
+                //a snapshot may have cached the record again since it was
+                //retired
+                long handle = retired.poll()[1];
+                recordCache.invalidate(handle);
+                manager.remove(handle);
+            }
+        }
+    }
+    /**
+     * Clear all the nodes in the tree by setting the root to an empty node.
+     * The messages of every node and record are removed, once no snapshot
+     * can reach them.
+     */
+    public void clear()
+    {
+        long stamp = lock.writeLock();
+        try
+        {
+            version++;
+            ArrayList<LeafNode<T>> leaves = new ArrayList<LeafNode<T>>();
+            takeLeaves(root, leaves);
+            for (LeafNode<T> leaf: leaves)
+            {
+                for (long record: leaf.getRecords())
+                {
+                    retire(record);
+                }
+            }
+            recordCache.clear();
+            if (searchCache != null)
+                searchCache.clear();
+            root = EMPTY;
+        }
+        finally
+        {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * A node or record waiting in the nearest neighbor queue, ordered by its
+     * distance from the query point.
+     */
+    private static class NearestEntry implements Comparable<NearestEntry>
+    {
+        private double distance;
+        private long position;
+        private boolean isRecord;
+        private int xmin;
+        private int ymin;
+        private int xmax;
+        private int ymax;
+
+        /**
+         * Create a new NearestEntry.
+         * @param distance the distance from the query point
+         * @param position the position of the node or record's message
+         * @param isRecord whether this is a record rather than a node
+         * @param xmin the minimum x value for a node's region
+         * @param ymin the minimum y value for a node's region
+         * @param xmax the maximum x value for a node's region
+         * @param ymax the maximum y value for a node's region
+         */
+        public NearestEntry(double distance, long position, boolean isRecord,
+            int xmin, int ymin, int xmax, int ymax)
+        {
+            this.distance = distance;
+            this.position = position;
+            this.isRecord = isRecord;
+            this.xmin = xmin;
+            this.ymin = ymin;
+            this.xmax = xmax;
+            this.ymax = ymax;
+        }
+
+        /**
+         * Order entries by distance.  At the same distance records come
+         * first, so a record is returned before a node that can't hold
+         * anything closer.
+         * @param other the entry to compare to
+         * @return less than 0, 0 or greater than 0 as this entry is closer,
+         * as close, or farther than other
+         */
+        public int compareTo(NearestEntry other)
+        {
+            int order = Double.compare(distance, other.distance);
+            if (order == 0 && isRecord != other.isRecord)
+                return isRecord ? -1 : 1;
+            return order;
+        }
+    }
+
+    /**
+     * A lazy cursor over the records in a region.  The tree is walked with
+     * an explicit stack, one frame per level, and each call to next only
+     * reads as far as the next match.  Records come out in Morton order,
+     * which makes the Morton code of the last record returned a
+     * continuation token: a new cursor given that token skips every
+     * quadrant and record at or before it, even if the tree has changed in
+     * between.  A cursor on the tree can't be used after the tree itself is
+     * changed, and takes the read lock only while it is reading, so an open
+     * cursor never holds up the writer.  A cursor on a Snapshot reads the
+     * snapshot's version with no lock at all until the snapshot is closed.
+     */
+    public class Cursor implements Iterator<T>
+    {
+        private QueryRegion region;
+        //the cursor's own views and read space, since it reads over many
+        //calls, possibly from different threads
+        private Context context;
+        //the snapshot being read, or null to read the tree itself
+        private Snapshot snapshot;
+        //the Morton code records must come after
+        private long after;
+        //one frame for each level of the current path, reused
+        private ArrayList<Frame> frames;
+        //the index of the deepest frame in use, or -1 once done
+        private int top;
+        //the handle of the next record to return, or EMPTY if not found yet
+        private long nextHandle;
+        //the Morton code of the next record to return
+        private long nextCode;
+        //the most records left to return
+        private long remaining;
+        //the number of nodes read so far
+        private int nodesVisited;
+        //the tree's version when the cursor was made
+        private long expectedVersion;
+
+        /**
+         * Create a new Cursor.
+         * @param pRegion the region to search
+         * @param token the Morton code records must come after, or -1 to
+         * start at the beginning
+         * @param pSnapshot the snapshot to read, or null to read the tree
+         */
+        private Cursor(QueryRegion pRegion, long token, Snapshot pSnapshot)
+        {
+            region = pRegion;
+            after = token;
+            snapshot = pSnapshot;
+            context = new Context();
+            frames = new ArrayList<Frame>();
+            remaining = Long.MAX_VALUE;
+            nextHandle = EMPTY;
+            top = -1;
+            if (snapshot != null)
+            {
+                push(snapshot.snapshotRoot, 0, 0, MAX_COORD, MAX_COORD, false);
+                return;
+            }
+            long stamp = lock.readLock();
+            try
+            {
+                expectedVersion = version;
+                push(root, 0, 0, MAX_COORD, MAX_COORD, false);
+            }
+            finally
+            {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * Stop the cursor after at most limit more records.
+         * @param limit the most records left to return
+         * @return this cursor
+         */
+        public Cursor limit(long limit)
+        {
+            remaining = limit;
+            return this;
+        }
+
+        /**
+         * Skip over records without building them.
+         * @param offset the number of records to skip
+         * @return the number of records actually skipped
+         */
+        public int skip(int offset)
+        {
+            int skipped = 0;
+            while (skipped < offset && findNext())
+            {
+                after = nextCode;
+                nextHandle = EMPTY;
+                skipped++;
+            }
+            return skipped;
+        }
+
+        /**
+         * Return whether there is another record.
+         * @return true if next will return a record
+         */
+        public boolean hasNext()
+        {
+            return remaining > 0 && findNext();
+        }
+
+        /**
+         * Return the next record.
+         * @return the next record inside the region
+         */
+        public T next()
+        {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            T record;
+            if (snapshot != null)
+            {
+                snapshot.checkOpen();
+                record = getRecord(context, nextHandle);
+            }
+            else
+            {
+                long stamp = lock.readLock();
+                try
+                {
+                    checkForChanges();
+                    record = getRecord(context, nextHandle);
+                }
+                finally
+                {
+                    lock.unlockRead(stamp);
+                }
+            }
+            after = nextCode;
+            nextHandle = EMPTY;
+            remaining--;
+            return record;
+        }
+
+        /**
+         * Records can't be removed through a cursor.
+         */
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Return the continuation token for the records after the last one
+         * returned or skipped.
+         * @return the continuation token
+         */
+        public long getToken()
+        {
+            return after;
+        }
+
+        /**
+         * Return the number of nodes read so far.
+         * @return nodes visited
+         */
+        public int getNodesVisited()
+        {
+            return nodesVisited;
+        }
+
+        /**
+         * Walk the tree until the next matching record is found.
+         * @return false if there are no more records
+         */
+        private boolean findNext()
+        {
+            if (nextHandle != EMPTY || top < 0)
+                return nextHandle != EMPTY;
+            if (snapshot != null)
+            {
+                snapshot.checkOpen();
+                advance();
+                return nextHandle != EMPTY;
+            }
+            long stamp = lock.readLock();
+            try
+            {
+                checkForChanges();
+                advance();
+            }
+            finally
+            {
+                lock.unlockRead(stamp);
+            }
+            return nextHandle != EMPTY;
+        }
+
+        /**
+         * Make sure the tree hasn't changed since the cursor was made.
+         */
+        private void checkForChanges()
+        {
+            if (version != expectedVersion)
+                throw new ConcurrentModificationException();
+        }
+
+        /**
+         * Walk the tree until the next matching record is found or the walk
+         * is over, while holding the read lock.
+         */
+        private void advance()
+        {
+            while (nextHandle == EMPTY && top >= 0)
+            {
+                Frame frame = frames.get(top);
+                if (!frame.view.isRegion())
+                {
+                    //records are in Morton order, return the next one in
+                    //the region
+                    if (frame.next == frame.count)
+                    {
+                        top--;
+                        continue;
+                    }
+                    int i = frame.next++;
+                    if (frame.codes[i] > after && (frame.covered
+                        || region.contains(frame.xs[i], frame.ys[i])))
+                    {
+                        nextHandle = frame.handles[i];
+                        nextCode = frame.codes[i];
+                    }
+                    continue;
+                }
+                if (frame.next > 3)
+                {
+                    top--;
+                    continue;
+                }
+                //children are visited in NW, NE, SW, SE, which is Morton order
+                int quadrant = frame.next++;
+                int xmid = (frame.xmax + frame.xmin)/2;
+                int ymid = (frame.ymax + frame.ymin)/2;
+                boolean east = (quadrant & 1) != 0;
+                boolean south = (quadrant & 2) != 0;
+                push(frame.view.getChild(quadrant),
+                    east ? xmid + 1 : frame.xmin, south ? ymid + 1 : frame.ymin,
+                    east ? frame.xmax : xmid, south ? frame.ymax : ymid,
+                    frame.covered);
+            }
+        }
+
+        /**
+         * Start walking a node, unless it can't hold anything to return.
+         * @param position the position of the node
+         * @param xmin the minimum x value for the node's region
+         * @param ymin the minimum y value for the node's region
+         * @param xmax the maximum x value for the node's region
+         * @param ymax the maximum y value for the node's region
+         * @param covered whether the region is known to cover the node
+         */
+        private void push(long position, int xmin, int ymin, int xmax,
+            int ymax, boolean covered)
+        {
+            if (position == EMPTY || Morton.encode(xmax, ymax) <= after)
+                return;
+            if (!covered)
+            {
+                if (!region.intersects(xmin, ymin, xmax, ymax))
+                    return;
+                covered = region.covers(xmin, ymin, xmax, ymax);
+            }
+            top++;
+            if (frames.size() <= top)
+                frames.add(new Frame());
+            Frame frame = frames.get(top);
+            frame.view = context.view(frame.buffer, top, position);
+            nodesVisited++;
+            frame.xmin = xmin;
+            frame.ymin = ymin;
+            frame.xmax = xmax;
+            frame.ymax = ymax;
+            frame.covered = covered;
+            frame.next = 0;
+            if (!frame.view.isRegion())
+                frame.readLeaf(context);
+            else if (frame.view.getDepth() >= 0)
+            {
+                //a compressed region, its children split a smaller quadrant
+                int[] bounds = quadrantBounds(frame.view);
+                frame.xmin = bounds[0];
+                frame.ymin = bounds[1];
+                frame.xmax = bounds[2];
+                frame.ymax = bounds[3];
+            }
+        }
+    }
+
+    /**
+     * A walk of two trees side by side for a join.  Each step looks at one
+     * node from each tree; the pair is dropped if the nodes' regions are
+     * too far apart to hold a close pair, and otherwise the node with the
+     * larger region is split into its children, until both are leaves and
+     * their points are compared.  A join of one tree with itself walks the
+     * same node on both sides, and then only pairs each child with itself
+     * and the children after it, so every pair comes up once.
+     * @param <U> the class type of the other tree's records
+     */
+    private class Join<U>
     {
-        //if the center is in the rectangle, return true
-        if (center.x <= xmax && center.x >= xmin && center.y <= ymax && center.y >= ymin)
-            return true;
-        //find which edge is closest
-        if (center.y > ymax)
+        //the tree on the second side of the join
+        private PRQuadTree<U> other;
+        //a context for each side, so each side's views stay put while the
+        //other side's move
+        private Context context;
+        private PRQuadTree<U>.Context otherContext;
+        //the distance and its square
+        private int distance;
+        private long limit;
+        private PairVisitor<T, U> visitor;
+        //whether both sides are the same snapshot
+        private boolean self;
+        //the number of pairs of nodes looked at
+        private int nodesVisited;
+        //the number of pairs of records found
+        private long pairs;
+
+        /**
+         * Create a new Join.
+         * @param pOther the tree on the second side
+         * @param pDistance the farthest apart two records of a pair can be
+         * @param pVisitor takes each pair found
+         * @param pSelf whether both sides are the same snapshot
+         */
+        private Join(PRQuadTree<U> pOther, int pDistance,
+            PairVisitor<T, U> pVisitor, boolean pSelf)
         {
-            //use bottom, find closest point
-            if (center.x >= xmax)  //use BR corner
-                return (getDistance(center, new Point(xmax, ymax)) <= radius);
-            else if (center.x <= xmin)   //use BL corner
-                return (getDistance(center, new Point(xmin, ymax)) <= radius);
-            else  //use point above center on bottom edge
-                return (getDistance(center, new Point(center.x, ymax)) <= radius);
+            other = pOther;
+            context = new Context();
+            otherContext = other.new Context();
+            distance = pDistance;
+            limit = (long)distance * distance;
+            visitor = pVisitor;
+            self = pSelf;
+            nodesVisited = 0;
+            pairs = 0;
         }
 
-        else if (center.y < ymin)
+        /**
+         * Find the close pairs of records under a pair of nodes.
+         * @param a the position of the first side's node
+         * @param aDepth the depth of the first side's node
+         * @param axmin the minimum x value of the first node's region
+         * @param aymin the minimum y value of the first node's region
+         * @param axmax the maximum x value of the first node's region
+         * @param aymax the maximum y value of the first node's region
+         * @param b the position of the second side's node
+         * @param bDepth the depth of the second side's node
+         * @param bxmin the minimum x value of the second node's region
+         * @param bymin the minimum y value of the second node's region
+         * @param bxmax the maximum x value of the second node's region
+         * @param bymax the maximum y value of the second node's region
+         */
+        private void visit(long a, int aDepth, int axmin, int aymin,
+            int axmax, int aymax, long b, int bDepth, int bxmin, int bymin,
+            int bxmax, int bymax)
         {
-            //use top, find closest point
-            if (center.x >= xmax) //use TR corner
-                return (getDistance(center, new Point(xmax, ymin)) <= radius);
-            if (center.x <= xmax) //use TL corner
-                return (getDistance(center, new Point(xmin, ymin)) <= radius);
+            if (a == EMPTY || b == EMPTY)
+                return;
+            //the gap between the regions on each axis
+            long dx = Math.max(0, Math.max(axmin - bxmax, bxmin - axmax));
+            long dy = Math.max(0, Math.max(aymin - bymax, bymin - aymax));
+            if (dx * dx + dy * dy > limit)
+                return;
+            nodesVisited++;
+            NodeView aView = context.view(aDepth, a);
+            NodeView bView = otherContext.view(bDepth, b);
+            if (aView.getDepth() >= 0 || bView.getDepth() >= 0)
+            {
+                //compressed regions split smaller quadrants, which may be
+                //too far apart after all
+                if (aView.getDepth() >= 0)
+                {
+                    int[] bounds = quadrantBounds(aView);
+                    axmin = bounds[0];
+                    aymin = bounds[1];
+                    axmax = bounds[2];
+                    aymax = bounds[3];
+                    aDepth = aView.getDepth();
+                }
+                if (bView.getDepth() >= 0)
+                {
+                    int[] bounds = other.quadrantBounds(bView);
+                    bxmin = bounds[0];
+                    bymin = bounds[1];
+                    bxmax = bounds[2];
+                    bymax = bounds[3];
+                    bDepth = bView.getDepth();
+                }
+                dx = Math.max(0, Math.max(axmin - bxmax, bxmin - axmax));
+                dy = Math.max(0, Math.max(aymin - bymax, bymin - aymax));
+                if (dx * dx + dy * dy > limit)
+                    return;
+            }
+            if (self && a == b)
+            {
+                if (aView.isRegion())
+                    visitSelf(aView, aDepth, axmin, aymin, axmax, aymax);
+                else
+                    compareLeaves(aView, bView, true);
+                return;
+            }
+            if (aView.isRegion() && (!bView.isRegion() || aDepth <= bDepth))
+            {
+                //split the first side's node
+                int xmid = (axmax + axmin)/2;
+                int ymid = (aymax + aymin)/2;
+                for (int i = 0; i <= 3; i++)
+                {
+                    boolean east = (i & 1) != 0;
+                    boolean south = (i & 2) != 0;
+                    visit(aView.getChild(i), aDepth + 1,
+                        east ? xmid + 1 : axmin, south ? ymid + 1 : aymin,
+                        east ? axmax : xmid, south ? aymax : ymid,
+                        b, bDepth, bxmin, bymin, bxmax, bymax);
+                }
+            }
+            else if (bView.isRegion())
+            {
+                //split the second side's node
+                int xmid = (bxmax + bxmin)/2;
+                int ymid = (bymax + bymin)/2;
+                for (int i = 0; i <= 3; i++)
+                {
+                    boolean east = (i & 1) != 0;
+                    boolean south = (i & 2) != 0;
+                    visit(a, aDepth, axmin, aymin, axmax, aymax,
+                        bView.getChild(i), bDepth + 1,
+                        east ? xmid + 1 : bxmin, south ? ymid + 1 : bymin,
+                        east ? bxmax : xmid, south ? bymax : ymid);
+                }
+            }
             else
-                return (getDistance(center, new Point(center.x, ymin)) <= radius);
+                compareLeaves(aView, bView, false);
         }
-        else if (center.x > xmax)
+
+        /**
+         * Find the close pairs under a region joined with itself: the pairs
+         * inside each child, then the pairs across each two children.
+         * @param view a view of the region
+         * @param depth the depth of the region
+         * @param xmin the minimum x value of the region
+         * @param ymin the minimum y value of the region
+         * @param xmax the maximum x value of the region
+         * @param ymax the maximum y value of the region
+         */
+        private void visitSelf(NodeView view, int depth, int xmin, int ymin,
+            int xmax, int ymax)
         {
-            //use right edge, the closest point has the center's y value
-            return (getDistance(center, new Point(xmax, center.y)) <= radius);
+            int xmid = (xmax + xmin)/2;
+            int ymid = (ymax + ymin)/2;
+            long[] children = new long[4];
+            int[][] bounds = new int[4][];
+            for (int i = 0; i <= 3; i++)
+            {
+                boolean east = (i & 1) != 0;
+                boolean south = (i & 2) != 0;
+                children[i] = view.getChild(i);
+                bounds[i] = new int[] {east ? xmid + 1 : xmin,
+                    south ? ymid + 1 : ymin, east ? xmax : xmid,
+                    south ? ymax : ymid};
+            }
+            for (int i = 0; i <= 3; i++)
+            {
+                for (int j = i; j <= 3; j++)
+                {
+                    visit(children[i], depth + 1, bounds[i][0], bounds[i][1],
+                        bounds[i][2], bounds[i][3], children[j], depth + 1,
+                        bounds[j][0], bounds[j][1], bounds[j][2],
+                        bounds[j][3]);
+                }
+            }
         }
-        else
+
+        /**
+         * Compare the points of two leaves, visiting each close pair.  Each
+         * of the first leaf's points is checked against all of the second
+         * leaf's at once with a LeafScanner.
+         * @param aView a view of the first side's leaf
+         * @param bView a view of the second side's leaf
+         * @param same whether both views are of the same leaf, in which
+         * case each point is only paired with the points after it
+         */
+        private void compareLeaves(NodeView aView, NodeView bView,
+            boolean same)
         {
-            //use left edge, the closest point has the center's y value
-            return (getDistance(center, new Point(xmin, center.y)) <= radius);
+            context.loadPoints(aView);
+            otherContext.loadPoints(bView);
+            int bCount = bView.getRecordCount();
+            if (context.matches.length < bCount)
+                context.matches = new int[bCount];
+            for (int i = 0; i < aView.getRecordCount(); i++)
+            {
+                int x = aView.getXs()[i];
+                int y = aView.getYs()[i];
+                int found = scanner(x, y, distance).within(bView.getXs(),
+                    bView.getYs(), bCount, x, y, distance, context.matches);
+                T first = null;
+                for (int k = 0; k < found; k++)
+                {
+                    int j = context.matches[k];
+                    if (same && j <= i)
+                        continue;
+                    //only build the records of points that are paired
+                    if (first == null)
+                        first = getRecord(context, aView.getRecord(i));
+                    visitor.visit(first, other.getRecord(otherContext,
+                        bView.getRecord(j)));
+                    pairs++;
+                }
+            }
         }
     }
+
     /**
-     * Use the distance formula to get the distance between 2 points.
-     * @param p1 the first point
-     * @param p2 the second point
-     * @return the distance between the points
+     * One level of a cursor's path: a node and how far through it the
+     * cursor has got.  A leaf's records are read and sorted by Morton code
+     * when it is reached.
      */
-    private double getDistance(Point p1, Point p2)
+    private class Frame
     {
-      return Math.sqrt(Math.pow(p1.x - p2.x, 2) + Math.pow(p1.y - p2.y, 2));
+        //the view the frame's node is read into, unless it is resident
+        private NodeView buffer = new NodeView();
+        //a view of the frame's node
+        private NodeView view;
+        private int xmin;
+        private int ymin;
+        private int xmax;
+        private int ymax;
+        //whether the cursor's region covers the whole node
+        private boolean covered;
+        //the next child or record to look at
+        private int next;
+        //a leaf's records and their coordinates, in Morton order
+        private int count;
+        private long[] handles = new long[leafCapacity];
+        private int[] xs = new int[leafCapacity];
+        private int[] ys = new int[leafCapacity];
+        private long[] codes = new long[leafCapacity];
+
+        /**
+         * Copy out the coordinates of the leaf's records and sort them by
+         * Morton code.
+         * @param context the context of the cursor reading the leaf
+         */
+        private void readLeaf(Context context)
+        {
+            count = view.getRecordCount();
+            if (handles.length < count)
+            {
+                handles = new long[count];
+                xs = new int[count];
+                ys = new int[count];
+                codes = new long[count];
+            }
+            context.loadPoints(view);
+            for (int i = 0; i < count; i++)
+            {
+                long handle = view.getRecord(i);
+                int x = view.getXs()[i];
+                int y = view.getYs()[i];
+                long code = Morton.encode(x, y);
+                //insertion sort, leaves usually only hold a few records
+                int j = i;
+                while (j > 0 && codes[j - 1] > code)
+                {
+                    handles[j] = handles[j - 1];
+                    xs[j] = xs[j - 1];
+                    ys[j] = ys[j - 1];
+                    codes[j] = codes[j - 1];
+                    j--;
+                }
+                handles[j] = handle;
+                xs[j] = x;
+                ys[j] = y;
+                codes[j] = code;
+            }
+        }
     }
 
     /**
-     * Search a leaf node to find if any of its items are stored within the
-     * radius of the given point.
-     * @param center the coordinates of the search point
-     * @param radius the radius of the search area
-     * @param leaf the leaf node being searched
-     * @param currList the list of items in the search so far.  Items found are
-     * added here.
+     * The state one operation on the tree uses: views and read space for
+     * walking the tree, the count of nodes visited, and the flags insert and
+     * remove pass back up.  Each thread has its own, so operations on
+     * different threads never share any of it.
+     *
+     * A context reading under an optimistic stamp checks the stamp after
+     * each read from the memory pool, and gives up with a RetryException
+     * as soon as a change has been made since, so nothing read while the
+     * writer was changing the pool is ever used.
+     */
+    private class Context
+    {
+        //one reusable node view for each level of the tree
+        private ArrayList<NodeView> views = new ArrayList<NodeView>();
+        //the resident page last visited at each level of the tree, when
+        //nodes are paged, so a child can be reached from its parent's page
+        private ArrayList<NodePager.Page> path =
+            new ArrayList<NodePager.Page>();
+        //reusable space for reading record messages
+        private byte[] recordSpace = new byte[64];
+        //the number of nodes looked at
+        private int nodesVisited;
+        //what the read did, for its profile: the region and leaf nodes it
+        //visited, the quadrants it left out and the leaf points it checked
+        private int regionsVisited;
+        private int leavesVisited;
+        private int quadrantsPruned;
+        private int pointsTested;
+        //set when an insertion fails
+        private boolean failedInsert;
+        //the handle of the record taken out of the tree by a removal
+        private long removed;
+        //the optimistic read stamp reads are checked against, or 0 when
+        //the operation holds a lock
+        private long stamp;
+        //reusable space for the indexes of the leaf points a scan matches
+        private int[] matches = new int[16];
+
+        /**
+         * Clear the counters for a new read of the tree.
+         */
+        private void reset()
+        {
+            nodesVisited = 0;
+            regionsVisited = 0;
+            leavesVisited = 0;
+            quadrantsPruned = 0;
+            pointsTested = 0;
+        }
+
+        /**
+         * Return the reusable node view for a level of the tree.
+         * @param depth the level of the tree, 0 being the root
+         * @return the view for that level
+         */
+        private NodeView getView(int depth)
+        {
+            while (views.size() <= depth)
+            {
+                views.add(new NodeView());
+            }
+            return views.get(depth);
+        }
+
+        /**
+         * Return a view of the node stored at position, using the reusable
+         * view for its level of the tree unless the node is paged.
+         * @param depth the level of the tree the node is on, 0 being the root
+         * @param position the position of the node's message
+         * @return a view of the node, which is only good until the next
+         * view of the same level
+         */
+        private NodeView view(int depth, long position)
+        {
+            return view(getView(depth), depth, position);
+        }
+
+        /**
+         * Return a view of the node stored at position.  If the memory pool
+         * has a NodePager, the node's resident view is returned, paging the
+         * node in if need be; otherwise the node is read into the given
+         * view.
+         * @param buffer the view to read the node into if it isn't paged
+         * @param depth the level of the tree the node is on, 0 being the root
+         * @param position the position of the node's message
+         * @return a view of the node
+         */
+        private NodeView view(NodeView buffer, int depth, long position)
+        {
+            NodePager pager = manager.getNodePager();
+            if (pager == null)
+            {
+                moveTo(buffer, position);
+                return buffer;
+            }
+            while (path.size() <= depth)
+            {
+                path.add(null);
+            }
+            //follow the link from the parent's page if there is one.  The
+            //page at the level above may be from another walk, but a page
+            //that hasn't been evicted always matches its position.
+            NodePager.Page parent = (depth > 0) ? path.get(depth - 1) : null;
+            int quadrant = (parent == null) ? -1 : parent.quadrantOf(position);
+            NodePager.Page page = (quadrant < 0) ? null
+                : parent.getChild(quadrant);
+            if (page == null)
+            {
+                page = pager.get(position);
+                if (page == null)
+                {
+                    //a change made while the message is read moves the
+                    //epoch up, so put won't make a stale view resident
+                    long epoch = pager.getEpoch();
+                    NodeView view = new NodeView();
+                    moveTo(view, position);
+                    if (!view.isRegion())
+                        loadPoints(view);
+                    page = pager.put(position, view, epoch);
+                    validate();
+                }
+                if (quadrant >= 0)
+                    pager.link(parent, quadrant, page);
+            }
+            path.set(depth, page);
+            NodeView view = page.getView();
+            if (view.getDepth() > depth)
+            {
+                //walks go on from a compressed region at its own depth
+                while (path.size() <= view.getDepth())
+                {
+                    path.add(null);
+                }
+                path.set(view.getDepth(), page);
+            }
+            return view;
+        }
+
+        /**
+         * Point a view at the node message stored at position.
+         * @param view the view
+         * @param position the position of the node's message
+         */
+        private void moveTo(NodeView view, long position)
+        {
+            int size = manager.getSize(position);
+            //don't trust the size until it is known the writer hasn't run
+            validate();
+            try
+            {
+                view.moveTo(position, size, manager);
+            }
+            catch (IllegalStateException e)
+            {
+                //the message can be changed while it is read, and decode to
+                //counts that don't fit.  That's only an error if it wasn't.
+                validate();
+                throw e;
+            }
+            validate();
+        }
+
+        /**
+         * Read the record message at position into recordSpace, growing it
+         * if the message doesn't fit.
+         * @param position the position of the record's message
+         * @return the size of the record's message
+         */
+        private int readRecord(long position)
+        {
+            int size = manager.getSize(position);
+            validate();
+            if (size > recordSpace.length)
+                recordSpace = new byte[Math.max(size, recordSpace.length * 2)];
+            size = manager.get(recordSpace, position, size);
+            validate();
+            return size;
+        }
+
+        /**
+         * Make sure a leaf view has its records' coordinates, reading them
+         * from the records if the leaf's message doesn't store them.
+         * @param leaf a view of the leaf
+         */
+        private void loadPoints(NodeView leaf)
+        {
+            if (leaf.hasPoints())
+                return;
+            for (int i = 0; i < leaf.getRecordCount(); i++)
+            {
+                T record = recordCache.get(leaf.getRecord(i));
+                if (record != null)
+                    leaf.setPoint(i, codec.getX(record), codec.getY(record));
+                else
+                {
+                    readRecord(leaf.getRecord(i));
+                    leaf.setPoint(i, codec.readX(recordSpace),
+                        codec.readY(recordSpace));
+                }
+            }
+            leaf.pointsSet();
+        }
+
+        /**
+         * Give up on an optimistic read if the tree has changed since it
+         * started.
+         */
+        private void validate()
+        {
+            if (stamp != 0 && !lock.validate(stamp))
+                throw RETRY;
+        }
+    }
+
+    /**
+     * A read of the tree that is tried first without any lock, and run
+     * again under the read lock if the writer changed the tree while it
+     * ran.  Readers never block each other either way.
+     * @param <R> the type of the read's result
      */
-    private void leafSearch(Point center, int radius, LeafNode<T> leaf, ArrayList<T> currList)
+    private abstract class ReadOperation<R>
     {
-        ArrayList<Point> points = leaf.getKeys();
-        ArrayList<T> items = leaf.getItems();
-        //search each leaf key for a point match
-        for (Point point: points)
+        /**
+         * Read the tree.
+         * @param context the calling thread's context
+         * @return the result of the read
+         */
+        protected abstract R run(Context context);
+
+        /**
+         * Run the read optimistically, falling back to the read lock.
+         * @return the result of the read
+         */
+        public R execute()
         {
-            if (getDistance(point, center) <= radius)
-                currList.add(items.get(points.indexOf(point)));
+            Context context = contexts.get();
+            long stamp = lock.tryOptimisticRead();
+            if (stamp != 0)
+            {
+                context.stamp = stamp;
+                context.reset();
+                try
+                {
+                    R result = run(context);
+                    if (lock.validate(stamp))
+                        return result;
+                }
+                catch (RuntimeException e)
+                {
+                    //anything read after a change can't be trusted, errors
+                    //included, so only a valid read's error is real
+                    if (lock.validate(stamp))
+                        throw e;
+                }
+                finally
+                {
+                    context.stamp = 0;
+                }
+            }
+            stamp = lock.readLock();
+            try
+            {
+                context.reset();
+                return run(context);
+            }
+            finally
+            {
+                lock.unlockRead(stamp);
+            }
         }
     }
 
     /**
-     * Clear all the nodes in the tree by setting the root to an empty node.
+     * Thrown by a context to abandon an optimistic read.  One instance is
+     * shared, without a stack trace, since it is thrown often under churn.
      */
-    public void clear()
+    private static class RetryException extends RuntimeException
     {
-        root = empty;
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Create a new RetryException.
+         */
+        private RetryException()
+        {
+            super(null, null, false, false);
+        }
     }
 
-    private Node getRoot()
+    /**
+     * A part of a parallelSearch: the search of one subtree.  Wide region
+     * nodes fork a task for each intersecting child, everything else is
+     * searched in place with searchHelp.
+     */
+    private class SearchTask extends RecursiveTask<ArrayList<T>>
     {
-        return new Node()
+        private static final long serialVersionUID = 1L;
+
+        private Point center;
+        private int radius;
+        private long position;
+        private int xmin;
+        private int ymin;
+        private int xmax;
+        private int ymax;
+        //the depth of the subtree's root in the whole tree
+        private int depth;
+        //the count of nodes visited, shared by all of a search's tasks
+        private AtomicInteger visited;
+
+        /**
+         * Create a new SearchTask.
+         * @param pCenter the coordinates of the search point
+         * @param pRadius the radius of the search area
+         * @param pPosition the position of the subtree's root
+         * @param pXmin the minimum x value for the subtree's region
+         * @param pYmin the minimum y value for the subtree's region
+         * @param pXmax the maximum x value for the subtree's region
+         * @param pYmax the maximum y value for the subtree's region
+         * @param pDepth the depth of the subtree's root in the whole tree
+         * @param pVisited the count of nodes visited
+         */
+        private SearchTask(Point pCenter, int pRadius, long pPosition,
+            int pXmin, int pYmin, int pXmax, int pYmax, int pDepth,
+            AtomicInteger pVisited)
+        {
+            center = pCenter;
+            radius = pRadius;
+            position = pPosition;
+            xmin = pXmin;
+            ymin = pYmin;
+            xmax = pXmax;
+            ymax = pYmax;
+            depth = pDepth;
+            visited = pVisited;
+        }
+
+        /**
+         * Search the subtree.
+         * @return the records in the subtree inside the search area
+         */
+        protected ArrayList<T> compute()
+        {
+            ArrayList<T> results = new ArrayList<T>();
+            //the parallelSearch holds the read lock for its tasks, which use
+            //the context of the thread they run on.  A task is done with
+            //its view before it forks, so a task run in the middle of a
+            //join can't overwrite a view that is still being read.
+            Context taskContext = contexts.get();
+            int before = taskContext.nodesVisited;
+            if (xmax - xmin + 1 < parallelThreshold || position == EMPTY)
+            {
+                searchHelp(taskContext, center, radius, position, results,
+                    xmin, ymin, xmax, ymax, depth);
+                visited.addAndGet(taskContext.nodesVisited - before);
+                return results;
+            }
+            taskContext.nodesVisited++;
+            NodeView view = taskContext.view(depth, position);
+            if (!view.isRegion())
+            {
+                taskContext.leavesVisited++;
+                leafSearch(taskContext, center, radius, view, results);
+                visited.addAndGet(taskContext.nodesVisited - before);
+                return results;
+            }
+            taskContext.regionsVisited++;
+            int[] bounds = {xmin, ymin, xmax, ymax};
+            int childDepth = depth + 1;
+            if (view.getDepth() >= 0)
+            {
+                //a compressed region, its children split a smaller quadrant
+                bounds = quadrantBounds(view);
+                childDepth = view.getDepth() + 1;
+            }
+            //fork a task for each child the search area reaches, in the
+            //same NW, NE, SE, SW order as searchHelp
+            int xmid = (bounds[2] + bounds[0])/2;
+            int ymid = (bounds[3] + bounds[1])/2;
+            ArrayList<SearchTask> tasks = new ArrayList<SearchTask>();
+            addTask(tasks, view.getChild(NodeView.NW), bounds[0], bounds[1],
+                xmid, ymid, childDepth);
+            addTask(tasks, view.getChild(NodeView.NE), xmid + 1, bounds[1],
+                bounds[2], ymid, childDepth);
+            addTask(tasks, view.getChild(NodeView.SE), xmid + 1, ymid + 1,
+                bounds[2], bounds[3], childDepth);
+            addTask(tasks, view.getChild(NodeView.SW), bounds[0], ymid + 1,
+                xmid, bounds[3], childDepth);
+            //count this node before the tasks add theirs to the context
+            visited.addAndGet(taskContext.nodesVisited - before);
+            for (int i = 1; i < tasks.size(); i++)
+            {
+                tasks.get(i).fork();
+            }
+            for (int i = 0; i < tasks.size(); i++)
+            {
+                //run the first task here rather than waiting on the others
+                if (i == 0)
+                    results.addAll(tasks.get(i).compute());
+                else
+                    results.addAll(tasks.get(i).join());
+            }
+            return results;
+        }
+
+        /**
+         * Add a task for a child if the search area reaches its region.
+         */
+        private void addTask(ArrayList<SearchTask> tasks, long child,
+            int cxmin, int cymin, int cxmax, int cymax, int childDepth)
+        {
+            if (regionContains(center, radius, cxmin, cymin, cxmax, cymax))
+                tasks.add(new SearchTask(center, radius, child, cxmin, cymin,
+                    cxmax, cymax, childDepth, visited));
+        }
     }
 
-    private static Node makeNode(byte[] nodeMessage)
+    /**
+     * A fixed version of the tree, from snapshot.  Searches of a snapshot
+     * see the tree as it was when the snapshot was taken and take no lock,
+     * so a long traversal neither waits on nor holds up changes to the
+     * tree.  The snapshot keeps the messages it reaches from being freed,
+     * so it should be closed as soon as it isn't needed.
+     */
+    public class Snapshot implements AutoCloseable
     {
-        ByteBuffer bbuff = ByteBuffer.allocate(4);
-        if (nodeMessage[0] == 0)
+        //the root of the tree at the snapshot's version
+        private long snapshotRoot;
+        //the version of the tree the snapshot shows
+        private long snapshotVersion;
+        //whether the snapshot has been closed
+        private boolean closed;
+
+        /**
+         * Create a new Snapshot of a version that has already been pinned.
+         * @param pRoot the root of the tree at that version
+         * @param pVersion the version
+         */
+        private Snapshot(long pRoot, long pVersion)
+        {
+            snapshotRoot = pRoot;
+            snapshotVersion = pVersion;
+            closed = false;
+        }
+
+        /**
+         * Return the version of the tree the snapshot shows.
+         * @return the snapshot's version
+         */
+        public long getVersion()
+        {
+            return snapshotVersion;
+        }
+
+        /**
+         * Search the snapshot with a circular search area.
+         * @param x the x coordinate of the search area center
+         * @param y the y coordinate of the search area center
+         * @param radius the radius of the search area
+         * @return an ArrayList containing all the items within the search area
+         */
+        public ArrayList<T> search(int x, int y, int radius)
         {
-            //the node is internal, get the children Handles
-            Handle[] handles = new Handle[4];
-            for (int i = 0; i <= 12; i += 4)
+            Context context = begin();
+            ArrayList<T> results = new ArrayList<T>();
+            searchHelp(context, new Point(x, y), radius, snapshotRoot, results,
+                0, 0, MAX_COORD, MAX_COORD, 0);
+            System.out.println("Searched " + context.nodesVisited + " nodes");
+            return results;
+        }
+
+        /**
+         * Search the snapshot for every record inside a region.
+         * @param region the region to search
+         * @return an ArrayList containing all the items within the region
+         */
+        public ArrayList<T> search(QueryRegion region)
+        {
+            Context context = begin();
+            ArrayList<T> results = new ArrayList<T>();
+            regionSearchHelp(context, region, snapshotRoot, results, 0, 0,
+                MAX_COORD, MAX_COORD, 0);
+            System.out.println("Searched " + context.nodesVisited + " nodes");
+            return results;
+        }
+
+        /**
+         * Find the k records in the snapshot closest to (x, y).
+         * @param x the x coordinate of the query point
+         * @param y the y coordinate of the query point
+         * @param k the number of records to find
+         * @return the k closest records, in order of distance
+         */
+        public ArrayList<T> nearest(int x, int y, int k)
+        {
+            Context context = begin();
+            ArrayList<T> results = PRQuadTree.this.nearest(context,
+                snapshotRoot, x, y, k);
+            System.out.println("Searched " + context.nodesVisited + " nodes");
+            return results;
+        }
+
+        /**
+         * Find every pair of records in the snapshot within distance of
+         * each other, the same way PRQuadTree.join does.
+         * @param distance the farthest apart two records of a pair can be
+         * @param visitor takes each pair found
+         * @return the number of pairs found
+         */
+        public long join(int distance, PairVisitor<T, T> visitor)
+        {
+            return join(this, distance, visitor);
+        }
+
+        /**
+         * Find every pair of a record in this snapshot and a record in a
+         * snapshot of another tree within distance of each other.  If the
+         * other snapshot is this one, each pair is only visited once.
+         * @param <U> the class type of the other tree's records
+         * @param other the snapshot of the other tree
+         * @param distance the farthest apart two records of a pair can be
+         * @param visitor takes each pair found, this snapshot's record first
+         * @return the number of pairs found
+         */
+        public <U> long join(PRQuadTree<U>.Snapshot other, int distance,
+            PairVisitor<T, U> visitor)
+        {
+            checkOpen();
+            other.checkOpen();
+            if (distance < 0)
+                throw new IllegalArgumentException(
+                    "Distance must not be negative");
+            Join<U> join = new Join<U>(other.tree(), distance, visitor,
+                other == this);
+            join.visit(snapshotRoot, 0, 0, 0, MAX_COORD, MAX_COORD,
+                other.snapshotRoot, 0, 0, 0, MAX_COORD, MAX_COORD);
+            System.out.println("Searched " + join.nodesVisited
+                + " pairs of nodes");
+            return join.pairs;
+        }
+
+        /**
+         * Return the tree the snapshot is of.
+         * @return the snapshot's tree
+         */
+        private PRQuadTree<T> tree()
+        {
+            return PRQuadTree.this;
+        }
+
+        /**
+         * Return a cursor over the records of the snapshot inside a region.
+         * @param region the region to search
+         * @return a cursor over the records inside the region
+         */
+        public Cursor cursor(QueryRegion region)
+        {
+            checkOpen();
+            return new Cursor(region, -1, this);
+        }
+
+        /**
+         * Print out the snapshot the same way debug prints the tree.
+         */
+        public void debug()
+        {
+            begin();
+            preOrderTraverse(snapshotRoot, 0);
+        }
+
+        /**
+         * Close the snapshot, letting the messages only it could reach be
+         * freed.  Closing a snapshot again does nothing.
+         */
+        public void close()
+        {
+            synchronized (pinned)
             {
-                for(int j = 0; j < 4; j++)
-                {
-                    bbuff.put(nodeMessage[j+i+1]);
-                }
-                handles[i/4] = new Handle(bbuff.getInt(0));
-                bbuff.clear();
+                if (closed)
+                    return;
+                closed = true;
+                int count = pinned.get(snapshotVersion);
+                if (count == 1)
+                    pinned.remove(snapshotVersion);
+                else
+                    pinned.put(snapshotVersion, count - 1);
+                reclaim();
             }
-            return new RegionNode(handles[0], handles[1], handles[2], manager);
+        }
+
+        /**
+         * Get the calling thread's context ready for a read of the
+         * snapshot.  The snapshot's messages can't change, so there is
+         * nothing to validate.
+         * @return the context
+         */
+        private Context begin()
+        {
+            checkOpen();
+            Context context = contexts.get();
+            context.stamp = 0;
+            context.reset();
+            return context;
+        }
+
+        /**
+         * Make sure the snapshot hasn't been closed.
+         */
+        private void checkOpen()
+        {
+            if (closed)
+                throw new IllegalStateException("Snapshot is closed");
         }
     }
 }
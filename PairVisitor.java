@@ -0,0 +1,20 @@
+// -------------------------------------------------------------------------
+/**
+ *  Receives the pairs of records a PRQuadTree join finds, one at a time as
+ *  they are found, so a join with many pairs never has to hold them all.
+ *  @param <A> the class type of the first record of each pair
+ *  @param <B> the class type of the second record of each pair
+ *
+ *  @author Joshua Rush
+ *  @author Benjamin Roble
+ *  @version Dec 8, 2011
+ */
+public interface PairVisitor<A, B>
+{
+    /**
+     * Take one pair of records found by a join.
+     * @param first the record from the first tree
+     * @param second the record from the second tree
+     */
+    void visit(A first, B second);
+}
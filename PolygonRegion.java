@@ -0,0 +1,191 @@
+// -------------------------------------------------------------------------
+/**
+ *  A simple polygon to search a PRQuadTree with.  The polygon may be concave
+ *  but its edges must not cross each other.  Points on an edge count as
+ *  inside.
+ *
+ *  A quadrant is covered when all of its corners are inside and no edge
+ *  touches it, since the boundary would have to pass through the quadrant
+ *  for any of it to be outside.
+ *
+ *  @author Joshua Rush
+ *  @author Benjamin Roble
+ *  @version Nov 28, 2011
+ */
+public class PolygonRegion implements QueryRegion
+{
+    //the vertices, in order around the polygon
+    private int[] xs;
+    private int[] ys;
+    //the bounding box of the polygon
+    private RectangleRegion bounds;
+
+    /**
+     * Create a new PolygonRegion.
+     * @param pXs the x coordinates of the vertices, in order around the
+     * polygon
+     * @param pYs the y coordinates of the vertices, in the same order
+     * @throws IllegalArgumentException if there are fewer than 3 vertices or
+     * the arrays are different lengths
+     */
+    public PolygonRegion(int[] pXs, int[] pYs)
+    {
+        if (pXs.length != pYs.length || pXs.length < 3)
+            throw new IllegalArgumentException(
+                "A polygon needs at least 3 vertices");
+        xs = pXs.clone();
+        ys = pYs.clone();
+        int xmin = xs[0];
+        int ymin = ys[0];
+        int xmax = xs[0];
+        int ymax = ys[0];
+        for (int i = 1; i < xs.length; i++)
+        {
+            xmin = Math.min(xmin, xs[i]);
+            ymin = Math.min(ymin, ys[i]);
+            xmax = Math.max(xmax, xs[i]);
+            ymax = Math.max(ymax, ys[i]);
+        }
+        bounds = new RectangleRegion(xmin, ymin, xmax, ymax);
+    }
+
+    /**
+     * Return whether a point is inside the polygon or on its boundary.
+     * @param x the x coordinate of the point
+     * @param y the y coordinate of the point
+     * @return true if the point is in the polygon
+     */
+    public boolean contains(int x, int y)
+    {
+        if (!bounds.contains(x, y))
+            return false;
+        boolean inside = false;
+        for (int i = 0, j = xs.length - 1; i < xs.length; j = i++)
+        {
+            if (onSegment(xs[j], ys[j], xs[i], ys[i], x, y))
+                return true;
+            //count the edges a ray going right from the point crosses
+            if ((ys[i] > y) != (ys[j] > y))
+            {
+                long cross = (long)(xs[j] - xs[i]) * (y - ys[i])
+                    - (long)(x - xs[i]) * (ys[j] - ys[i]);
+                //the ray crosses if the point is left of the upward edge
+                if ((cross > 0) == (ys[j] > ys[i]))
+                    inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    /**
+     * Return whether the polygon shares a point with a quadrant.
+     * @param xmin the minimum x value of the quadrant
+     * @param ymin the minimum y value of the quadrant
+     * @param xmax the maximum x value of the quadrant
+     * @param ymax the maximum y value of the quadrant
+     * @return true if the polygon and quadrant share a point
+     */
+    public boolean intersects(int xmin, int ymin, int xmax, int ymax)
+    {
+        if (!bounds.intersects(xmin, ymin, xmax, ymax))
+            return false;
+        //either the boundary touches the quadrant, or one is inside the other
+        return edgeTouches(xmin, ymin, xmax, ymax)
+            || contains(xmin, ymin)
+            || new RectangleRegion(xmin, ymin, xmax, ymax).contains(xs[0], ys[0]);
+    }
+
+    /**
+     * Return whether the polygon covers a quadrant.
+     * @param xmin the minimum x value of the quadrant
+     * @param ymin the minimum y value of the quadrant
+     * @param xmax the maximum x value of the quadrant
+     * @param ymax the maximum y value of the quadrant
+     * @return true if the quadrant is inside the polygon
+     */
+    public boolean covers(int xmin, int ymin, int xmax, int ymax)
+    {
+        return bounds.covers(xmin, ymin, xmax, ymax)
+            && contains(xmin, ymin) && contains(xmax, ymin)
+            && contains(xmin, ymax) && contains(xmax, ymax)
+            && !edgeTouches(xmin, ymin, xmax, ymax);
+    }
+
+    /**
+     * Return whether any edge of the polygon touches a rectangle, including
+     * its boundary.
+     */
+    private boolean edgeTouches(int xmin, int ymin, int xmax, int ymax)
+    {
+        RectangleRegion rect = new RectangleRegion(xmin, ymin, xmax, ymax);
+        for (int i = 0, j = xs.length - 1; i < xs.length; j = i++)
+        {
+            //skip edges whose bounding box misses the rectangle
+            if (!rect.intersects(Math.min(xs[i], xs[j]), Math.min(ys[i], ys[j]),
+                Math.max(xs[i], xs[j]), Math.max(ys[i], ys[j])))
+                continue;
+            if (rect.contains(xs[i], ys[i]) || rect.contains(xs[j], ys[j])
+                || crosses(xs[j], ys[j], xs[i], ys[i], xmin, ymin, xmax, ymin)
+                || crosses(xs[j], ys[j], xs[i], ys[i], xmax, ymin, xmax, ymax)
+                || crosses(xs[j], ys[j], xs[i], ys[i], xmax, ymax, xmin, ymax)
+                || crosses(xs[j], ys[j], xs[i], ys[i], xmin, ymax, xmin, ymin))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Return whether segments ab and cd share a point.
+     */
+    private static boolean crosses(int ax, int ay, int bx, int by,
+        int cx, int cy, int dx, int dy)
+    {
+        int d1 = orientation(cx, cy, dx, dy, ax, ay);
+        int d2 = orientation(cx, cy, dx, dy, bx, by);
+        int d3 = orientation(ax, ay, bx, by, cx, cy);
+        int d4 = orientation(ax, ay, bx, by, dx, dy);
+        if (d1 * d2 < 0 && d3 * d4 < 0)
+            return true;
+        //otherwise they only meet if an end of one lies on the other
+        return onSegment(cx, cy, dx, dy, ax, ay)
+            || onSegment(cx, cy, dx, dy, bx, by)
+            || onSegment(ax, ay, bx, by, cx, cy)
+            || onSegment(ax, ay, bx, by, dx, dy);
+    }
+
+    /**
+     * Return which side of the line through a and b point p is on.
+     * @return 1 for left, -1 for right, 0 if p is on the line
+     */
+    private static int orientation(int ax, int ay, int bx, int by,
+        int px, int py)
+    {
+        long cross = (long)(bx - ax) * (py - ay) - (long)(by - ay) * (px - ax);
+        return Long.signum(cross);
+    }
+
+    /**
+     * Return whether point p lies on segment ab.
+     */
+    private static boolean onSegment(int ax, int ay, int bx, int by,
+        int px, int py)
+    {
+        return orientation(ax, ay, bx, by, px, py) == 0
+            && px >= Math.min(ax, bx) && px <= Math.max(ax, bx)
+            && py >= Math.min(ay, by) && py <= Math.max(ay, by);
+    }
+
+    /**
+     * Return the polygon the way a polygon command gives it.
+     * @return the coordinates of the vertices, in order
+     */
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder("polygon");
+        for (int i = 0; i < xs.length; i++)
+        {
+            builder.append(" " + xs[i] + " " + ys[i]);
+        }
+        return builder.toString();
+    }
+}
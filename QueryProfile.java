@@ -0,0 +1,184 @@
+// -------------------------------------------------------------------------
+/**
+ *  What one search of a PRQuadTree did: the region and leaf nodes it
+ *  visited, the quadrants it pruned without visiting, the leaf points it
+ *  tested against the search area, the records it returned, the reads it
+ *  made through the buffer pool and how long it took.
+ *
+ *  A profile is passed to a search to be filled in, and can be passed to
+ *  another search afterwards, which clears it first.  Nodes visited,
+ *  points tested and results are for the pass over the tree that produced
+ *  the results; a search that was run again because of a change made while
+ *  it read also counts the buffer pool reads and time of the pass it gave
+ *  up on.  Nodes kept resident by a NodePager are visited without reading
+ *  the pool, so a search over resident nodes can read nothing at all.
+ *
+ *  @author Joshua Rush
+ *  @author Benjamin Roble
+ *  @version Dec 9, 2011
+ */
+public class QueryProfile
+{
+    private int regionNodes;
+    private int leafNodes;
+    //quadrants of visited regions that were left out of the search
+    private int quadrantsPruned;
+    //leaf points checked against the search area, not counting the points
+    //of quadrants the area covers, which are taken without checking
+    private int pointsTested;
+    private int results;
+    private int bufferHits;
+    private int bufferMisses;
+    //bytes copied out of the memory pool, size headers included
+    private long bytesRead;
+    //the time the search started and how long it took, in nanoseconds
+    private long startTime;
+    private long wallTime;
+
+    /**
+     * Clear the profile and start timing a search.
+     */
+    public void start()
+    {
+        regionNodes = 0;
+        leafNodes = 0;
+        quadrantsPruned = 0;
+        pointsTested = 0;
+        results = 0;
+        bufferHits = 0;
+        bufferMisses = 0;
+        bytesRead = 0;
+        wallTime = 0;
+        startTime = System.nanoTime();
+    }
+
+    /**
+     * Stop timing the search and record what its pass over the tree did.
+     * @param pRegionNodes the region nodes visited
+     * @param pLeafNodes the leaf nodes visited
+     * @param pQuadrantsPruned the quadrants left out of the search
+     * @param pPointsTested the leaf points checked against the search area
+     * @param pResults the records returned
+     */
+    public void finish(int pRegionNodes, int pLeafNodes, int pQuadrantsPruned,
+        int pPointsTested, int pResults)
+    {
+        wallTime = System.nanoTime() - startTime;
+        regionNodes = pRegionNodes;
+        leafNodes = pLeafNodes;
+        quadrantsPruned = pQuadrantsPruned;
+        pointsTested = pPointsTested;
+        results = pResults;
+    }
+
+    /**
+     * Count reads made through the buffer pool for the search.
+     * @param hits the reads whose block was already in a buffer
+     * @param misses the reads whose block had to be brought into a buffer
+     * @param bytes the bytes copied out of the memory pool
+     */
+    public void addReads(int hits, int misses, long bytes)
+    {
+        bufferHits += hits;
+        bufferMisses += misses;
+        bytesRead += bytes;
+    }
+
+    /**
+     * Return the number of region nodes the search visited.
+     * @return region nodes visited
+     */
+    public int getRegionNodes()
+    {
+        return regionNodes;
+    }
+
+    /**
+     * Return the number of leaf nodes the search visited.
+     * @return leaf nodes visited
+     */
+    public int getLeafNodes()
+    {
+        return leafNodes;
+    }
+
+    /**
+     * Return the number of quadrants of visited regions the search left
+     * out because they were outside the search area.
+     * @return quadrants pruned
+     */
+    public int getQuadrantsPruned()
+    {
+        return quadrantsPruned;
+    }
+
+    /**
+     * Return the number of leaf points checked against the search area.
+     * @return points tested
+     */
+    public int getPointsTested()
+    {
+        return pointsTested;
+    }
+
+    /**
+     * Return the number of records the search returned.
+     * @return results
+     */
+    public int getResults()
+    {
+        return results;
+    }
+
+    /**
+     * Return the number of buffer pool reads that found their block in a
+     * buffer.
+     * @return buffer pool hits
+     */
+    public int getBufferHits()
+    {
+        return bufferHits;
+    }
+
+    /**
+     * Return the number of buffer pool reads that had to bring their block
+     * into a buffer.
+     * @return buffer pool misses
+     */
+    public int getBufferMisses()
+    {
+        return bufferMisses;
+    }
+
+    /**
+     * Return the number of bytes the search copied out of the memory pool.
+     * @return bytes read
+     */
+    public long getBytesRead()
+    {
+        return bytesRead;
+    }
+
+    /**
+     * Return how long the search took.
+     * @return the wall time in nanoseconds
+     */
+    public long getWallTime()
+    {
+        return wallTime;
+    }
+
+    /**
+     * Return the profile on one line.
+     * @return a summary of the profile
+     */
+    public String toString()
+    {
+        return regionNodes + " regions and " + leafNodes + " leaves visited, "
+            + quadrantsPruned + " quadrants pruned, " + pointsTested
+            + " points tested, " + results + " results, " + bufferHits
+            + " buffer hits, " + bufferMisses + " buffer misses, "
+            + bytesRead + " bytes read, "
+            + String.format("%.3f ms", wallTime / 1000000.0);
+    }
+}
@@ -0,0 +1,46 @@
+// -------------------------------------------------------------------------
+/**
+ *  A region of the plane a PRQuadTree can be searched with.  The tree asks
+ *  the region about each quadrant it reaches: quadrants the region doesn't
+ *  touch are skipped, quadrants it covers completely have all their records
+ *  taken without looking at their coordinates, and only the quadrants in
+ *  between are checked a point at a time.
+ *
+ *  Quadrant bounds are inclusive, as they are everywhere in the tree.
+ *
+ *  @author Joshua Rush
+ *  @author Benjamin Roble
+ *  @version Nov 28, 2011
+ */
+public interface QueryRegion
+{
+    /**
+     * Return whether a point is in the region.
+     * @param x the x coordinate of the point
+     * @param y the y coordinate of the point
+     * @return true if the point is in the region
+     */
+    boolean contains(int x, int y);
+
+    /**
+     * Return whether the region might hold a point of a quadrant.  Returning
+     * true for a quadrant the region doesn't touch only costs time.
+     * @param xmin the minimum x value of the quadrant
+     * @param ymin the minimum y value of the quadrant
+     * @param xmax the maximum x value of the quadrant
+     * @param ymax the maximum y value of the quadrant
+     * @return false if no point of the quadrant is in the region
+     */
+    boolean intersects(int xmin, int ymin, int xmax, int ymax);
+
+    /**
+     * Return whether every point of a quadrant is in the region.  Returning
+     * false for a quadrant the region does cover only costs time.
+     * @param xmin the minimum x value of the quadrant
+     * @param ymin the minimum y value of the quadrant
+     * @param xmax the maximum x value of the quadrant
+     * @param ymax the maximum y value of the quadrant
+     * @return true only if every point of the quadrant is in the region
+     */
+    boolean covers(int xmin, int ymin, int xmax, int ymax);
+}
@@ -62,5 +62,14 @@ public class Record {
         else
             return false;
     }
+    /**
+     * Return a hash code for this Record.  Records with equal coordinates
+     * have equal hash codes, as equals requires.
+     * @return the hash code
+     */
+    public int hashCode()
+    {
+        return 31 * x + y;
+    }
 
 }
@@ -0,0 +1,126 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// -------------------------------------------------------------------------
+/**
+ *  A small least recently used cache of decoded records, keyed by the handle
+ *  of each record's message.  Records that are found over and over don't
+ *  have to be read from the memory pool and decoded each time.  The cache
+ *  is synchronized, since concurrent searches share it.
+ *
+ *  A search reads a record and then offers it to put, and in between the
+ *  writer can remove the record and hand its handle to a new one.  Like
+ *  ResultCache, every invalidation moves the cache's generation up, and a
+ *  record is only taken if the generation is still the one read before
+ *  the record was, so a record is never cached under a handle that has
+ *  moved on.
+ *  @param <T> the class type of the records
+ *
+ *  @author Joshua Rush
+ *  @author Benjamin Roble
+ *  @version Nov 24, 2011
+ */
+public class RecordCache<T>
+{
+    //the cached records, in least to most recently used order
+    private LinkedHashMap<Long, T> records;
+    //moved up by every invalidation
+    private long generation = 0;
+
+    //number of cache hits
+    private int hits = 0;
+    //number of cache misses
+    private int misses = 0;
+
+    /**
+     * Create a new, empty RecordCache.
+     * @param capacity the most records the cache holds
+     */
+    public RecordCache(final int capacity)
+    {
+        records = new LinkedHashMap<Long, T>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<Long, T> eldest)
+            {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Return the record at handle, or null if it isn't cached.
+     * @param handle the handle of the record's message
+     * @return the cached record, or null
+     */
+    public synchronized T get(long handle)
+    {
+        T record = records.get(handle);
+        if (record == null)
+            misses++;
+        else
+            hits++;
+        return record;
+    }
+
+    /**
+     * Return the cache's generation, to be read before reading a record
+     * that will be offered to put.
+     * @return the generation
+     */
+    public synchronized long getGeneration()
+    {
+        return generation;
+    }
+
+    /**
+     * Add a decoded record to the cache, unless anything has been
+     * invalidated since it was read.
+     * @param handle the handle of the record's message
+     * @param record the decoded record
+     * @param pGeneration the generation read before the record was
+     */
+    public synchronized void put(long handle, T record, long pGeneration)
+    {
+        if (pGeneration == generation)
+            records.put(handle, record);
+    }
+
+    /**
+     * Drop the record at handle from the cache, if it is there.
+     * @param handle the handle of the record's message
+     */
+    public synchronized void invalidate(long handle)
+    {
+        generation++;
+        records.remove(handle);
+    }
+
+    /**
+     * Drop every record from the cache.
+     */
+    public synchronized void clear()
+    {
+        generation++;
+        records.clear();
+    }
+
+    /**
+     * Return the number of cache hits.
+     * @return cache hits
+     */
+    public synchronized int getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * Return the number of cache misses.
+     * @return cache misses
+     */
+    public synchronized int getMisses()
+    {
+        return misses;
+    }
+}
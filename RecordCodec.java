@@ -0,0 +1,56 @@
+// -------------------------------------------------------------------------
+/**
+ *  Converts the records stored in a PRQuadTree to and from the messages they
+ *  are stored as in the memory pool.  The coordinates can be read on their
+ *  own, so a search only has to build a record once it is known to match.
+ *  @param <T> the class type of the records
+ *
+ *  @author Joshua Rush
+ *  @author Benjamin Roble
+ *  @version Nov 21, 2011
+ */
+public interface RecordCodec<T>
+{
+    /**
+     * Return the message a record is stored as.
+     * @param record the record
+     * @return the record's message
+     */
+    byte[] encode(T record);
+
+    /**
+     * Build a record from its message.
+     * @param message the bytes of the record's message
+     * @param size the size of the message
+     * @return the record
+     */
+    T decode(byte[] message, int size);
+
+    /**
+     * Return the x coordinate stored in a record's message.
+     * @param message the bytes of the record's message
+     * @return the x coordinate
+     */
+    int readX(byte[] message);
+
+    /**
+     * Return the y coordinate stored in a record's message.
+     * @param message the bytes of the record's message
+     * @return the y coordinate
+     */
+    int readY(byte[] message);
+
+    /**
+     * Return the x coordinate of a record.
+     * @param record the record
+     * @return the x coordinate
+     */
+    int getX(T record);
+
+    /**
+     * Return the y coordinate of a record.
+     * @param record the record
+     * @return the y coordinate
+     */
+    int getY(T record);
+}
@@ -0,0 +1,77 @@
+// -------------------------------------------------------------------------
+/**
+ *  An axis aligned rectangle to search a PRQuadTree with, such as the
+ *  bounding box of a viewport.  The bounds are inclusive.
+ *
+ *  @author Joshua Rush
+ *  @author Benjamin Roble
+ *  @version Nov 28, 2011
+ */
+public class RectangleRegion implements QueryRegion
+{
+    private int xmin;
+    private int ymin;
+    private int xmax;
+    private int ymax;
+
+    /**
+     * Create a new RectangleRegion.
+     * @param xmin the minimum x value of the rectangle
+     * @param ymin the minimum y value of the rectangle
+     * @param xmax the maximum x value of the rectangle
+     * @param ymax the maximum y value of the rectangle
+     */
+    public RectangleRegion(int xmin, int ymin, int xmax, int ymax)
+    {
+        this.xmin = xmin;
+        this.ymin = ymin;
+        this.xmax = xmax;
+        this.ymax = ymax;
+    }
+
+    /**
+     * Return whether a point is in the rectangle.
+     * @param x the x coordinate of the point
+     * @param y the y coordinate of the point
+     * @return true if the point is in the rectangle
+     */
+    public boolean contains(int x, int y)
+    {
+        return x >= xmin && x <= xmax && y >= ymin && y <= ymax;
+    }
+
+    /**
+     * Return whether the rectangle overlaps a quadrant.
+     * @param qxmin the minimum x value of the quadrant
+     * @param qymin the minimum y value of the quadrant
+     * @param qxmax the maximum x value of the quadrant
+     * @param qymax the maximum y value of the quadrant
+     * @return true if the rectangle and quadrant share a point
+     */
+    public boolean intersects(int qxmin, int qymin, int qxmax, int qymax)
+    {
+        return qxmin <= xmax && qxmax >= xmin && qymin <= ymax && qymax >= ymin;
+    }
+
+    /**
+     * Return whether the rectangle covers a quadrant.
+     * @param qxmin the minimum x value of the quadrant
+     * @param qymin the minimum y value of the quadrant
+     * @param qxmax the maximum x value of the quadrant
+     * @param qymax the maximum y value of the quadrant
+     * @return true if the quadrant is inside the rectangle
+     */
+    public boolean covers(int qxmin, int qymin, int qxmax, int qymax)
+    {
+        return qxmin >= xmin && qxmax <= xmax && qymin >= ymin && qymax <= ymax;
+    }
+
+    /**
+     * Return the rectangle the way a rect command gives it.
+     * @return the minimum and maximum x and y values
+     */
+    public String toString()
+    {
+        return "rect " + xmin + " " + ymin + " " + xmax + " " + ymax;
+    }
+}
@@ -9,25 +9,40 @@ import java.util.ArrayList;
  *
  *  A RegionNode looks like this in memory:
  *  byte .... data
- *  0 ..... 0 if RegionNode, non zero if LeafNode
- *  1-4 ..... handle to NW quadrant (each handle is 4 bytes)
- *  5-8 ..... handle to NE quadrant
- *  9-12 ..... handle to SW quadrant
- *  13-16 ..... handle to SE quadrant
+ *  0 ..... type, with a bit set for each empty quadrant (see HandleConverter)
+ *  1- ..... a varint count of the records under the region
+ *  .. ..... for a compressed region, its real empty child mask and depth,
+ *           and its quadrant's path from the root
+ *  .. ..... varlong sums of the records' x and y coordinates
+ *  .. ..... a varint offset to each non-empty quadrant, in NW, NE, SW, SE
+ *           order
+ *
+ *  Older messages have no sums or count, and may have a fixed 4 or 8 byte handle
+ *  for every quadrant, including a -1 for each empty one.
  *
  *
  *  @author Joshua Rush
  *  @author Benjamin Roble
  *  @version Oct 9, 2011
  */
-public class RegionNode extends Node<T> {
+public class RegionNode<T> extends Node<T> {
     //The RegionNode has 4 node pointers, one for each quadrant in the region it
     //represents.
-	private Handle northWest;
-	private Handle northEast;
-	private Handle southWest;
-	private Handle southEast;
+	private long northWest;
+	private long northEast;
+	private long southWest;
+	private long southEast;
 	private MemoryManager manager;
+	//the number of records under the region, or -1 if it isn't known
+	private int count;
+	//the sums of the coordinates of the records under the region, or -1
+	//if they aren't known
+	private long sumX;
+	private long sumY;
+	//the depth and prefix of a compressed region's quadrant, or -1 and 0
+	//for a region at the level below its parent
+	private int depth = -1;
+	private int prefix = 0;
 	/**
 	 * Create a new RegionNode and assign its node pointers.
 	 * @param NW the northWest node pointer
@@ -35,15 +50,58 @@ public class RegionNode extends Node<T> {
 	 * @param SW the southWest node pointer
 	 * @param SE the southEast node pointer
 	 */
-	public RegionNode(Handle NW, Handle NE, Handle SW, Handle SE, MemoryManager memman) {
+	public RegionNode(long NW, long NE, long SW, long SE, MemoryManager memman) {
 	    super();
 	    northWest = NW;
 	    northEast = NE;
 	    southWest = SW;
 	    southEast = SE;
 	    manager = memman;
+	    count = -1;
+	    sumX = -1;
+	    sumY = -1;
 	}
 
+	/**
+     * Create a new RegionNode with a known number of records under it.
+     * @param NW the northWest node pointer
+     * @param NE the northeast node pointer
+     * @param SW the southWest node pointer
+     * @param SE the southEast node pointer
+     * @param pCount the number of records under the region, or -1 if it
+     * isn't known
+     * @param memman the MemoryManager the children are stored in
+     */
+    public RegionNode(long NW, long NE, long SW, long SE, int pCount,
+        MemoryManager memman) {
+        this(NW, NE, SW, SE, memman);
+        count = pCount;
+    }
+
+	/**
+     * Create a new RegionNode with a known number of records under it and
+     * known sums of their coordinates.
+     * @param NW the northWest node pointer
+     * @param NE the northeast node pointer
+     * @param SW the southWest node pointer
+     * @param SE the southEast node pointer
+     * @param pCount the number of records under the region, or -1 if it
+     * isn't known
+     * @param pSumX the sum of the records' x coordinates, or -1
+     * @param pSumY the sum of the records' y coordinates, or -1
+     * @param memman the MemoryManager the children are stored in
+     */
+    public RegionNode(long NW, long NE, long SW, long SE, int pCount,
+        long pSumX, long pSumY, MemoryManager memman) {
+        this(NW, NE, SW, SE, pCount, memman);
+        //sums are only kept along with a count
+        if (pCount >= 0)
+        {
+            sumX = pSumX;
+            sumY = pSumY;
+        }
+    }
+
 	/**
      * Create a new RegionNode and assign its node pointers.
      * @param NW the northWest node pointer
@@ -52,13 +110,16 @@ public class RegionNode extends Node<T> {
      * @param SE the southEast node pointer
      * @param pPos the handle position
      */
-    public RegionNode(Handle NW, Handle NE, Handle SW, Handle SE, MemoryManager memman, int pPos) {
+    public RegionNode(long NW, long NE, long SW, long SE, MemoryManager memman, long pPos) {
         super(pPos);
         northWest = NW;
         northEast = NE;
         southWest = SW;
         southEast = SE;
         manager = memman;
+        count = -1;
+        sumX = -1;
+        sumY = -1;
     }
 
     // ----------------------------------------------------------
@@ -66,7 +127,7 @@ public class RegionNode extends Node<T> {
      * Return the region's northwest child.
      * @return the northWest child
      */
-    public Handle getNorthWest()
+    public long getNorthWest()
     {
         return northWest;
     }
@@ -76,7 +137,7 @@ public class RegionNode extends Node<T> {
      * Assign the region's northWest child.
      * @param northWest the northWest child to set
      */
-    public void setNorthWest(Handle northWest)
+    public void setNorthWest(long northWest)
     {
         this.northWest = northWest;
     }
@@ -86,7 +147,7 @@ public class RegionNode extends Node<T> {
      * Return the region's northEast child.
      * @return the northEast child
      */
-    public Handle getNorthEast()
+    public long getNorthEast()
     {
         return northEast;
     }
@@ -96,7 +157,7 @@ public class RegionNode extends Node<T> {
      * Set the region's northEast child.
      * @param northEast the northEast to set
      */
-    public void setNorthEast(Handle northEast)
+    public void setNorthEast(long northEast)
     {
         this.northEast = northEast;
     }
@@ -106,7 +167,7 @@ public class RegionNode extends Node<T> {
      * Return the region's southWest child
      * @return the southWest child
      */
-    public Handle getSouthWest()
+    public long getSouthWest()
     {
         return southWest;
     }
@@ -116,7 +177,7 @@ public class RegionNode extends Node<T> {
      * Assign the region's southWest child
      * @param southWest the southWest child to set
      */
-    public void setSouthWest(Handle southWest)
+    public void setSouthWest(long southWest)
     {
         this.southWest = southWest;
     }
@@ -126,7 +187,7 @@ public class RegionNode extends Node<T> {
      * Return the region's southEast child.
      * @return the southEast child
      */
-    public Handle getSouthEast()
+    public long getSouthEast()
     {
         return southEast;
     }
@@ -136,19 +197,94 @@ public class RegionNode extends Node<T> {
      * Return the region's southEast child.
      * @param southEast the southEast child to set
      */
-    public void setSouthEast(Handle southEast)
+    public void setSouthEast(long southEast)
     {
         this.southEast = southEast;
     }
 
+    // ----------------------------------------------------------
+    /**
+     * Return the number of records under the region as stored in its
+     * message.
+     * @return the number of records, or -1 if it isn't known
+     */
+    public int getCount()
+    {
+        return count;
+    }
+
+    // ----------------------------------------------------------
+    /**
+     * Return the sum of the x coordinates of the records under the region
+     * as stored in its message.
+     * @return the sum, or -1 if it isn't known
+     */
+    public long getSumX()
+    {
+        return sumX;
+    }
+
+    // ----------------------------------------------------------
+    /**
+     * Return the sum of the y coordinates of the records under the region
+     * as stored in its message.
+     * @return the sum, or -1 if it isn't known
+     */
+    public long getSumY()
+    {
+        return sumY;
+    }
+
+    // ----------------------------------------------------------
+    /**
+     * Make the region a compressed one, standing in for a chain of regions
+     * that each had only one non-empty child.  Its children split the
+     * quadrant at the given depth with the given prefix rather than the
+     * quadrant of the level below its parent.
+     * @param pDepth the depth of the region's quadrant, or -1 for a region
+     * that isn't compressed
+     * @param pPrefix the Morton code of the corner of the region's quadrant
+     * (see Morton.prefix)
+     */
+    public void setPrefix(int pDepth, int pPrefix)
+    {
+        depth = pDepth;
+        prefix = (pDepth < 0) ? 0 : pPrefix;
+    }
+
+    // ----------------------------------------------------------
+    /**
+     * Return the depth of a compressed region's quadrant.
+     * @return the depth, or -1 if the region isn't compressed
+     */
+    public int getDepth()
+    {
+        return depth;
+    }
+
+    // ----------------------------------------------------------
     /**
-     * getItemCount returns the number of items in this RegionNode
+     * Return the Morton code of the corner of a compressed region's
+     * quadrant.
+     * @return the prefix, or 0 if the region isn't compressed
+     */
+    public int getPrefix()
+    {
+        return prefix;
+    }
+
+    /**
+     * getItemCount returns the number of items in this RegionNode.  The
+     * stored count is used when there is one, and the children are only
+     * counted for regions written before counts were stored.
      * @return int the number of items
      */
     public int getItemCount()
     {
-        return northEast.getItemCount() + northWest.getItemCount() +
-        southEast.getItemCount() + southWest.getItemCount();
+        if (count >= 0)
+            return count;
+        return child(northEast).getItemCount() + child(northWest).getItemCount() +
+        child(southEast).getItemCount() + child(southWest).getItemCount();
     }
 
     /**
@@ -158,19 +294,19 @@ public class RegionNode extends Node<T> {
     public ArrayList<T> getItems()
     {
         ArrayList<T> items = new ArrayList<T>();
-        for (T item: northEast.getItems())
+        for (T item: child(northEast).getItems())
         {
             items.add(item);
         }
-        for (T item: northWest.getItems())
+        for (T item: child(northWest).getItems())
         {
             items.add(item);
         }
-        for (T item: southEast.getItems())
+        for (T item: child(southEast).getItems())
         {
             items.add(item);
         }
-        for (T item: southWest.getItems())
+        for (T item: child(southWest).getItems())
         {
             items.add(item);
         }
@@ -184,22 +320,34 @@ public class RegionNode extends Node<T> {
     public ArrayList<Point> getKeys()
     {
         ArrayList<Point> keys = new ArrayList<Point>();
-        for (Point key: northEast.getKeys())
+        for (Point key: child(northEast).getKeys())
         {
             keys.add(key);
         }
-        for (Point key: northWest.getKeys())
+        for (Point key: child(northWest).getKeys())
         {
             keys.add(key);
         }
-        for (Point key: southEast.getKeys())
+        for (Point key: child(southEast).getKeys())
         {
             keys.add(key);
         }
-        for (Point key: southWest.getKeys())
+        for (Point key: child(southWest).getKeys())
         {
             keys.add(key);
         }
         return keys;
     }
+
+    /**
+     * Return the node stored at one of this region's child handles.
+     * @param childHandle the handle of the child
+     * @return the child node, or an empty leaf if the child is empty
+     */
+    private Node<T> child(long childHandle)
+    {
+        if (childHandle == Handle.EMPTY)
+            return new EmptyLeafNode<T>();
+        return HandleConverter.convertToNode(childHandle, manager);
+    }
 }
@@ -0,0 +1,273 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// -------------------------------------------------------------------------
+/**
+ *  A least recently used cache of query results, bounded by an estimate of
+ *  the heap space the results take up, like NodeCache.  The structure being
+ *  queried drops a result whenever a change could alter it.
+ *
+ *  A query that misses runs against the structure and then offers its
+ *  result back to the cache, but a change can land in between.  Every
+ *  invalidation moves the cache's generation up, and a result is only
+ *  taken if the generation is still the one read before the query ran, so
+ *  a result that may have missed a change is never cached.  The cache is
+ *  synchronized, since concurrent searches share it.
+ *  @param <K> the class type of the queries
+ *  @param <V> the class type of the results
+ *
+ *  @author Joshua Rush
+ *  @author Benjamin Roble
+ *  @version Dec 10, 2011
+ */
+public class ResultCache<K, V>
+{
+    //rough heap cost of a cached result's entry, not counting the result
+    private static final int ENTRY_OVERHEAD = 64;
+
+    //the cached results, in least to most recently used order
+    private LinkedHashMap<K, Entry<V>> entries;
+    //the most bytes the cached results can take up
+    private long capacity;
+    //the bytes the cached results take up now
+    private long used;
+    //moved up by every invalidation
+    private long generation;
+
+    //number of cache hits
+    private int hits = 0;
+    //number of cache misses
+    private int misses = 0;
+    //number of results dropped because of a change
+    private int invalidations = 0;
+
+    /**
+     * Create a new, empty ResultCache.
+     * @param capacity the most bytes of heap the cached results can take up
+     */
+    public ResultCache(long capacity)
+    {
+        this.capacity = capacity;
+        used = 0;
+        generation = 0;
+        entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+    }
+
+    /**
+     * Return the cached result of a query, or null if it isn't cached.
+     * @param query the query
+     * @return the cached result, or null
+     */
+    public synchronized V get(K query)
+    {
+        Entry<V> entry = entries.get(query);
+        if (entry == null)
+        {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.result;
+    }
+
+    /**
+     * Return the cache's generation, to be read before running a query
+     * whose result will be offered to put.
+     * @return the generation
+     */
+    public synchronized long getGeneration()
+    {
+        return generation;
+    }
+
+    /**
+     * Add the result of a query to the cache, evicting the least recently
+     * used results until the cache is back under its capacity.  The result
+     * isn't cached if anything has been invalidated since the query ran.
+     * @param query the query
+     * @param result the query's result, which must not be changed once it
+     * is cached
+     * @param size the bytes the result takes up, not counting its entry
+     * @param pGeneration the generation read before the query ran
+     * @return true if the result was cached
+     */
+    public synchronized boolean put(K query, V result, long size,
+        long pGeneration)
+    {
+        long cost = ENTRY_OVERHEAD + size;
+        //a result bigger than the whole cache is never cached
+        if (pGeneration != generation || cost > capacity)
+            return false;
+        Entry<V> old = entries.remove(query);
+        if (old != null)
+            drop(query, old);
+        entries.put(query, new Entry<V>(result, cost));
+        used += cost;
+        added(query);
+        Iterator<Map.Entry<K, Entry<V>>> eldest =
+            entries.entrySet().iterator();
+        while (used > capacity)
+        {
+            Map.Entry<K, Entry<V>> next = eldest.next();
+            eldest.remove();
+            drop(next.getKey(), next.getValue());
+        }
+        return true;
+    }
+
+    /**
+     * Drop the result of a query from the cache, if it is there, because a
+     * change could alter it.
+     * @param query the query
+     */
+    public synchronized void invalidate(K query)
+    {
+        changed();
+        Entry<V> entry = entries.remove(query);
+        if (entry != null)
+        {
+            drop(query, entry);
+            invalidations++;
+        }
+    }
+
+    /**
+     * Drop every result from the cache.
+     */
+    public synchronized void clear()
+    {
+        changed();
+        entries.clear();
+        used = 0;
+        cleared();
+    }
+
+    /**
+     * Return the number of cache hits.
+     * @return cache hits
+     */
+    public synchronized int getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * Return the number of cache misses.
+     * @return cache misses
+     */
+    public synchronized int getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * Return the fraction of lookups that found their result in the cache.
+     * @return the hit rate, from 0 to 1
+     */
+    public synchronized double getHitRate()
+    {
+        if (hits + misses == 0)
+            return 0;
+        return (double)hits / (hits + misses);
+    }
+
+    /**
+     * Return the number of cached results dropped because of a change.
+     * @return invalidations
+     */
+    public synchronized int getInvalidations()
+    {
+        return invalidations;
+    }
+
+    /**
+     * Return the number of results cached now.
+     * @return the number of results
+     */
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Return the bytes the cached results take up now.
+     * @return the cached bytes
+     */
+    public synchronized long getUsedBytes()
+    {
+        return used;
+    }
+
+    /**
+     * Move the generation up, so results of queries running now aren't
+     * cached.  Called by every invalidation, including ones that turn out
+     * to drop nothing.
+     */
+    protected synchronized void changed()
+    {
+        generation++;
+    }
+
+    /**
+     * Called, holding the cache's lock, when a query's result is cached.
+     * Does nothing here; subclasses that index the cached queries override
+     * it.
+     * @param query the query
+     */
+    protected void added(K query)
+    {
+        //nothing to index
+    }
+
+    /**
+     * Called, holding the cache's lock, when one result leaves the cache
+     * for any reason.
+     * @param query the query whose result left
+     */
+    protected void removed(K query)
+    {
+        //nothing to index
+    }
+
+    /**
+     * Called, holding the cache's lock, when every result has been
+     * dropped.
+     */
+    protected void cleared()
+    {
+        //nothing to index
+    }
+
+    /**
+     * Take an entry that has left the map off the bytes used.
+     * @param query the query whose result left
+     * @param entry the entry that left
+     */
+    private void drop(K query, Entry<V> entry)
+    {
+        used -= entry.cost;
+        removed(query);
+    }
+
+    /**
+     * A cached result along with the bytes it is counted as taking up.
+     * @param <V> the class type of the result
+     */
+    private static class Entry<V>
+    {
+        private V result;
+        private long cost;
+
+        /**
+         * Create a new Entry.
+         * @param result the cached result
+         * @param cost the bytes the result is counted as taking up
+         */
+        public Entry(V result, long cost)
+        {
+            this.result = result;
+            this.cost = cost;
+        }
+    }
+}
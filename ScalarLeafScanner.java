@@ -0,0 +1,39 @@
+// -------------------------------------------------------------------------
+/**
+ *  A LeafScanner that checks one point at a time.  Used wherever the vector
+ *  API isn't available, and for circles too big for int arithmetic.
+ *
+ *  @author Joshua Rush
+ *  @author Benjamin Roble
+ *  @version Dec 4, 2011
+ */
+public class ScalarLeafScanner implements LeafScanner
+{
+    /**
+     * Find the points within radius of (cx, cy).  Unlike other scanners,
+     * this one works for any center and radius.
+     * @param xs the x coordinates of the points
+     * @param ys the y coordinates of the points
+     * @param count the number of points, counting from the start of xs and ys
+     * @param cx the x coordinate of the circle's center
+     * @param cy the y coordinate of the circle's center
+     * @param radius the radius of the circle
+     * @param matches an array of at least count values the indexes of the
+     * points inside the circle are written to, in ascending order
+     * @return the number of points inside the circle
+     */
+    public int within(int[] xs, int[] ys, int count, int cx, int cy,
+        int radius, int[] matches)
+    {
+        long limit = (long)radius * radius;
+        int found = 0;
+        for (int i = 0; i < count; i++)
+        {
+            long dx = xs[i] - (long)cx;
+            long dy = ys[i] - (long)cy;
+            if (dx * dx + dy * dy <= limit)
+                matches[found++] = i;
+        }
+        return found;
+    }
+}
@@ -0,0 +1,299 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+// -------------------------------------------------------------------------
+/**
+ *  A cache of the results of circular searches of a PRQuadTree, keyed by
+ *  the search's center and radius.  Inserting or removing a record only
+ *  changes the searches whose circle holds the record's point, so rather
+ *  than being flushed on every change the cache drops just those.
+ *
+ *  To find them without testing every cached search, the cache keeps a
+ *  coarse grid over the coordinate space and lists each cached circle in
+ *  the cells its bounding box reaches.  A change looks at the circles
+ *  listed in the cell of its point, along with the few circles too big to
+ *  list cell by cell, which are checked on every change.
+ *
+ *  A result is kept with the number of nodes its search read, so a search
+ *  answered from the cache can report what it cost when it was made.
+ *  Circular searches and batch searches return their records in the same
+ *  order, that of the tree walk, so the two share cached results.  A
+ *  change outside a circle can still reshape the nodes the circle's walk
+ *  passes through, so a cached circular search has the same records as a
+ *  new one but not always in the same order.
+ *  @param <T> the class type of the records
+ *
+ *  @author Joshua Rush
+ *  @author Benjamin Roble
+ *  @version Dec 10, 2011
+ */
+public class SearchCache<T>
+    extends ResultCache<Long, SearchCache.Result<T>>
+{
+    //rough heap cost of each record in a cached result: the reference to
+    //it, and the record itself, which the cache may be all that holds
+    private static final int RESULT_BYTES = 48;
+    //the width of a grid cell is 2^CELL_SHIFT
+    private static final int CELL_SHIFT = 8;
+    //the number of cells along each side of the grid
+    private static final int GRID_SIZE = (1 << Morton.BITS) >> CELL_SHIFT;
+    //the most cells a circle is listed in before it counts as wide
+    private static final int MAX_CELLS = 64;
+    //added to a center's coordinates so they can be packed into a key
+    private static final int KEY_OFFSET = 1 << 15;
+
+    //the cached circles listed in each grid cell, by cell
+    private HashMap<Integer, HashSet<Long>> cells;
+    //the cached circles that reach more than MAX_CELLS cells
+    private HashSet<Long> wide;
+
+    /**
+     * Create a new, empty SearchCache.
+     * @param capacity the most bytes of heap the cached results can take up
+     */
+    public SearchCache(long capacity)
+    {
+        super(capacity);
+        cells = new HashMap<Integer, HashSet<Long>>();
+        wide = new HashSet<Long>();
+    }
+
+    /**
+     * Return the key a circular search is cached under.
+     * @param x the x coordinate of the search area center
+     * @param y the y coordinate of the search area center
+     * @param radius the radius of the search area
+     * @return the key, or -1 if the search can't be cached
+     */
+    public static long key(int x, int y, int radius)
+    {
+        if (Math.abs(x) >= KEY_OFFSET || Math.abs(y) >= KEY_OFFSET
+            || radius < 0 || radius >= KEY_OFFSET)
+            return -1;
+        return ((long)(x + KEY_OFFSET) << 32) | ((long)(y + KEY_OFFSET) << 16)
+            | radius;
+    }
+
+    /**
+     * Add the records a circular search found to the cache.
+     * @param key the search's key
+     * @param records the records the search found, which the cache copies
+     * @param nodesVisited the number of nodes the search read
+     * @param generation the generation read before the search ran
+     * @return true if the result was cached
+     */
+    public boolean put(long key, ArrayList<T> records, int nodesVisited,
+        long generation)
+    {
+        return put(key, new Result<T>(new ArrayList<T>(records),
+            nodesVisited), (long)RESULT_BYTES * records.size(), generation);
+    }
+
+    /**
+     * Drop the cached result of every search whose circle holds a point,
+     * because a record is being inserted or removed there.
+     * @param x the x coordinate of the point
+     * @param y the y coordinate of the point
+     */
+    public synchronized void invalidate(int x, int y)
+    {
+        changed();
+        ArrayList<Long> holding = new ArrayList<Long>();
+        HashSet<Long> listed = cells.get(cell(x >> CELL_SHIFT,
+            y >> CELL_SHIFT));
+        if (listed != null)
+            addHolding(listed, x, y, holding);
+        addHolding(wide, x, y, holding);
+        for (Long key: holding)
+        {
+            invalidate(key);
+        }
+    }
+
+    /**
+     * List a newly cached circle in the cells it reaches.
+     * @param key the circle's key
+     */
+    protected void added(Long key)
+    {
+        int[] box = cellBox(key);
+        if (box == null)
+            return;
+        if ((box[2] - box[0] + 1) * (box[3] - box[1] + 1) > MAX_CELLS)
+        {
+            wide.add(key);
+            return;
+        }
+        for (int i = box[0]; i <= box[2]; i++)
+        {
+            for (int j = box[1]; j <= box[3]; j++)
+            {
+                HashSet<Long> listed = cells.get(cell(i, j));
+                if (listed == null)
+                {
+                    listed = new HashSet<Long>();
+                    cells.put(cell(i, j), listed);
+                }
+                listed.add(key);
+            }
+        }
+    }
+
+    /**
+     * Take a circle that has left the cache out of the cells it reaches.
+     * @param key the circle's key
+     */
+    protected void removed(Long key)
+    {
+        int[] box = cellBox(key);
+        if (box == null || wide.remove(key))
+            return;
+        for (int i = box[0]; i <= box[2]; i++)
+        {
+            for (int j = box[1]; j <= box[3]; j++)
+            {
+                HashSet<Long> listed = cells.get(cell(i, j));
+                if (listed != null)
+                {
+                    listed.remove(key);
+                    if (listed.isEmpty())
+                        cells.remove(cell(i, j));
+                }
+            }
+        }
+    }
+
+    /**
+     * Empty the grid once every result has been dropped.
+     */
+    protected void cleared()
+    {
+        cells.clear();
+        wide.clear();
+    }
+
+    /**
+     * Add the circles of a list that hold a point to another list.
+     * @param circles the keys of the circles to check
+     * @param x the x coordinate of the point
+     * @param y the y coordinate of the point
+     * @param holding the list the keys of the circles holding the point are
+     * added to
+     */
+    private void addHolding(HashSet<Long> circles, int x, int y,
+        ArrayList<Long> holding)
+    {
+        for (Long key: circles)
+        {
+            long dx = x - centerX(key);
+            long dy = y - centerY(key);
+            long radius = radius(key);
+            if (dx * dx + dy * dy <= radius * radius)
+                holding.add(key);
+        }
+    }
+
+    /**
+     * Return the cells of the grid a circle's bounding box reaches, or null
+     * if the circle is outside the coordinate space, where no record can be.
+     * @param key the circle's key
+     * @return the minimum column, minimum row, maximum column and maximum
+     * row, or null
+     */
+    private int[] cellBox(long key)
+    {
+        int max = (1 << Morton.BITS) - 1;
+        int x = centerX(key);
+        int y = centerY(key);
+        int radius = radius(key);
+        if (x + radius < 0 || y + radius < 0 || x - radius > max
+            || y - radius > max)
+            return null;
+        return new int[] {Math.max(x - radius, 0) >> CELL_SHIFT,
+            Math.max(y - radius, 0) >> CELL_SHIFT,
+            Math.min(x + radius, max) >> CELL_SHIFT,
+            Math.min(y + radius, max) >> CELL_SHIFT};
+    }
+
+    /**
+     * Return the index of a grid cell.
+     * @param column the cell's column
+     * @param row the cell's row
+     * @return the cell's index
+     */
+    private static int cell(int column, int row)
+    {
+        return column * GRID_SIZE + row;
+    }
+
+    /**
+     * Return the x coordinate of the center of a cached circle.
+     * @param key the circle's key
+     * @return the x coordinate
+     */
+    private static int centerX(long key)
+    {
+        return (int)(key >>> 32) - KEY_OFFSET;
+    }
+
+    /**
+     * Return the y coordinate of the center of a cached circle.
+     * @param key the circle's key
+     * @return the y coordinate
+     */
+    private static int centerY(long key)
+    {
+        return (int)((key >>> 16) & 0xFFFF) - KEY_OFFSET;
+    }
+
+    /**
+     * Return the radius of a cached circle.
+     * @param key the circle's key
+     * @return the radius
+     */
+    private static int radius(long key)
+    {
+        return (int)(key & 0xFFFF);
+    }
+
+    /**
+     * The records a cached search found and the number of nodes it read.
+     * @param <T> the class type of the records
+     */
+    public static class Result<T>
+    {
+        private ArrayList<T> records;
+        private int nodesVisited;
+
+        /**
+         * Create a new Result.
+         * @param records the records the search found
+         * @param nodesVisited the number of nodes the search read
+         */
+        private Result(ArrayList<T> records, int nodesVisited)
+        {
+            this.records = records;
+            this.nodesVisited = nodesVisited;
+        }
+
+        /**
+         * Return a copy of the records the search found, in the order it
+         * found them.
+         * @return the records
+         */
+        public ArrayList<T> getRecords()
+        {
+            return new ArrayList<T>(records);
+        }
+
+        /**
+         * Return the number of nodes the search read.
+         * @return nodes visited
+         */
+        public int getNodesVisited()
+        {
+            return nodesVisited;
+        }
+    }
+}
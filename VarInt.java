@@ -0,0 +1,167 @@
+// -------------------------------------------------------------------------
+/**
+ *  Static helpers for reading and writing variable length integers.  A value
+ *  is stored 7 bits at a time, low bits first, with the high bit of each byte
+ *  set if another byte follows.  Values under 128 take a single byte, so
+ *  small message sizes cost no more than the old one byte size prefix.
+ *
+ *  @author Joshua Rush
+ *  @author Benjamin Roble
+ *  @version Nov 19, 2011
+ */
+public class VarInt
+{
+    /**
+     * The most bytes a non-negative int can take up when encoded.
+     */
+    public static final int MAX_INT_BYTES = 5;
+    /**
+     * The most bytes a long can take up when encoded.
+     */
+    public static final int MAX_LONG_BYTES = 10;
+
+    /**
+     * Return the number of bytes value will take up when encoded.
+     * @param value the non-negative value to measure
+     * @return the encoded length in bytes
+     */
+    public static int size(int value)
+    {
+        int bytes = 1;
+        while ((value >>>= 7) != 0)
+        {
+            bytes++;
+        }
+        return bytes;
+    }
+
+    /**
+     * Write value into dest starting at pos.
+     * @param value the non-negative value to write
+     * @param dest the array being written to
+     * @param pos the position of the first byte to write
+     * @return the position just after the last byte written
+     */
+    public static int write(int value, byte[] dest, int pos)
+    {
+        //write 7 bits at a time, setting the high bit while more follow
+        while ((value & ~0x7F) != 0)
+        {
+            dest[pos++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dest[pos++] = (byte)value;
+        return pos;
+    }
+
+    /**
+     * Read the value stored in src starting at pos.
+     * @param src the array being read from
+     * @param pos the position of the first byte of the value
+     * @return the decoded value
+     */
+    public static int read(byte[] src, int pos)
+    {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do
+        {
+            b = src[pos++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Return the number of bytes taken up by the value stored in src
+     * starting at pos.
+     * @param src the array being read from
+     * @param pos the position of the first byte of the value
+     * @return the encoded length in bytes
+     */
+    public static int length(byte[] src, int pos)
+    {
+        int start = pos;
+        while ((src[pos] & 0x80) != 0)
+        {
+            pos++;
+        }
+        return pos - start + 1;
+    }
+
+    /**
+     * Return the number of bytes a long value will take up when encoded.
+     * @param value the value to measure, treated as unsigned
+     * @return the encoded length in bytes
+     */
+    public static int sizeLong(long value)
+    {
+        int bytes = 1;
+        while ((value >>>= 7) != 0)
+        {
+            bytes++;
+        }
+        return bytes;
+    }
+
+    /**
+     * Write a long value into dest starting at pos.
+     * @param value the value to write, treated as unsigned
+     * @param dest the array being written to
+     * @param pos the position of the first byte to write
+     * @return the position just after the last byte written
+     */
+    public static int writeLong(long value, byte[] dest, int pos)
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            dest[pos++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dest[pos++] = (byte)value;
+        return pos;
+    }
+
+    /**
+     * Read the long value stored in src starting at pos.
+     * @param src the array being read from
+     * @param pos the position of the first byte of the value
+     * @return the decoded value
+     */
+    public static long readLong(byte[] src, int pos)
+    {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do
+        {
+            b = src[pos++];
+            value |= (long)(b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Map a signed value to an unsigned one so values near zero, positive or
+     * negative, encode to few bytes.  0, -1, 1, -2 ... become 0, 1, 2, 3 ...
+     * @param value the signed value
+     * @return the zigzag encoded value
+     */
+    public static long zigzag(long value)
+    {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Undo zigzag.
+     * @param value the zigzag encoded value
+     * @return the signed value
+     */
+    public static long unzigzag(long value)
+    {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
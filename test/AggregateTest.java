@@ -0,0 +1,150 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+// -------------------------------------------------------------------------
+/**
+ *  Checks PRQuadTree.aggregate against counts made by brute force on trees
+ *  with a merge threshold of 0, which merge a region only once its last
+ *  record is gone, as records are removed down to none.
+ *
+ *  The tree has no test framework, so this is a plain program, compiled
+ *  and run on its own:
+ *  javac -d classes *.java test/AggregateTest.java
+ *  java -cp classes AggregateTest
+ *  It prints nothing and exits normally if every check passes, and throws
+ *  an IllegalStateException naming the first one that fails.
+ *
+ *  @author Joshua Rush
+ *  @author Benjamin Roble
+ *  @version Dec 12, 2011
+ */
+public class AggregateTest
+{
+    //the number of records inserted into each tree
+    private static final int RECORDS = 800;
+
+    /**
+     * Build trees from a few seeds and check their aggregates as their
+     * records are removed.
+     * @param args not used
+     * @throws IOException if the memory pool's file can't be made
+     */
+    public static void main(String[] args) throws IOException
+    {
+        PrintStream out = System.out;
+        //the tree reports the nodes it reads, which isn't wanted here
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+        try
+        {
+            for (int seed = 1; seed <= 4; seed++)
+            {
+                removeEverything(seed);
+            }
+        }
+        finally
+        {
+            System.setOut(out);
+        }
+    }
+
+    /**
+     * Fill a tree with a leaf capacity of 1 and a merge threshold of 0,
+     * then remove its records in a random order, checking every level of
+     * aggregate after most of them are gone and once they all are.
+     * @param seed the seed of the records' coordinates and removal order
+     * @throws IOException if the memory pool's file can't be made
+     */
+    private static void removeEverything(int seed) throws IOException
+    {
+        File file = File.createTempFile("aggregate", ".dat");
+        file.deleteOnExit();
+        MemoryManager manager = new MemoryManager(1L << 32,
+            new BufferPool(10, file));
+        PRQuadTree<CityRecord> tree = new PRQuadTree<CityRecord>(manager,
+            new CityRecordCodec(), 1, 0, Morton.BITS);
+        Random random = new Random(seed);
+        ArrayList<int[]> points = new ArrayList<int[]>();
+        for (int i = 0; i < RECORDS; i++)
+        {
+            int x = random.nextInt(tree.MAX_COORD + 1);
+            int y = random.nextInt(tree.MAX_COORD + 1);
+            if (tree.insert(new CityRecord(x, y, "c" + i), x, y)
+                != Handle.EMPTY)
+                points.add(new int[] {x, y});
+        }
+        while (points.size() > RECORDS / 4)
+        {
+            int[] point = points.remove(random.nextInt(points.size()));
+            tree.remove(point[0], point[1]);
+        }
+        for (int level = 0; level <= Morton.BITS; level++)
+        {
+            check(tree, points, level, "seed " + seed + " with "
+                + points.size() + " records left");
+        }
+        while (!points.isEmpty())
+        {
+            int[] point = points.remove(points.size() - 1);
+            tree.remove(point[0], point[1]);
+        }
+        for (int level = 0; level <= Morton.BITS; level++)
+        {
+            check(tree, points, level, "seed " + seed + " with every "
+                + "record removed");
+        }
+    }
+
+    /**
+     * Check that aggregate gives one cell, holding at least one record,
+     * for each cell of the grid the remaining records are in, with the
+     * number of records counted by brute force.
+     * @param tree the tree
+     * @param points the coordinates of the records left in the tree
+     * @param level the resolution of the grid
+     * @param when what has been done to the tree, for the failure message
+     */
+    private static void check(PRQuadTree<CityRecord> tree,
+        ArrayList<int[]> points, int level, String when)
+    {
+        int shift = Morton.BITS - level;
+        HashMap<Long, Integer> expected = new HashMap<Long, Integer>();
+        for (int[] point: points)
+        {
+            long cell = ((long)(point[0] >> shift) << 32) | (point[1] >> shift);
+            Integer count = expected.get(cell);
+            expected.put(cell, (count == null) ? 1 : count + 1);
+        }
+        ArrayList<GridCell> cells = tree.aggregate(level, false);
+        HashMap<Long, Integer> found = new HashMap<Long, Integer>();
+        for (GridCell cell: cells)
+        {
+            if (cell.getCount() <= 0)
+                fail(when, level, "a cell with " + cell.getCount()
+                    + " records");
+            long key = ((long)cell.getColumn() << 32) | cell.getRow();
+            if (found.put(key, cell.getCount()) != null)
+                fail(when, level, "two cells at column " + cell.getColumn()
+                    + " row " + cell.getRow());
+        }
+        if (!found.equals(expected))
+            fail(when, level, cells.size() + " cells where "
+                + expected.size() + " were expected");
+    }
+
+    /**
+     * Report a failed check.
+     * @param when what had been done to the tree
+     * @param level the resolution of the grid
+     * @param what what aggregate gave that it shouldn't have
+     */
+    private static void fail(String when, int level, String what)
+    {
+        throw new IllegalStateException("Aggregate mismatch, " + when
+            + ", level " + level + ": " + what);
+    }
+}
@@ -0,0 +1,78 @@
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// -------------------------------------------------------------------------
+/**
+ *  A LeafScanner that compares as many points at a time as the processor's
+ *  vector registers hold, through the incubating vector API.  The class
+ *  needs the jdk.incubator.vector module, both to compile and to run, so it
+ *  is kept in its own source directory and built after the rest of the
+ *  tree:
+ *
+ *      javac -d classes *.java
+ *      javac --add-modules jdk.incubator.vector -cp classes -d classes
+ *          vector/VectorLeafScanner.java
+ *      java --add-modules jdk.incubator.vector -cp classes PRprog ...
+ *
+ *  PRQuadTree only loads it by name, so if it isn't built, or is run
+ *  without the module, the tree falls back to ScalarLeafScanner.
+ *
+ *  @author Joshua Rush
+ *  @author Benjamin Roble
+ *  @version Dec 4, 2011
+ */
+public class VectorLeafScanner implements LeafScanner
+{
+    //the widest vectors the processor handles well
+    private static final VectorSpecies<Integer> SPECIES =
+        IntVector.SPECIES_PREFERRED;
+
+    /**
+     * Find the points within radius of (cx, cy).
+     * @param xs the x coordinates of the points
+     * @param ys the y coordinates of the points
+     * @param count the number of points, counting from the start of xs and ys
+     * @param cx the x coordinate of the circle's center
+     * @param cy the y coordinate of the circle's center
+     * @param radius the radius of the circle
+     * @param matches an array of at least count values the indexes of the
+     * points inside the circle are written to, in ascending order
+     * @return the number of points inside the circle
+     */
+    public int within(int[] xs, int[] ys, int count, int cx, int cy,
+        int radius, int[] matches)
+    {
+        int limit = radius * radius;
+        int found = 0;
+        int i = 0;
+        int bound = SPECIES.loopBound(count);
+        for (; i < bound; i += SPECIES.length())
+        {
+            IntVector dx = IntVector.fromArray(SPECIES, xs, i).sub(cx);
+            IntVector dy = IntVector.fromArray(SPECIES, ys, i).sub(cy);
+            VectorMask<Integer> inside = dx.mul(dx).add(dy.mul(dy))
+                .compare(VectorOperators.LE, limit);
+            //most vectors miss entirely on a small circle
+            if (!inside.anyTrue())
+                continue;
+            //write out the index of each lane that matched
+            long bits = inside.toLong();
+            while (bits != 0)
+            {
+                matches[found++] = i + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+            }
+        }
+        //the points left over that don't fill a whole vector
+        for (; i < count; i++)
+        {
+            int dx = xs[i] - cx;
+            int dy = ys[i] - cy;
+            if (dx * dx + dy * dy <= limit)
+                matches[found++] = i;
+        }
+        return found;
+    }
+}